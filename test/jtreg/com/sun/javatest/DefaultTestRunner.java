@@ -27,9 +27,16 @@
 package com.sun.javatest;
 
 import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.sun.javatest.util.BackupPolicy;
 import com.sun.javatest.util.I18NResourceBundle;
@@ -39,113 +46,189 @@ import com.sun.javatest.util.I18NResourceBundle;
  * used throughout the JT Harness 2.x harness.  It supplies all the basic
  * for creating threads for each test, running the <code>Script</code>,
  * and handling timeouts.
+ *
+ * Tests are run by a fixed pool of worker threads, one for each unit of
+ * concurrency.  The thread calling runTests reads tests from the iterator
+ * and places them on a bounded queue, from which the workers take them,
+ * so that the workers do not contend for the iterator, and reading ahead
+ * is limited to a few tests per worker.  When the run is interrupted, the
+ * workers are interrupted and given a short while to finish the tests in
+ * progress.  Any that are still running after that are logged and left to
+ * finish in their own time; they do not start any more tests.
  */
 public class DefaultTestRunner extends TestRunner
 {
-    public synchronized boolean runTests(Iterator testIter)
+    public boolean runTests(Iterator testIter)
         throws InterruptedException
     {
-        this.testIter = testIter;
+        int concurrency = getConcurrency();
+        final BlockingQueue<Object> queue =
+            new ArrayBlockingQueue<Object>(concurrency * PREFETCH);
+        final int prio = Math.max(Thread.MIN_PRIORITY, Thread.currentThread().getPriority() - 1);
+        final Set<Thread> workerThreads = Collections.synchronizedSet(new HashSet<Thread>());
+
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread() {
+                            public void run() {
+                                try {
+                                    r.run();
+                                }
+                                finally {
+                                    workerThreads.remove(this);
+                                }
+                            }
+                        };
+                    t.setName("DefaultTestRunner:Worker-" + nextThreadNum());
+                    t.setPriority(prio);
+                    workerThreads.add(t);
+                    return t;
+                }
+            });
+
+        Worker[] workers = new Worker[concurrency];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(pool, queue);
+            pool.execute(workers[i]);
+        }
 
-        Thread[] threads = new Thread[getConcurrency()];
-        activeThreads = new HashSet();
         allPassed = true;
+        stopping = false;
+        long startTime = System.currentTimeMillis();
 
         try {
-            int n = 0;
-            while (!stopping) {
-                for (int i = 0; i < threads.length; i++) {
-                    Thread t = threads[i];
-                    if (t == null || !activeThreads.contains(t)) {
-                        int prio = Math.max(Thread.MIN_PRIORITY, Thread.currentThread().getPriority() - 1);
-                        t = new Thread() {
-                                public void run() {
-                                    try {
-                                        TestDescription td;
-                                        while ((td = nextTest()) != null) {
-                                            if (!runTest(td))
-                                                allPassed = false;
-                                        }
-                                    }
-                                    finally {
-                                        // Inform runner this thread is dying, so it can start another thread
-                                        // to replace it, if necessary.
-                                        threadExiting(this);
-                                    }
-                                }
-                            };
-                        t.setName("DefaultTestRunner:Worker-" + i + ":" + n++);
-                        t.start();
-                        t.setPriority(prio);
-                        activeThreads.add(t);
-                        threads[i] = t;
-                    }
+            while (!stopping && testIter.hasNext())
+                queue.put(testIter.next());
+
+            // tell each of the workers there are no more tests
+            for (int i = 0; i < workers.length; i++)
+                queue.put(END);
+
+            pool.shutdown();
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS))
+                ;
+        }
+        finally {
+            // if the run did not complete normally, for example because the
+            // thread has been interrupted, stop the workers before returning
+            if (!pool.isTerminated()) {
+                stopping = true;    // stop workers from starting any new tests
+                queue.clear();
+
+                // interrupt the worker threads
+                pool.shutdownNow();
+
+                // wait a short while (a couple of seconds) for tests to clean up
+                try {
+                    pool.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
                 }
-                wait();
-            }
-            // Wait for all the threads to finish so they don't get nuked by the
-            // finally code. Order is not important so just wait for them one at a time.
-            // Note we can't simply join with the thread because that gives a deadlock
-            // on our lock.
-            for (int i = 0; i < threads.length; i++) {
-                if (threads[i] != null) {
-                    while (activeThreads.contains(threads[i]))
-                        wait();
-                    threads[i] = null;
+                catch (InterruptedException e) {
                 }
+
+                // report any threads that are still running tests
+                Thread[] threads;
+                synchronized (workerThreads) {
+                    threads = workerThreads.toArray(new Thread[workerThreads.size()]);
+                }
+                for (int i = 0; i < threads.length; i++)
+                    getWorkDirectory().log(i18n, "dtr.workerNotStopped", new Object[] {
+                        threads[i].getName(), Integer.valueOf(STOP_TIMEOUT) });
             }
+
+            logUtilization(workers, System.currentTimeMillis() - startTime);
         }
-        catch (InterruptedException ex) {
-            // The thread has been interrupted
 
-            stopping = true;    // stop workers from starting any new tests
+        return allPassed;
+    }
 
-            // interrupt the worker threads
-            for (Iterator iter = activeThreads.iterator() ; iter.hasNext(); ) {
-                Thread t = (Thread) (iter.next());
-                t.interrupt();
-            }
+    /**
+     * A worker takes tests from the queue and runs them, until it is
+     * interrupted, or it finds the marker indicating there are no more tests.
+     * It records the number of tests it has run, and the time spent running them.
+     */
+    private class Worker implements Runnable {
+        Worker(ExecutorService pool, BlockingQueue<Object> queue) {
+            this.pool = pool;
+            this.queue = queue;
+        }
 
-            // while a short while (a couple of seconds) for tests to clean up
-            // before we nuke them
-            long now = System.currentTimeMillis();
+        public void run() {
             try {
-                while (activeThreads.size() > 0 && (System.currentTimeMillis() - now < 2000)) {
-                    wait(100);
+                Object o;
+                while (!stopping && (o = queue.take()) != END) {
+                    TestDescription td = (TestDescription) o;
+                    long start = System.currentTimeMillis();
+                    try {
+                        if (!runTest(td))
+                            allPassed = false;
+                    }
+                    catch (ThreadDeath e) {
+                        throw e;
+                    }
+                    catch (Throwable e) {
+                        // runTest deals with problems in the test itself, but
+                        // this worker must keep taking tests whatever happens,
+                        // or the thread filling the queue could wait forever
+                        allPassed = false;
+                        getWorkDirectory().log(i18n, "dtr.unexpectedThrowable", new Object[] {
+                            td.getRootRelativeURL(), e, classifyThrowable(e) });
+                    }
+                    finally {
+                        synchronized (this) {
+                            testCount++;
+                            busyTime += (System.currentTimeMillis() - start);
+                        }
+                    }
                 }
             }
             catch (InterruptedException e) {
+                // the run has been cancelled
             }
+            catch (ThreadDeath e) {
+                // the thread has been killed while running a test; continue
+                // running tests in another thread, if necessary
+                if (!stopping && !pool.isShutdown())
+                    pool.execute(this);
+                throw e;
+            }
+        }
 
-            // rethrow the original exception so the caller knows what's happened
-            throw ex;
+        synchronized int getTestCount() {
+            return testCount;
         }
-        finally {
-            // ensure all child threads killed
-            for (int i = 0; i < threads.length; i++) {
-                if (threads[i] != null)
-                    Deprecated.invokeThreadStop(threads[i]);
-            }
+
+        synchronized long getBusyTime() {
+            return busyTime;
         }
 
-        return allPassed;
+        private final ExecutorService pool;
+        private final BlockingQueue<Object> queue;
+        private int testCount;
+        private long busyTime;
     }
 
-    private synchronized void threadExiting(Thread t) {
-        activeThreads.remove(t);
-        notifyAll();
+    private void logUtilization(Worker[] workers, long elapsed) {
+        if (elapsed <= 0)
+            return;
+        WorkDirectory workDir = getWorkDirectory();
+        long totalBusy = 0;
+        for (int i = 0; i < workers.length; i++) {
+            Worker w = workers[i];
+            long busy = w.getBusyTime();
+            totalBusy += busy;
+            workDir.log(i18n, "dtr.workerUtilization", new Object[] {
+                Integer.valueOf(i), Integer.valueOf(w.getTestCount()), Long.valueOf(busy),
+                Integer.valueOf((int) (100 * busy / elapsed)) });
+        }
+        workDir.log(i18n, "dtr.utilization", new Object[] {
+            Integer.valueOf(workers.length), Long.valueOf(elapsed),
+            Integer.valueOf((int) (100 * totalBusy / (elapsed * workers.length))) });
     }
 
-    private synchronized TestDescription nextTest() {
-        if (stopping)
-            return null;
-
-        if (testIter.hasNext())
-            return (TestDescription) (testIter.next());
-        else {
-            stopping = true;
-            return null;
-        }
+    /* For autonumbering worker threads. */
+    private static int threadInitNumber;
+    private static synchronized int nextThreadNum() {
+        return threadInitNumber++;
     }
 
     private boolean runTest(TestDescription td) {
@@ -245,10 +328,18 @@ public class DefaultTestRunner extends TestRunner
     private static final Integer THROWABLE = new Integer(2);
 
 
-    private Iterator testIter;
-    private Set activeThreads;
-    private boolean allPassed;
-    private boolean stopping;
+    private volatile boolean allPassed;
+    private volatile boolean stopping;
+
+    // the number of tests to be read ahead from the iterator, per worker
+    private static final int PREFETCH = 2;
+
+    // the time, in milliseconds, that workers are given to finish
+    // after being interrupted
+    private static final int STOP_TIMEOUT = 2000;
+
+    // the marker placed on the queue when there are no more tests
+    private static final Object END = new Object();
 
     private static I18NResourceBundle i18n = I18NResourceBundle.getBundleForClass(DefaultTestRunner.class);
 }
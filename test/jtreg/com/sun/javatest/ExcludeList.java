@@ -106,20 +106,8 @@ public class ExcludeList
         throws FileNotFoundException, IOException, Fault
     {
         setStrictModeEnabled(strict);
-        if (f != null) {
-            BufferedReader in = new BufferedReader(new FileReader(f));
-            Parser p = new Parser(in);
-            try {
-                Entry e;
-                while ((e = p.readEntry()) != null)
-                    addEntry(e);
-            }
-            finally {
-                in.close();
-            }
-
-            title = p.getTitle();
-        }
+        if (f != null)
+            title = read(f);
     }
 
 
@@ -149,12 +137,50 @@ public class ExcludeList
      */
     public ExcludeList(File[] files, boolean strict)
         throws FileNotFoundException, IOException, Fault
+    {
+        this(files, strict, null);
+    }
+
+    /**
+     * Create an ExcludeList from the data contained in a series of files,
+     * using a compiled form of the list if one is available.
+     * If the index file contains a compiled form of the list that is
+     * up to date with respect to the given files, it is used instead of
+     * reading the files, and entries are looked up directly in the
+     * compiled form until the list is modified.
+     * Otherwise, the files are read, and the index file is updated.
+     * @param files The file to be read.
+     * @param strict Indicate if strict data checking rules should be used.
+     * @param indexFile A file in which to keep a compiled form of the list,
+     *   or null if none should be used.
+     * @throws FileNotFoundException if any of the files cannot be found
+     * @throws IOException if any problems occur while reading the files.
+     * @throws ExcludeList.Fault if the data in the files is ionconsistent
+     * @see #ExcludeList(File[], boolean)
+     */
+    public ExcludeList(File[] files, boolean strict, File indexFile)
+        throws FileNotFoundException, IOException, Fault
     {
         setStrictModeEnabled(strict);
+        if (indexFile != null) {
+            index = ExcludeListIndex.open(indexFile, files, strict);
+            if (index != null)
+                return;
+        }
+
         for (int i = 0; i < files.length; i++) {
-            ExcludeList et = new ExcludeList(files[i], strict);
-            merge(et);
+            if (i == 0) {
+                // no need to merge the first file: read it directly into the table
+                read(files[i]);
+            }
+            else {
+                ExcludeList et = new ExcludeList(files[i], strict);
+                merge(et);
+            }
         }
+
+        if (indexFile != null)
+            ExcludeListIndex.write(indexFile, files, strict, this);
     }
 
     /**
@@ -197,7 +223,7 @@ public class ExcludeList
      * @return <code>true</code> if the table contains an entry for this test.
      */
     public boolean excludesAllOf(String url) {
-        Object o = table.get(new Key(url));
+        Object o = lookup(url);
         return (o != null && o instanceof Entry && ((Entry)o).testCase == null);
     }
 
@@ -218,7 +244,7 @@ public class ExcludeList
      * @return <code>true</code> if the table contains an entry for this test.
      */
     public boolean excludesAnyOf(String url) {
-        Object o = table.get(new Key(url));
+        Object o = lookup(url);
         return (o != null);
     }
 
@@ -232,9 +258,9 @@ public class ExcludeList
      * a mix of single TC strings or a comma separated list of them.
      */
     public String[] getTestCases(TestDescription td) {
-        Key key = new Key(td.getRootRelativeURL());
+        String url = td.getRootRelativeURL();
         synchronized (table) {
-            Object o = table.get(key);
+            Object o = lookup(url);
             if (o == null)
                 // not found
                 return null;
@@ -265,6 +291,7 @@ public class ExcludeList
      */
     public void addEntry(Entry e) throws Fault {
         synchronized (table) {
+            expandIndex();
             Key key = new Key(e.relativeURL);
             Object o = table.get(key);
             if (o == null) {
@@ -370,8 +397,7 @@ public class ExcludeList
      */
     public Entry getEntry(String url, String testCase) {
         // XXX what if multiple entries?
-        Key key = new Key(url);
-        Object o = table.get(key);
+        Object o = lookup(url);
         if (o == null)
             return null;
         else if (o instanceof Entry) {
@@ -401,6 +427,7 @@ public class ExcludeList
      */
     public void merge(ExcludeList other) {
         synchronized (table) {
+            expandIndex();
             for (Iterator iter = other.getIterator(false); iter.hasNext(); ) {
                 Entry otherEntry = (Entry) (iter.next());
                 Key key = new Key(otherEntry.relativeURL);
@@ -484,6 +511,7 @@ public class ExcludeList
      */
     public void removeEntry(Entry e) {
         synchronized (table) {
+            expandIndex();
             Key key = new Key(e.relativeURL);
             Object o = table.get(key);
             if (o == null)
@@ -514,7 +542,8 @@ public class ExcludeList
      * @see #size
      */
     public boolean isEmpty() {
-        return table.isEmpty();
+        ExcludeListIndex ix = index;
+        return (ix == null ? table.isEmpty() : ix.size() == 0);
     }
 
     /**
@@ -523,6 +552,10 @@ public class ExcludeList
      * @see #isEmpty
      */
     public int size() {
+        ExcludeListIndex ix = index;
+        if (ix != null)
+            return ix.size();
+
         // ouch, this is now expensive to compute
         int n = 0;
         for (Iterator i = table.values().iterator(); i.hasNext(); ) {
@@ -548,6 +581,10 @@ public class ExcludeList
      * parameter.
      */
     public Iterator getIterator(boolean group) {
+        synchronized (table) {
+            expandIndex();
+        }
+
         if (group)
             return table.values().iterator();
         else {
@@ -575,7 +612,8 @@ public class ExcludeList
      * @see #setTitle
      */
     public String getTitle() {
-        return title;
+        ExcludeListIndex ix = index;
+        return (ix == null ? title : ix.getTitle());
     }
 
     /**
@@ -584,6 +622,9 @@ public class ExcludeList
      * @see #getTitle
      */
     public void setTitle(String title) {
+        synchronized (table) {
+            expandIndex();
+        }
         this.title = title;
     }
 
@@ -693,9 +734,58 @@ public class ExcludeList
         return false;
     }
 
+    /**
+     * Read the entries in an exclude file into the table.
+     * @return the title of the exclude file
+     */
+    private String read(File f)
+        throws FileNotFoundException, IOException, Fault
+    {
+        BufferedReader in = new BufferedReader(new FileReader(f));
+        Parser p = new Parser(in);
+        try {
+            Entry e;
+            while ((e = p.readEntry()) != null)
+                addEntry(e);
+        }
+        finally {
+            in.close();
+        }
+        return p.getTitle();
+    }
+
+    /**
+     * Find the entries for a test, either in the compiled form of the list,
+     * if there is one, or in the table.
+     */
+    private Object lookup(String url) {
+        ExcludeListIndex ix = index;
+        return (ix == null ? table.get(new Key(url)) : ix.get(url));
+    }
+
+    /**
+     * Copy the contents of the compiled form of the list, if any, into the
+     * table, so that the list can be modified or iterated over.
+     * Must be called while synchronized on the table.
+     */
+    private void expandIndex() {
+        ExcludeListIndex ix = index;
+        if (ix == null)
+            return;
+
+        for (Iterator iter = ix.iterator(); iter.hasNext(); ) {
+            Object o = iter.next();
+            Entry e = (o instanceof Entry ? (Entry) o : ((Entry[]) o)[0]);
+            table.put(new Key(e.relativeURL), o);
+        }
+        title = ix.getTitle();
+        index = null;
+    }
+
     private Map table = new HashMap();
     private String title;
     private boolean strict;
+    private volatile ExcludeListIndex index;
 
     private static final class Parser {
         Parser(Reader in) throws IOException {
@@ -865,29 +955,35 @@ public class ExcludeList
         private String title;
     };
 
-    private static class Key {
+    static class Key {
         Key(String url) {
             relativeURL = url;
         }
 
         public int hashCode() {
-            // the hashCode for a key is the hashcode of the normalized URL.
-            // The normalized URL is url.replace(File.separatorChar, '/').toLowerCase();
             int h = hash;
-            if (h == 0) {
-                int len = relativeURL.length();
-
-                for (int i = 0; i < len; i++) {
-                    char c = Character.toLowerCase(relativeURL.charAt(i));
-                    if (c == sep)
-                        c = '/';
-                    h = 31*h + c;
-                }
-                hash = h;
-            }
+            if (h == 0)
+                hash = h = hash(relativeURL);
             return h;
         }
 
+        /**
+         * Get the hashcode of a normalized URL.
+         * The normalized URL is url.replace(File.separatorChar, '/').toLowerCase();
+         */
+        static int hash(String url) {
+            int h = 0;
+            int len = url.length();
+            for (int i = 0; i < len; i++)
+                h = 31*h + normalize(url.charAt(i));
+            return h;
+        }
+
+        static char normalize(char c) {
+            c = Character.toLowerCase(c);
+            return (c == sep ? '/' : c);
+        }
+
         public boolean equals(Object o) {
             // Two keys are equal if their normalized URLs are equal.
             // The normalized URL is url.replace(File.separatorChar, '/').toLowerCase();
@@ -899,13 +995,7 @@ public class ExcludeList
             if (len != u2.length())
                 return false;
             for (int i = 0; i < len; i++) {
-                char c1 = Character.toLowerCase(u1.charAt(i));
-                if (c1 == sep)
-                    c1 = '/';
-                char c2 = Character.toLowerCase(u2.charAt(i));
-                if (c2 == sep)
-                    c2 = '/';
-                if (c1 != c2)
+                if (normalize(u1.charAt(i)) != normalize(u2.charAt(i)))
                     return false;
             }
             return true;
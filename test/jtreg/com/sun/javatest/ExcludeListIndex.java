@@ -0,0 +1,407 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.javatest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A compiled, read-only form of an exclude list, built from one or more
+ * exclude files. The compiled form records the size and modification time
+ * of each of the files from which it was built, and is only used while all
+ * of them are unchanged: the exclude files remain the master copy.
+ *
+ * The file is memory-mapped, and entries are located through an open-addressed
+ * hash table of record offsets, using the same normalized URL hash as
+ * {@link ExcludeList}, so that looking up a test which is not excluded
+ * does not create any objects. Entries are only decoded when they are found.
+ * The strings in the records, such as bug ids, platforms and synopses,
+ * are references into a shared pool in which each distinct string
+ * is stored once.
+ */
+class ExcludeListIndex
+{
+    /**
+     * Open the compiled form of an exclude list.
+     * @param file the file containing the compiled form
+     * @param sources the exclude files from which the list should have been built
+     * @param strict whether the list should have been built in strict mode
+     * @return the compiled list, or null if the file does not exist, cannot be
+     *  read, or is out of date with respect to the given exclude files
+     */
+    static ExcludeListIndex open(File file, File[] sources, boolean strict) {
+        if (!file.exists())
+            return null;
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int tableOffset;
+            String title;
+            int size;
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    return null;
+                tableOffset = in.readInt();
+                if (in.readBoolean() != strict)
+                    return null;
+                int n = in.readInt();
+                if (n != sources.length)
+                    return null;
+                for (int i = 0; i < n; i++) {
+                    File f = sources[i];
+                    if (!in.readUTF().equals(f.getAbsolutePath())
+                        || in.readLong() != f.length()
+                        || in.readLong() != f.lastModified())
+                        return null;
+                }
+                title = (in.readBoolean() ? in.readUTF() : null);
+                size = in.readInt();
+            }
+            finally {
+                in.close();
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel fc = raf.getChannel();
+                ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+                return new ExcludeListIndex(buf, tableOffset, title, size);
+            }
+            finally {
+                // the mapping remains valid after the file is closed
+                raf.close();
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+        catch (RuntimeException e) {
+            // e.g. a truncated or corrupt file
+            return null;
+        }
+    }
+
+    /**
+     * Write the compiled form of an exclude list. Any errors are ignored,
+     * since the exclude files can always be read instead.
+     * @param file the file in which to write the compiled form
+     * @param sources the exclude files from which the list was built
+     * @param strict whether the list was built in strict mode
+     * @param list the exclude list built from the exclude files
+     */
+    static void write(File file, File[] sources, boolean strict, ExcludeList list) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            ByteArrayOutputStream hdrBytes = new ByteArrayOutputStream();
+            DataOutputStream hdr = new DataOutputStream(hdrBytes);
+            hdr.writeBoolean(strict);
+            hdr.writeInt(sources.length);
+            for (int i = 0; i < sources.length; i++) {
+                File f = sources[i];
+                hdr.writeUTF(f.getAbsolutePath());
+                hdr.writeLong(f.length());
+                hdr.writeLong(f.lastModified());
+            }
+            String title = list.getTitle();
+            hdr.writeBoolean(title != null);
+            if (title != null)
+                hdr.writeUTF(title);
+            hdr.writeInt(list.size());
+            hdr.close();
+
+            int groups = 0;
+            for (Iterator iter = list.getIterator(true); iter.hasNext(); iter.next())
+                groups++;
+            int tableSize = 16;
+            while (tableSize < groups * 2)
+                tableSize <<= 1;
+            int[] table = new int[tableSize];
+
+            // record offsets are relative to the start of the table,
+            // so that 0 can be used to mark an empty slot
+            int recordsOffset = 8 + tableSize * 4;
+            ByteArrayOutputStream recBytes = new ByteArrayOutputStream();
+            DataOutputStream rec = new DataOutputStream(recBytes);
+            Pool pool = new Pool();
+            for (Iterator iter = list.getIterator(true); iter.hasNext(); ) {
+                Object o = iter.next();
+                ExcludeList.Entry[] entries = (o instanceof ExcludeList.Entry
+                                               ? new ExcludeList.Entry[] { (ExcludeList.Entry) o }
+                                               : (ExcludeList.Entry[]) o);
+                String url = entries[0].getRelativeURL();
+                int hash = ExcludeList.Key.hash(url);
+                int slot = hash & (tableSize - 1);
+                while (table[slot] != 0)
+                    slot = (slot + 1) & (tableSize - 1);
+                table[slot] = recordsOffset + rec.size();
+
+                rec.writeInt(hash);
+                rec.writeInt(pool.add(url));
+                rec.writeInt(entries.length);
+                for (int i = 0; i < entries.length; i++) {
+                    ExcludeList.Entry e = entries[i];
+                    rec.writeInt(pool.add(e.getTestCases()));
+                    writeStrings(rec, pool, e.getBugIdStrings());
+                    writeStrings(rec, pool, e.getPlatforms());
+                    rec.writeInt(pool.add(e.getSynopsis()));
+                }
+            }
+            rec.close();
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(12 + hdrBytes.size());
+                hdrBytes.writeTo(out);
+                out.writeInt(tableSize);
+                out.writeInt(recordsOffset + recBytes.size());
+                for (int i = 0; i < tableSize; i++)
+                    out.writeInt(table[i]);
+                recBytes.writeTo(out);
+                pool.writeTo(out);
+            }
+            finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                tmp.renameTo(file);
+            }
+        }
+        catch (IOException e) {
+            // ignore: the compiled form is just a cache
+        }
+        finally {
+            tmp.delete();
+        }
+    }
+
+    private ExcludeListIndex(ByteBuffer buf, int tableOffset, String title, int size) {
+        this.buf = buf;
+        this.tableOffset = tableOffset;
+        this.title = title;
+        this.size = size;
+        tableSize = buf.getInt(tableOffset);
+        if (tableSize <= 0 || (tableSize & (tableSize - 1)) != 0)
+            throw new IllegalArgumentException();
+        poolOffset = tableOffset + buf.getInt(tableOffset + 4);
+    }
+
+    /**
+     * Get the title of the exclude list.
+     * @return the title of the exclude list, or null if none
+     */
+    String getTitle() {
+        return title;
+    }
+
+    /**
+     * Get the number of entries in the exclude list.
+     * @return the number of entries in the exclude list
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the entries for a test.
+     * @param url the root-relative URL for the test
+     * @return null if there are no entries for the test, an
+     *  {@link ExcludeList.Entry Entry} if there is one entry,
+     *  or an array of entries if there is more than one
+     */
+    Object get(String url) {
+        int pos = find(url);
+        return (pos == -1 ? null : decode(pos));
+    }
+
+    /**
+     * Get all the entries in the exclude list.
+     * @return an iterator returning the entries in the exclude list, grouped
+     *  as for {@link #get}
+     */
+    Iterator iterator() {
+        return new Iterator() {
+            public boolean hasNext() {
+                while (slot < tableSize && getSlot(slot) == 0)
+                    slot++;
+                return (slot < tableSize);
+            }
+
+            public Object next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return decode(tableOffset + getSlot(slot++));
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private int slot;
+        };
+    }
+
+    private Object decode(int pos) {
+        String u = getString(buf.getInt(pos + 4));
+        int n = buf.getInt(pos + 8);
+        pos += 12;
+        ExcludeList.Entry[] entries = new ExcludeList.Entry[n];
+        for (int i = 0; i < n; i++) {
+            String testCase = getString(buf.getInt(pos));
+            pos += 4;
+            String[] bugIds = getStrings(pos);
+            pos += 4 + buf.getInt(pos) * 4;
+            String[] platforms = getStrings(pos);
+            pos += 4 + buf.getInt(pos) * 4;
+            String synopsis = getString(buf.getInt(pos));
+            pos += 4;
+            entries[i] = new ExcludeList.Entry(u, testCase, bugIds, platforms, synopsis);
+        }
+        return (n == 1 ? (Object) entries[0] : entries);
+    }
+
+    private int find(String url) {
+        int hash = ExcludeList.Key.hash(url);
+        int mask = tableSize - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int off = getSlot(slot);
+            if (off == 0)
+                return -1;
+            int pos = tableOffset + off;
+            if (buf.getInt(pos) == hash && urlEquals(buf.getInt(pos + 4), url))
+                return pos;
+        }
+    }
+
+    private int getSlot(int slot) {
+        return buf.getInt(tableOffset + 8 + slot * 4);
+    }
+
+    private boolean urlEquals(int ref, String url) {
+        int pos = poolOffset + ref;
+        int len = buf.getInt(pos);
+        if (len != url.length())
+            return false;
+        pos += 4;
+        for (int i = 0; i < len; i++) {
+            if (ExcludeList.Key.normalize(buf.getChar(pos + i * 2))
+                != ExcludeList.Key.normalize(url.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private String getString(int ref) {
+        if (ref == -1)
+            return null;
+        int pos = poolOffset + ref;
+        int len = buf.getInt(pos);
+        char[] cc = new char[len];
+        pos += 4;
+        for (int i = 0; i < len; i++)
+            cc[i] = buf.getChar(pos + i * 2);
+        return new String(cc);
+    }
+
+    private String[] getStrings(int pos) {
+        int n = buf.getInt(pos);
+        pos += 4;
+        String[] ss = new String[n];
+        for (int i = 0; i < n; i++)
+            ss[i] = getString(buf.getInt(pos + i * 4));
+        return ss;
+    }
+
+    private static void writeStrings(DataOutputStream out, Pool pool, String[] ss) throws IOException {
+        out.writeInt(ss.length);
+        for (int i = 0; i < ss.length; i++)
+            out.writeInt(pool.add(ss[i]));
+    }
+
+    /**
+     * The pool of distinct strings, used while writing the compiled form.
+     * Each string is written as its length followed by its characters.
+     */
+    private static class Pool {
+        int add(String s) {
+            if (s == null)
+                return -1;
+            Integer ref = (Integer) refs.get(s);
+            if (ref == null) {
+                ref = Integer.valueOf(bytes.size());
+                refs.put(s, ref);
+                int len = s.length();
+                byte[] b = new byte[4 + len * 2];
+                b[0] = (byte) (len >>> 24);
+                b[1] = (byte) (len >>> 16);
+                b[2] = (byte) (len >>> 8);
+                b[3] = (byte) len;
+                for (int i = 0; i < len; i++) {
+                    char c = s.charAt(i);
+                    b[4 + i * 2] = (byte) (c >>> 8);
+                    b[5 + i * 2] = (byte) c;
+                }
+                bytes.write(b, 0, b.length);
+            }
+            return ref.intValue();
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            bytes.writeTo(out);
+        }
+
+        private Map refs = new HashMap();
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    }
+
+    private final ByteBuffer buf;
+    private final int tableOffset;
+    private final int tableSize;
+    private final int poolOffset;
+    private final String title;
+    private final int size;
+
+    private static final int MAGIC = 0x4A54584C; // "JTXL"
+    private static final int VERSION = 1;
+}
@@ -28,7 +28,13 @@ package com.sun.javatest;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import com.sun.javatest.httpd.HttpdServer;
 import com.sun.javatest.httpd.RootRegistry;
@@ -552,6 +558,35 @@ public class Harness
         return autostopThreshold;
     }
 
+    /**
+     * Specify whether the tests expected to take longest should be run first.
+     * The time each test takes to execute is recorded in the work directory,
+     * and used to estimate how long the test will take the next time it is
+     * run. Running the longest tests first reduces the time at the end of
+     * a concurrent test run when some threads are idle while others are still
+     * running long tests.  However, all the tests to be run must be found
+     * before the first one can be started.
+     * This value must be set before the run begins.
+     * The default value is given by the system property
+     * "javatest.schedule.longestFirst".
+     * @param b true if the tests expected to take longest should be run first,
+     * and false if the tests should be run in the order they are found
+     * @see #isLongestTestsFirst
+     */
+    public void setLongestTestsFirst(boolean b) {
+        longestTestsFirst = b;
+    }
+
+    /**
+     * Check whether the tests expected to take longest will be run first.
+     * @return true if the tests expected to take longest will be run first,
+     * and false if the tests will be run in the order they are found
+     * @see #setLongestTestsFirst
+     */
+    public boolean isLongestTestsFirst() {
+        return longestTestsFirst;
+    }
+
     /**
      * Start a worker thread going to perform run tests asynchronously.
      */
@@ -708,13 +743,18 @@ public class Harness
 
         r.setNotifier(notifier);
 
+        durations = new TestDurations(workDir);
+        final Iterator schedIter = (longestTestsFirst
+                                    ? getLongestFirstIterator(raTestIter, durations)
+                                    : raTestIter);
+
         try {
             ok = r.runTests(new Iterator() {
                     public boolean hasNext() {
-                        return (stopping ? false : raTestIter.hasNext());
+                        return (stopping ? false : schedIter.hasNext());
                     }
                     public Object next() {
-                        TestResult tr = (TestResult) (raTestIter.next());
+                        TestResult tr = (TestResult) (schedIter.next());
                         try {
                             return tr.getDescription();
                         }
@@ -734,6 +774,11 @@ public class Harness
 
         finishTime = System.currentTimeMillis();
 
+        durations.save();
+
+        // force out any results not yet written to the storage device
+        workDir.syncResults();
+
         notifier.finishedTesting();
 
         // calculate number of tests executed
@@ -777,6 +822,29 @@ public class Harness
     }
 
 
+    /**
+     * Read all the tests from an iterator, and return an iterator that
+     * gives them in order of decreasing estimated execution time.
+     * Tests with the same estimate are given in the order they were found.
+     */
+    private static Iterator getLongestFirstIterator(Iterator iter, final TestDurations durations) {
+        List list = new ArrayList();
+        final Map estimates = new HashMap();
+        while (iter.hasNext()) {
+            TestResult tr = (TestResult) (iter.next());
+            list.add(tr);
+            estimates.put(tr, Long.valueOf(durations.getEstimate(tr)));
+        }
+        Collections.sort(list, new Comparator() {
+                public int compare(Object o1, Object o2) {
+                    long e1 = ((Long) (estimates.get(o1))).longValue();
+                    long e2 = ((Long) (estimates.get(o2))).longValue();
+                    return (e1 > e2 ? -1 : e1 < e2 ? 1 : 0);
+                }
+            });
+        return list.iterator();
+    }
+
     private void notifyError(I18NResourceBundle i18n, String key) {
         notifyLocalizedError(i18n.getString(key));
     }
@@ -812,6 +880,8 @@ public class Harness
     private TestResultTable.TreeIterator testIter;
     private int readAheadMode = ReadAheadIterator.FULL;
     private ReadAheadIterator raTestIter;
+    private TestDurations durations;
+    private boolean longestTestsFirst = Boolean.getBoolean("javatest.schedule.longestFirst");
     private int numTestsDone;
     private TestEnvironment env;
     private TestResultTable resultTable;
@@ -859,6 +929,7 @@ public class Harness
         public void finishedTest(TestResult tr) {
             numTestsDone++;
             resultTable.update(tr);
+            durations.record(tr);
             // protect against removing observers during notification
             Observer[] stableObservers = observers;
             for (int i = stableObservers.length - 1; i >= 0; i--)
@@ -29,6 +29,7 @@ package com.sun.javatest;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import com.sun.javatest.util.I18NResourceBundle;
 import com.sun.javatest.util.StringArray;
 
@@ -161,6 +162,90 @@ public abstract class Keywords
      */
     public abstract boolean accepts(Set s);
 
+    /**
+     * Check if this keywords object accepts, or matches, the keywords
+     * of a test description, as given by
+     * {@link TestDescription#getKeywordTable}.
+     * The keywords objects created by {@link #create create} evaluate
+     * this against a precomputed bit set of the test's keywords, without
+     * creating a new set for each test.
+     *
+     * @param td The test description whose keywords should be checked.
+     * @return true if the keywords of the test description are compatible
+     * with this keywords object.
+     */
+    public boolean accepts(TestDescription td) {
+        return accepts(td.getKeywordTable());
+    }
+
+    /**
+     * Get the id for a keyword. Ids are allocated sequentially, the first
+     * time each keyword is seen, and are used as bit indices in the bit sets
+     * returned by {@link TestDescription#getKeywordBits}.
+     * @param word a keyword, in canonical (lower-case) form
+     * @return the id for the keyword
+     */
+    static int getKeywordId(String word) {
+        Integer id = (Integer) keywordIds.get(word);
+        if (id == null) {
+            synchronized (keywordIds) {
+                id = (Integer) keywordIds.get(word);
+                if (id == null) {
+                    id = Integer.valueOf(keywordIds.size());
+                    keywordIds.put(word, id);
+                }
+            }
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Get a bit set containing the ids of a set of keywords.
+     * @param words the keywords, in any case
+     * @return a bit set, indexed by keyword id
+     * @see #getKeywordId
+     */
+    static long[] getKeywordBits(String[] words) {
+        if (words.length == 0)
+            return NO_BITS;
+
+        int[] ids = new int[words.length];
+        int max = 0;
+        for (int i = 0; i < words.length; i++) {
+            ids[i] = getKeywordId(words[i].toLowerCase());
+            max = Math.max(max, ids[i]);
+        }
+
+        long[] bits = new long[(max >> 6) + 1];
+        for (int i = 0; i < ids.length; i++)
+            bits[ids[i] >> 6] |= (1L << ids[i]);
+        return bits;
+    }
+
+    /**
+     * Check if a bit set contains all the bits of a mask.
+     */
+    static boolean containsAll(long[] bits, long[] mask) {
+        for (int i = 0; i < mask.length; i++) {
+            long b = (i < bits.length ? bits[i] : 0);
+            if ((b & mask[i]) != mask[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check if a bit set contains any of the bits of a mask.
+     */
+    static boolean containsAny(long[] bits, long[] mask) {
+        int n = Math.min(bits.length, mask.length);
+        for (int i = 0; i < n; i++) {
+            if ((bits[i] & mask[i]) != 0)
+                return true;
+        }
+        return false;
+    }
+
     private static Set toLowerCase(Set words) {
         if (words == null)
             return null;
@@ -191,6 +276,9 @@ public abstract class Keywords
         return true;
     }
 
+    private static final ConcurrentHashMap keywordIds = new ConcurrentHashMap();
+    private static final long[] NO_BITS = new long[0];
+
     static I18NResourceBundle i18n = I18NResourceBundle.getBundleForClass(Keywords.class);
 
 }
@@ -209,6 +297,7 @@ class AllKeywords extends Keywords
             if (validKeywords != null && !validKeywords.contains(this.keys[i]))
                 throw new Keywords.Fault(i18n, "kw.invalidKeyword", keys[i]);
         }
+        mask = getKeywordBits(this.keys);
     }
 
     public boolean accepts(Set s) {
@@ -218,6 +307,10 @@ class AllKeywords extends Keywords
         return true;
     }
 
+    public boolean accepts(TestDescription td) {
+        return containsAll(td.getKeywordBits(), mask);
+    }
+
     public boolean equals(Object o) {
         if (!(o instanceof AllKeywords))
             return false;
@@ -237,6 +330,7 @@ class AllKeywords extends Keywords
     }
 
     private String[] keys;
+    private long[] mask;
 }
 
 //------------------------------------------------------------------------------
@@ -253,6 +347,7 @@ class AnyKeywords extends Keywords
             if (validKeywords != null && !validKeywords.contains(this.keys[i]))
                 throw new Keywords.Fault(i18n, "kw.invalidKeyword", keys[i]);
         }
+        mask = getKeywordBits(this.keys);
     }
 
     public boolean accepts(Set s) {
@@ -262,6 +357,10 @@ class AnyKeywords extends Keywords
         return false;
     }
 
+    public boolean accepts(TestDescription td) {
+        return containsAny(td.getKeywordBits(), mask);
+    }
+
     public boolean equals(Object o) {
         if (!(o instanceof AnyKeywords))
             return false;
@@ -282,6 +381,7 @@ class AnyKeywords extends Keywords
     }
 
     private String[] keys;
+    private long[] mask;
 }
 
 //------------------------------------------------------------------------------
@@ -410,6 +510,15 @@ class ExprParser {
 
 abstract class ExprKeywords extends Keywords
 {
+    public boolean accepts(TestDescription td) {
+        return accepts(td.getKeywordBits());
+    }
+
+    /**
+     * Evaluate this expression against a bit set of keyword ids.
+     * @see TestDescription#getKeywordBits
+     */
+    abstract boolean accepts(long[] bits);
 
     abstract int precedence();
 
@@ -453,6 +562,10 @@ class AndExprKeywords extends BinaryExprKeywords
         return (left.accepts(s) && right.accepts(s));
     }
 
+    boolean accepts(long[] bits) {
+        return (left.accepts(bits) && right.accepts(bits));
+    }
+
     public boolean equals(Object o) {
         if (!(o instanceof AndExprKeywords))
             return false;
@@ -482,6 +595,10 @@ class NotExprKeywords extends ExprKeywords
         return !expr.accepts(s);
     }
 
+    boolean accepts(long[] bits) {
+        return !expr.accepts(bits);
+    }
+
     public boolean equals(Object o) {
         if (!(o instanceof NotExprKeywords))
             return false;
@@ -513,6 +630,10 @@ class OrExprKeywords extends BinaryExprKeywords
         return (left.accepts(s) || right.accepts(s));
     }
 
+    boolean accepts(long[] bits) {
+        return (left.accepts(bits) || right.accepts(bits));
+    }
+
     public boolean equals(Object o) {
         if (!(o instanceof OrExprKeywords))
             return false;
@@ -543,6 +664,10 @@ class ParenExprKeywords extends ExprKeywords
         return expr.accepts(s);
     }
 
+    boolean accepts(long[] bits) {
+        return expr.accepts(bits);
+    }
+
     public boolean equals(Object o) {
         if (!(o instanceof ParenExprKeywords))
             return false;
@@ -568,12 +693,19 @@ class TermExprKeywords extends ExprKeywords
 {
     TermExprKeywords(String key) {
         this.key = key;
+        int id = getKeywordId(key);
+        word = id >> 6;
+        bit = 1L << id;
     }
 
     public boolean accepts(Set s) {
         return (s.contains(key));
     }
 
+    boolean accepts(long[] bits) {
+        return (word < bits.length && (bits[word] & bit) != 0);
+    }
+
     public boolean equals(Object o) {
         if (!(o instanceof TermExprKeywords))
             return false;
@@ -592,4 +724,6 @@ class TermExprKeywords extends ExprKeywords
     }
 
     private String key;
+    private int word;
+    private long bit;
 }
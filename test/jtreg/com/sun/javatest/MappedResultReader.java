@@ -0,0 +1,299 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.javatest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A reader for the contents of a result (.jtr) file, that reads the bytes
+ * of the file directly, and which keeps track of its position in the file.
+ * This allows the output sections of a result file to be indexed while the
+ * file is being read, so that the output itself need only be read and
+ * decoded if and when it is actually required.
+ *
+ * Result files written by JT Harness are pure ASCII, since any other
+ * characters in test output are written as escapes. This reader can
+ * therefore only be used if the default encoding (used when the file
+ * is read with a FileReader) maps ASCII bytes onto the equivalent
+ * characters, and it rejects files containing any other bytes with
+ * {@link UnsupportedContentException}, in which case the file should be
+ * read in the conventional manner instead.
+ *
+ * Larger files are memory mapped; smaller files, and all files on Windows
+ * (where a mapped file cannot be overwritten until the mapping has been
+ * garbage collected) are read into memory instead.
+ */
+class MappedResultReader extends BufferedReader
+{
+    /**
+     * This exception is thrown if the content of a file cannot be read
+     * by this class.
+     */
+    static class UnsupportedContentException extends IOException {
+        UnsupportedContentException(String msg) {
+            super(msg);
+        }
+
+        private static final long serialVersionUID = -8225209028733822342L;
+    }
+
+    /**
+     * Check whether this class may be used to read result files.
+     * It may be disabled by setting the system property
+     * "javatest.results.lazyOutput" to false.
+     * @return true if this class may be used to read result files
+     */
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Create a reader for the entire content of a file.
+     * @param file the file to be read
+     * @throws java.io.FileNotFoundException if the file cannot be opened
+     * @throws MappedResultReader.UnsupportedContentException if the file
+     * contains bytes that cannot be read by this class
+     * @throws IOException if there is a problem reading the file
+     */
+    MappedResultReader(File file) throws IOException {
+        this(file, 0, -1);
+    }
+
+    /**
+     * Create a reader for part of the content of a file.
+     * @param file the file to be read
+     * @param offset the offset of the first byte to be read
+     * @param length the number of bytes to be read
+     * @throws java.io.FileNotFoundException if the file cannot be opened
+     * @throws MappedResultReader.UnsupportedContentException if the file
+     * contains bytes that cannot be read by this class
+     * @throws IOException if there is a problem reading the file
+     */
+    MappedResultReader(File file, int offset, int length) throws IOException {
+        super(new StringReader(""), 1);
+        this.file = file;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE)
+                throw new UnsupportedContentException("file too large: " + file);
+            fileLength = size;
+            fileLastModified = file.lastModified();
+
+            if (length == -1)
+                length = (int) size;
+            if (offset + length > size)
+                throw new UnsupportedContentException("file truncated: " + file);
+
+            if (length >= MAP_THRESHOLD && !isWindows)
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            else {
+                buf = ByteBuffer.allocate(length);
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf, offset + buf.position()) == -1)
+                        throw new UnsupportedContentException("file truncated: " + file);
+                }
+            }
+        }
+        finally {
+            raf.close();
+        }
+
+        base = offset;
+        limit = length;
+
+        for (int i = 0; i < limit; i++) {
+            if (buf.get(i) < 0)
+                throw new UnsupportedContentException("non-ASCII content: " + file);
+        }
+    }
+
+    /**
+     * Get the file being read.
+     * @return the file being read
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the length of the file, when it was opened by this reader.
+     * @return the length of the file
+     */
+    long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * Get the time the file was last modified, when it was opened by this reader.
+     * @return the time the file was last modified
+     */
+    long getFileLastModified() {
+        return fileLastModified;
+    }
+
+    /**
+     * Get the offset within the file of the next character to be read.
+     * @return the offset within the file of the next character to be read
+     */
+    int getPosition() {
+        return base + pos;
+    }
+
+    /**
+     * Get the character at a given offset within the file, without
+     * changing the position of the reader.
+     * @param offset the offset within the file of the character
+     * @return the character, or -1 if the offset is outside the
+     * content being read
+     */
+    int charAt(int offset) {
+        int i = offset - base;
+        return (i >= 0 && i < limit ? buf.get(i) : -1);
+    }
+
+    public int read() throws IOException {
+        checkOpen();
+        return (pos < limit ? buf.get(pos++) : -1);
+    }
+
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        checkOpen();
+        if (len == 0)
+            return 0;
+        if (pos >= limit)
+            return -1;
+        int n = Math.min(len, limit - pos);
+        for (int i = 0; i < n; i++)
+            cbuf[off + i] = (char) buf.get(pos++);
+        return n;
+    }
+
+    public String readLine() throws IOException {
+        checkOpen();
+        if (pos >= limit)
+            return null;
+
+        int start = pos;
+        int end;
+        while (true) {
+            if (pos == limit) {
+                end = pos;
+                break;
+            }
+            byte b = buf.get(pos);
+            if (b == '\n' || b == '\r') {
+                end = pos++;
+                if (b == '\r' && pos < limit && buf.get(pos) == '\n')
+                    pos++;
+                break;
+            }
+            pos++;
+        }
+
+        char[] line = new char[end - start];
+        for (int i = 0; i < line.length; i++)
+            line[i] = (char) buf.get(start + i);
+        return new String(line);
+    }
+
+    public long skip(long n) throws IOException {
+        checkOpen();
+        if (n < 0)
+            throw new IllegalArgumentException("skip value is negative");
+        int k = (int) Math.min(n, limit - pos);
+        pos += k;
+        return k;
+    }
+
+    public boolean ready() throws IOException {
+        checkOpen();
+        return (pos < limit);
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    public void mark(int readAheadLimit) throws IOException {
+        throw new IOException("mark() not supported");
+    }
+
+    public void reset() throws IOException {
+        throw new IOException("reset() not supported");
+    }
+
+    public void close() {
+        buf = null;
+    }
+
+    private void checkOpen() throws IOException {
+        if (buf == null)
+            throw new IOException("Stream closed");
+    }
+
+    private final File file;
+    private final long fileLength;
+    private final long fileLastModified;
+    private final int base;
+    private final int limit;
+    private ByteBuffer buf;
+    private int pos;
+
+    private static final int MAP_THRESHOLD = 64 * 1024;
+    private static final boolean isWindows =
+        System.getProperty("os.name", "").startsWith("Windows");
+    private static final boolean enabled = initEnabled();
+
+    private static boolean initEnabled() {
+        String p = System.getProperty("javatest.results.lazyOutput");
+        if (p != null && !p.equalsIgnoreCase("true"))
+            return false;
+
+        // FileReader uses the default encoding; check that it maps
+        // ASCII bytes directly onto the equivalent characters
+        byte[] bytes = new byte[128];
+        char[] chars = new char[128];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+            chars[i] = (char) i;
+        }
+        try {
+            return new String(bytes).equals(new String(chars));
+        }
+        catch (RuntimeException e) {
+            return false;
+        }
+    }
+}
@@ -28,6 +28,7 @@ package com.sun.javatest;
 
 import java.io.PrintWriter;
 import java.util.Iterator;
+import java.util.Vector;
 
 import com.sun.javatest.httpd.httpURL;
 import com.sun.javatest.httpd.JThttpProvider;
@@ -37,6 +38,20 @@ import com.sun.javatest.util.I18NResourceBundle;
 
 /*
  * HTTP service provider for TestResultTable.
+ * The test listing is paginated, and is also available as JSON, for
+ * the benefit of tools that poll the state of a run:
+ * <dl>
+ * <dt>/trt/<i>n</i>/tests
+ * <dd>an HTML page listing tests
+ * <dt>/trt/<i>n</i>/json
+ * <dd>the size of the table and the number of tests with each status
+ * <dt>/trt/<i>n</i>/json/tests
+ * <dd>a JSON list of tests
+ * </dl>
+ * The listings accept the query parameters <code>start</code> and
+ * <code>count</code> to select a range of tests, and <code>status</code>
+ * (one of passed, failed, error or notRun) to select only tests with
+ * that status.
  */
 class TRT_HttpHandler extends JThttpProvider {
     TRT_HttpHandler(TestResultTable trt, String url, int instanceNum) {
@@ -47,6 +62,12 @@ class TRT_HttpHandler extends JThttpProvider {
     public void serviceRequest(httpURL requestURL, PrintWriter out) {
         String nf = requestURL.getNextFile();
 
+        if (nf != null && nf.equals("json")) {
+            serviceJSONRequest(requestURL, out);
+            out.close();
+            return;
+        }
+
         // start the document
         if (nf == null) {
             beginGood(out);
@@ -54,7 +75,7 @@ class TRT_HttpHandler extends JThttpProvider {
 
             printIndex(out);
         }
-        else if (nf.equals("tests")) {
+        else if (nf.equals("tests") && getStatusParam(requestURL) != BAD_STATUS) {
             beginGood(out);
             PageGenerator.writeBeginDoc(out);
             printTests(requestURL, out);
@@ -111,13 +132,37 @@ class TRT_HttpHandler extends JThttpProvider {
         out.println("<hr Width=\"40%\" Align=left>");
 
         out.println("<p>");
-        writeTests(out, i18n.getString("trtHttp.tests.name"),
+        writeTests(out, url, i18n.getString("trtHttp.tests.name"),
                    i18n.getString("trtHttp.tests.status"));
     }
 
-    public void writeTests(PrintWriter out, String keyHeader, String valHeader) {
-        // XXX should include HTML filtering of strings
-        // this is a custom version of the code found in PageGenerator
+    private void writeTests(PrintWriter out, httpURL url, String keyHeader, String valHeader) {
+        int start = getIntParam(url, "start", 0, 0, Integer.MAX_VALUE);
+        int count = getIntParam(url, "count", PAGE_SIZE, 1, MAX_PAGE_SIZE);
+        int status = getStatusParam(url);
+        Vector tests = getTests(start, count, status);
+        boolean more = (tests.size() > count);
+        if (more)
+            tests.setSize(count);
+
+        // navigation
+        if (tests.size() == 0)
+            print(out, i18n.getString("trtHttp.tests.none"));
+        else
+            print(out, i18n.getString("trtHttp.tests.range",
+                                      new Object[] { Integer.valueOf(start + 1),
+                                                     Integer.valueOf(start + tests.size()) }));
+        if (start > 0) {
+            out.print(" ");
+            printPageLink(out, Math.max(0, start - count), count, status,
+                          i18n.getString("trtHttp.tests.prev"));
+        }
+        if (more) {
+            out.print(" ");
+            printPageLink(out, start + count, count, status,
+                          i18n.getString("trtHttp.tests.next"));
+        }
+        out.println("<p>");
 
         out.println("<Table Border>");
 
@@ -131,42 +176,180 @@ class TRT_HttpHandler extends JThttpProvider {
         buf.append("</tr>");
         out.println(buf.toString());
 
-        /*
-        if (dict == null || dict.size() == 0) {
-            // no values to write, fill the space
+        for (int i = 0; i < tests.size(); i++) {
+            TestResult tr = (TestResult) (tests.elementAt(i));
             buf.setLength(0);
-            buf.append("<tr><td colspan=2>");
-            buf.append("-EMPTY-");
+            buf.append("<tr><td>");
+            buf.append(filterTags(tr.getTestName()));
+            buf.append("<td>");
+            buf.append(filterTags(tr.getStatus().toString()));
             buf.append("</tr>");
+            out.println(buf.toString());
+        }
+
+        out.println("</Table>");
+    }
+
+    private void printPageLink(PrintWriter out, int start, int count, int status, String text) {
+        out.print("<a href=\"/trt/");
+        out.print(Integer.toString(instanceNum));
+        out.print("/tests?start=");
+        out.print(Integer.toString(start));
+        out.print("&count=");
+        out.print(Integer.toString(count));
+        if (status != ANY_STATUS) {
+            out.print("&status=");
+            out.print(STATUS_NAMES[status]);
+        }
+        out.print("\">");
+        print(out, text);
+        out.print("</a>");
+    }
+
+    private void serviceJSONRequest(httpURL url, PrintWriter out) {
+        String nf = url.getNextFile();
+        int status = getStatusParam(url);
+
+        if (nf == null) {
+            PageGenerator.generateOkHttp(out, PageGenerator.CONTENT_JSON);
+            writeJSONSummary(out);
+        }
+        else if (nf.equals("tests") && status != BAD_STATUS) {
+            PageGenerator.generateOkHttp(out, PageGenerator.CONTENT_JSON);
+            int start = getIntParam(url, "start", 0, 0, Integer.MAX_VALUE);
+            int count = getIntParam(url, "count", PAGE_SIZE, 1, MAX_PAGE_SIZE);
+            writeJSONTests(out, start, count, status);
         }
         else {
-            */
-            Iterator it = trt.getIterator();
-            while (it.hasNext()) {
-                TestResult tr = (TestResult)(it.next());
-                String url;
-                try {
-                    url = tr.getDescription().getRootRelativeURL();
-                }
-                catch(TestResult.Fault f) {
-                    out.println("<tr><td>Unable to get TestResult info, aborting.</tr>");
-                    if (debug) f.printStackTrace();
-                    // exit the while loop
-                    break;
+            if (debug)
+                Debug.println("TRT.HH-remainder of JSON URL unknown (" + nf + ")");
+            PageGenerator.generateBadHttp(out);
+            out.println();
+        }
+    }
+
+    private void writeJSONSummary(PrintWriter out) {
+        out.print("{\"workDir\":");
+        writeJSONString(out, (trt.getWorkDirectory() == null ? null : trt.getWorkDirectory().getPath()));
+        out.print(",\"size\":");
+        out.print(trt.size());
+        out.print(",\"status\":{");
+        TestResultTable.TreeNode root = trt.getRoot();
+        int[] stats = (root == null ? new int[Status.NUM_STATES] : root.getChildStatus());
+        for (int i = 0; i < STATUS_NAMES.length; i++) {
+            if (i > 0)
+                out.print(",");
+            out.print("\"");
+            out.print(STATUS_NAMES[i]);
+            out.print("\":");
+            out.print(stats[i]);
+        }
+        out.println("}}");
+    }
+
+    private void writeJSONTests(PrintWriter out, int start, int count, int status) {
+        Vector tests = getTests(start, count, status);
+        boolean more = (tests.size() > count);
+        if (more)
+            tests.setSize(count);
+
+        out.print("{\"start\":");
+        out.print(start);
+        out.print(",\"count\":");
+        out.print(tests.size());
+        out.print(",\"more\":");
+        out.print(more);
+        out.println(",\"tests\":[");
+        for (int i = 0; i < tests.size(); i++) {
+            TestResult tr = (TestResult) (tests.elementAt(i));
+            Status s = tr.getStatus();
+            out.print("{\"name\":");
+            writeJSONString(out, tr.getTestName());
+            out.print(",\"status\":\"");
+            out.print(STATUS_NAMES[s.getType()]);
+            out.print("\",\"reason\":");
+            writeJSONString(out, s.getReason());
+            out.println(i + 1 < tests.size() ? "}," : "}");
+        }
+        out.println("]}");
+    }
+
+    private static void writeJSONString(PrintWriter out, String s) {
+        if (s == null) {
+            out.print("null");
+            return;
+        }
+
+        StringBuffer sb = new StringBuffer(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':  sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n");  break;
+            case '\r': sb.append("\\r");  break;
+            case '\t': sb.append("\\t");  break;
+            default:
+                if (c < 0x20 || c > 0x7e) {
+                    // escape non-ASCII, so the result does not depend on the encoding
+                    String hex = Integer.toHexString(c);
+                    sb.append("\\u");
+                    for (int j = hex.length(); j < 4; j++)
+                        sb.append('0');
+                    sb.append(hex);
                 }
+                else
+                    sb.append(c);
+            }
+        }
+        sb.append('"');
+        out.print(sb.toString());
+    }
 
-                out.println("<tr>");
-                buf.setLength(0);
-                buf.append("<td>");
-                buf.append(url);
-                buf.append("<td>");
-                buf.append(tr.getStatus().toString());
-                out.println(buf.toString());
-                out.println("</tr>");
-            }   // while
-        //}
+    /**
+     * Get the tests in a given range, in the order given by the table's
+     * iterator, counting only those with a given status.
+     * One more test than requested is returned if there is one, so that
+     * the caller can tell if there are further tests.
+     */
+    private Vector getTests(int start, int count, int status) {
+        Vector v = new Vector();
+        int index = 0;
+        Iterator it = trt.getIterator();
+        while (it.hasNext() && v.size() <= count) {
+            TestResult tr = (TestResult) (it.next());
+            if (status != ANY_STATUS && tr.getStatus().getType() != status)
+                continue;
+            if (index++ >= start)
+                v.addElement(tr);
+        }
+        return v;
+    }
 
-        out.println("</Table>");
+    private static int getIntParam(httpURL url, String name, int dflt, int min, int max) {
+        String s = url.getValue(name);
+        if (s == null)
+            return dflt;
+
+        try {
+            return Math.max(min, Math.min(max, Integer.parseInt(s)));
+        }
+        catch (NumberFormatException e) {
+            return dflt;
+        }
+    }
+
+    private static int getStatusParam(httpURL url) {
+        String s = url.getValue("status");
+        if (s == null)
+            return ANY_STATUS;
+
+        for (int i = 0; i < STATUS_NAMES.length; i++) {
+            if (STATUS_NAMES[i].equalsIgnoreCase(s))
+                return i;
+        }
+        return BAD_STATUS;
     }
 
     private void printStats(PrintWriter out) {
@@ -205,6 +388,17 @@ class TRT_HttpHandler extends JThttpProvider {
     private int instanceNum;
     private String file;
 
+    /**
+     * The default and maximum number of tests in a listing.
+     */
+    private static final int PAGE_SIZE = 500;
+    private static final int MAX_PAGE_SIZE = 10000;
+
+    // names for the status types, indexed by Status.PASSED etc
+    private static final String[] STATUS_NAMES = { "passed", "failed", "error", "notRun" };
+    private static final int ANY_STATUS = -1;
+    private static final int BAD_STATUS = -2;
+
     private static I18NResourceBundle i18n = I18NResourceBundle.getBundleForClass(TRT_HttpHandler.class);
     private static boolean debug = Debug.getBoolean(TRT_HttpHandler.class);
 }
@@ -27,8 +27,13 @@
 package com.sun.javatest;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import com.sun.javatest.util.Debug;
 import com.sun.javatest.util.DynamicArray;
@@ -81,7 +86,7 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
     public int getSize() {
         scanSubtree(this);
 
-        return counter;
+        return counter.get();
     }
 
     public TestResultTable.TreeNode getParent() {
@@ -112,8 +117,7 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
     public int getChildCount() {
         scanIfNeeded();
 
-        if (childs == null) return 0;
-        else return childs.length;
+        return childCount;
     }
 
     public Object getChild(int index) {
@@ -134,26 +138,29 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
         if (!suppressScan)
             scanIfNeeded();
 
-        if (childs == null || index >= childs.length)
+        Object[] c = childs;
+        if (c == null || index >= childCount || index >= c.length)
             return null;
         else
-            return childs[index];
+            return c[index];
     }
 
     /**
      * @return List of TestResult objects in this node.  null if none
      */
-    public TestResult[] getTestResults() {
+    public synchronized TestResult[] getTestResults() {
         scanIfNeeded();
 
-        TestResult[] leafs = null;
+        int n = childCount - getNodeCount();
+        if (n == 0)
+            return null;
 
-        if (childs != null && childs.length != 0) {
-            for (int i = 0; i < childs.length; i++) {
-                if (childs[i] instanceof TestResult)
-                    leafs = (TestResult[])(DynamicArray.append(leafs, childs[i]));
-            }   // for
-        }
+        TestResult[] leafs = new TestResult[n];
+        int j = 0;
+        for (int i = 0; i < childCount; i++) {
+            if (childs[i] instanceof TestResult)
+                leafs[j++] = (TestResult) (childs[i]);
+        }   // for
 
         return leafs;
     }
@@ -162,17 +169,19 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
      * Get only the children of this node which are branches.
      * @return List of children nodes objects in this node.  null if none.
      */
-    public TestResultTable.TreeNode[] getTreeNodes() {
+    public synchronized TestResultTable.TreeNode[] getTreeNodes() {
         scanIfNeeded();
 
-        if (childs == null)
+        int n = getNodeCount();
+        if (n == 0)
             return null;
 
-        TestResultTable.TreeNode[] leafs = null;
-
-        for (int i = 0; i < childs.length; i++) {
-            if (childs[i] instanceof TestResultTable.TreeNode)
-                leafs = (TestResultTable.TreeNode[])(DynamicArray.append(leafs, childs[i]));
+        // the result is always a TRT_TreeNode[], which some callers depend on
+        TRT_TreeNode[] leafs = new TRT_TreeNode[n];
+        int j = 0;
+        for (int i = 0; i < childCount; i++) {
+            if (childs[i] instanceof TRT_TreeNode)
+                leafs[j++] = (TRT_TreeNode) (childs[i]);
         }
 
         return leafs;
@@ -185,13 +194,13 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
     public boolean isLeaf(int index) {
         scanIfNeeded();
 
-        if (index < 0 || index >= childs.length)
+        if (index < 0 || index >= childCount)
             return false;
         else if (childs[index] instanceof TestResult)
             return true;
         else if (childs[index] instanceof TRT_TreeNode) {
             // if there are no nodes or tests below, then...
-            return (childs == null || childs.length == 0);
+            return (childs == null || childCount == 0);
         }
         else        // should never be the case
             return false;
@@ -200,17 +209,18 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
     public int[] getChildStatus() {
         scanSubtree(this);
 
-        if (childStats == null)
-            refreshChildStats(this);
+        AtomicIntegerArray stats = childStats;
+        if (stats == null)
+            stats = refreshChildStats(this);
 
-        return childStats;
+        return toArray(stats);
     }
 
     public int getIndex(Object target) {
         return getIndex(target, false);
     }
 
-    int getIndex(Object target, boolean suppressScan) {
+    synchronized int getIndex(Object target, boolean suppressScan) {
         if (!suppressScan)
             scanIfNeeded();
 
@@ -218,10 +228,18 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
             return -2;
         else if (childs == null)
             return -1;      // not found
-        else {
-            for (int i = 0; i < childs.length; i++)
-                if (childs[i] == target) return i;
-        }
+
+        // try the index first; the entry found will normally be the target
+        Integer i = null;
+        if (target instanceof TestResult && resultIndex != null)
+            i = (Integer) (resultIndex.get(((TestResult) target).getWorkRelativePath()));
+        else if (target instanceof TRT_TreeNode && nodeIndex != null)
+            i = (Integer) (nodeIndex.get(((TRT_TreeNode) target).getName()));
+        if (i != null && childs[i.intValue()] == target)
+            return i.intValue();
+
+        for (int j = 0; j < childCount; j++)
+            if (childs[j] == target) return j;
 
         // not found
         return -1;
@@ -241,28 +259,33 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
         //if (file.isDirectory())
         //   throw new JavaTestError(i18n, "trttn.noPaths");
 
-        if (childs == null || childs.length == 0) return null;
-
-        for (int i = 0; i < childs.length; i++) {
-            if (childs[i] instanceof TestResult) {
-                TestResult tr = (TestResult)(childs[i]);
+        if (childs == null || childCount == 0) return null;
+
+        // the work relative path is derived from the test URL, so the
+        // index by path normally gives the result directly
+        int index = getResultIndex(TestResult.getWorkRelativePath(url), true);
+        if (index != -1) {
+            Object o = getChild(index, true);
+            if (o instanceof TestResult) {
+                TestResult tr = (TestResult) o;
+                if (tr.getTestName().equals(url))
+                    return tr;
+            }
+        }
 
-                try {
-                    String name = tr.getDescription().getRootRelativeURL();
-                }
-                catch (TestResult.Fault f) {
-                    throw new JavaTestError(i18n, "trttn.noTd", f);
-                }
+        synchronized (this) {
+            for (int i = 0; i < childCount; i++) {
+                if (childs[i] instanceof TestResult) {
+                    TestResult tr = (TestResult)(childs[i]);
 
-                if (debug > 1)
-                    Debug.println("   -> trying to match against " + name);
+                    if (debug > 1)
+                        Debug.println("   -> trying to match against " + tr.getTestName());
 
-                if ( name.equals(url) ) {
-                    found = (TestResult)childs[i];
-                    i = childs.length;    // exit loop
+                    if (tr.getTestName().equals(url)) {
+                        found = tr;
+                        break;
+                    }
                 }
-                else
-                    found = null;
             }
         }
 
@@ -280,7 +303,8 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
      */
     TRT_TreeNode(TestResultTable table, TestResultTable.TreeNode parent) {
         childs = null;
-        counter = 0;
+        // a new node has no tests below it, so the counters are valid
+        childStats = new AtomicIntegerArray(Status.NUM_STATES);
         name = null;        // the only node with this value null is the root
         this.table = table;
         this.parent  = (TRT_TreeNode)parent;
@@ -293,7 +317,7 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
      * @see #getSize()
      */
     int getCurrentSize() {
-        return counter;
+        return counter.get();
     }
 
     /**
@@ -305,7 +329,7 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
      * @see Status
      */
     void incChildStat(int which) {
-        childStats[which]++;
+        childStats.incrementAndGet(which);
     }
 
     /**
@@ -317,7 +341,7 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
      * @see Status
      */
     void decChildStat(int which) {
-        childStats[which]--;
+        childStats.decrementAndGet(which);
     }
 
     void invalidateChildStats() {
@@ -342,7 +366,7 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
      * @see Status
      */
     static void bubbleUpChildStat(TRT_TreeNode node, int which) {
-        node.childStats[which]++;
+        node.childStats.incrementAndGet(which);
         TRT_TreeNode parent = (TRT_TreeNode)(node.getParent());
 
         if (parent != null) bubbleUpChildStat(parent, which);
@@ -359,8 +383,8 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
      * @see Status
      */
     static void swapChildStat(TRT_TreeNode node, int oldStatus, int newStatus) {
-        node.childStats[oldStatus]--;
-        node.childStats[newStatus]++;
+        node.childStats.decrementAndGet(oldStatus);
+        node.childStats.incrementAndGet(newStatus);
 
         TRT_TreeNode parent = (TRT_TreeNode)(node.getParent());
 
@@ -374,7 +398,7 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
      * @see #bubbleUpCounterInc()
      */
     void incNodeCounter() {
-        counter++;
+        counter.incrementAndGet();
     }
 
     /**
@@ -394,9 +418,9 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
         //if (file.isDirectory())
         //   throw new JavaTestError(i18n, "trttn.noPaths");
 
-        if (childs == null || childs.length == 0) return null;
+        if (childs == null || childCount == 0) return null;
 
-        for (int i = 0; i < childs.length; i++) {
+        for (int i = 0; i < childCount; i++) {
             if (childs[i] instanceof TestResult) {
                 File trName = new File(
                     ((TestResult)(childs[i])).getWorkRelativePath());
@@ -406,7 +430,7 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
 
                 if ( name.equals(trName.getName()) ) {
                     found = (TestResult)childs[i];
-                    i = childs.length;    // exit loop
+                    i = childCount;   // exit loop
                 }
                 else
                     found = null;
@@ -496,30 +520,8 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
         if (!suppressScan)
             scanIfNeeded();
 
-        int found = -1;
-
-        if (childs != null && childs.length != 0) {
-            for (int i = 0; i < childs.length; i++) {
-                if (childs[i] instanceof TestResult) {
-                    TestResult tr = (TestResult)childs[i];
-
-                    if (tr.getWorkRelativePath().equals(jtrPath)) {
-                        found = i;
-                        break;
-                    }
-                    else {
-                        // not a previous instance of this TR, skip it
-                        // placeholder to avoid dangling else
-                    }
-                }
-                else {
-                    // this is a TreeNode, skip it
-                    // placeholder to avoid dangling else
-                }
-            }   // for
-        }   // outer if
-
-        return found;
+        Integer found = (resultIndex == null ? null : (Integer) (resultIndex.get(jtrPath)));
+        return (found == null ? -1 : found.intValue());
     }
 
     /**
@@ -549,34 +551,11 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
         if (!suppressScan)
             scanIfNeeded();
 
-        int found = -1;
-
         if (name == null)
             throw new JavaTestError(i18n, "trttn.nullSearch");
 
-        if (childs == null || childs.length == 0)
-            found = -1;
-        else {
-            for (int i = 0; i < childs.length; i++) {
-                if (childs[i] instanceof TRT_TreeNode) {
-                    TRT_TreeNode tn = (TRT_TreeNode)childs[i];
-                    if (tn.getName().equals(name)) {
-                        found = i;
-                        break;
-                    }
-                    else {
-                        // not a match
-                        // placeholder to avoid dangling else
-                    }
-                }
-                else {
-                    // this is a TestResult, skip it
-                    // placeholder to avoid dangling else
-                }
-            }   // for
-        }   // outer else
-
-        return found;
+        Integer found = (nodeIndex == null ? null : (Integer) (nodeIndex.get(name)));
+        return (found == null ? -1 : found.intValue());
     }
 
 // ---- BEGIN lazy tree with finder ----
@@ -597,65 +576,113 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
 
         if (childs == null)
             childs = new Object[0];
-        /*
-        File thisDir = new File(table.getTestFinder().getRootDir().getAbsolutePath() + File.separator +
-                                TestResultTable.getRootRelativePath(this));
-        // I think we rely on File to correct mixed file seps.
-        // it might be a better idea to do a replace operation on the last item
-        // since we know it will contains foward slashes
-        File thisDir = new File(table.getTestSuiteRoot().getAbsolutePath() + File.separator +
-                                TestResultTable.getRootRelativePath(this));
-        */
-
-
-        // special case for root
-        if (isRoot() && filesToScan == null /* && root timestamp change check */ ) {
-            File thisDir = table.getTestSuiteRoot();
-            lastScanDate = table.getLastModifiedTime(thisDir);
-            processFile(thisDir);
-
-            // to prevent infinite recursion
-            if (filesToScan == null) filesToScan = new String[0];
-
-        for (int i = 0; i < filesToScan.length; i++) {
-            processFile(new File(filesToScan[i]));
-        }
-        }
 
-        File thisDir = new File(TestResultTable.getRootRelativePath(this));
-        long lmd = table.getLastModifiedTime(thisDir);
-        if (lmd <= lastScanDate)
-            return;
+        // if the finder can read files concurrently, files on the scan
+        // list are read ahead of time on the table's reader threads
+        if (table.isParallelReadEnabled())
+            pendingReads = new HashMap();
 
+        try {
+            /*
+            File thisDir = new File(table.getTestFinder().getRootDir().getAbsolutePath() + File.separator +
+                                    TestResultTable.getRootRelativePath(this));
+            // I think we rely on File to correct mixed file seps.
+            // it might be a better idea to do a replace operation on the last item
+            // since we know it will contains foward slashes
+            File thisDir = new File(table.getTestSuiteRoot().getAbsolutePath() + File.separator +
+                                    TestResultTable.getRootRelativePath(this));
+            */
 
-        if (filesToScan != null) {
-            // should be seeded to skip the root, which handled above?
-            for (int i = 0; i < filesToScan.length; i++) {
 
-                if (filesToScan[i] == this.name) {
-                    processFile(thisDir);
-                }
-                else {
-                    processFile(new File(TestResultTable.getRootRelativePath(this) +
-                                File.separator + filesToScan[i]));
-                }
-            }   // for
+            // special case for root
+            if (isRoot() && filesToScan == null /* && root timestamp change check */ ) {
+                File thisDir = table.getTestSuiteRoot();
+                lastScanDate = table.getLastModifiedTime(thisDir);
+                processFile(thisDir);
+
+                // to prevent infinite recursion
+                if (filesToScan == null) filesToScan = new ArrayList();
+
+            for (int i = 0; i < filesToScan.size(); i++) {
+                readAhead(i, null);
+                processFile(getFileToScan(i, null));
+            }
+            }
+
+            File thisDir = new File(TestResultTable.getRootRelativePath(this));
+            long lmd = table.getLastModifiedTime(thisDir);
+            if (lmd <= lastScanDate)
+                return;
+
+
+            if (filesToScan != null) {
+                // should be seeded to skip the root, which handled above?
+                for (int i = 0; i < filesToScan.size(); i++) {
+                    readAhead(i, thisDir);
+                    processFile(getFileToScan(i, thisDir));
+                }   // for
+            }
+            else {
+                if (debug > 0)
+                    Debug.println("refreshing contents of " + getName() + lastScanDate);
+                refreshIfNeeded();
+            }
+
+            lastScanDate = lmd;
         }
-        else {
-            if (debug > 0)
-                Debug.println("refreshing contents of " + getName() + lastScanDate);
-            refreshIfNeeded();
+        finally {
+            if (pendingReads != null) {
+                table.cancelReads(pendingReads);
+                pendingReads = null;
+            }
         }
 
-        lastScanDate = lmd;
-
         // send observer msg?
         // delete unneeded objects from TestResultTable.TreeNode?
     }
 
+    /**
+     * Get the file for an entry on the scan list of this node.
+     * @param i The index of the entry in the scan list.
+     * @param thisDir The directory for this node, or null if this is the
+     *        root node being scanned for the first time.
+     */
+    private File getFileToScan(int i, File thisDir) {
+        String f = (String) (filesToScan.get(i));
+        if (thisDir == null)
+            return new File(f);
+        else if (f == this.name)
+            return thisDir;
+        else
+            return new File(TestResultTable.getRootRelativePath(this) +
+                            File.separator + f);
+    }
+
+    /**
+     * Start reading the entries on the scan list which will be processed
+     * next, if parallel reading is enabled.  Only a limited number of reads
+     * are started ahead of the entry being processed, so that the contents
+     * held in memory ahead of time stays bounded.
+     * @param i The index of the entry about to be processed.
+     * @param thisDir As for {@link #getFileToScan}.
+     */
+    private void readAhead(int i, File thisDir) {
+        if (pendingReads == null)
+            return;
+
+        int limit = Math.min(filesToScan.size(),
+                             i + table.getFinderParallelism() * READS_PER_THREAD);
+        for (int j = i; j < limit; j++) {
+            File f = getFileToScan(j, thisDir);
+            String p = f.getPath();
+            if (!pendingReads.containsKey(p))
+                pendingReads.put(p, table.startRead(f));
+        }
+    }
+
     // SPECIAL TEST REFRESH/REPLACE METHODS
     synchronized TestResult resetTest(int index, TestResult tr) {
-        if (!(childs[index] == tr))
+        if (index < 0 || index >= childCount || !(childs[index] == tr))
             return null;
 
         // remove the JTR file
@@ -983,10 +1010,11 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
         TestResult oldTr = (TestResult)childs[index];
 
         childs[index] = newTr;
+        indexChild(newTr, index);
         notifyReplacedResult(oldTr, newTr, index);
         newTr.setParent(this);
         oldTr.setParent(null);
-        //invalidateChildStats();
+        updateChildStats(oldTr.getStatus().getType(), newTr.getStatus().getType());
         return newTr;
     }
 
@@ -1012,33 +1040,55 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
         File[] files = null;
         TestFinder tf = table.getTestFinder();
 
-        // finder object has state, so we need to control access to it
-        synchronized (tf) {
-            tf.read(file);
-            TestDescription[] tds_tmp = tf.getTests();
-            File[] files_tmp = tf.getFiles();
-
-            // shallow copy everything just in case...
-            // copy tests array
-            if (tds_tmp != null && tds_tmp.length != 0) {
-                tds = new TestDescription[tds_tmp.length];
-                System.arraycopy(tds_tmp, 0, tds, 0, tds_tmp.length);
-            }
-            else
-                tds = new TestDescription[0];
-
-            // copy files array
-            if (files_tmp != null && files_tmp.length != 0) {
-                files = new File[files_tmp.length];
-                System.arraycopy(files_tmp, 0, files, 0, files_tmp.length);
+        if (pendingReads != null) {
+            // the finder supports concurrent reads; the contents may already
+            // have been read on one of the table's reader threads
+            Future fu = (Future) (pendingReads.remove(file.getPath()));
+            TestFinder.Contents c = table.readContents(file, fu);
+            tds = c.getTests();
+            files = c.getFiles();
+
+            String[] errs = c.getErrors();
+            if (errs.length > 0) {
+                synchronized (tf) {
+                    for (int i = 0; i < errs.length; i++)
+                        tf.localizedError(errs[i]);
+                }
             }
-            else
-                files = new File[0];
 
             if (debug > 0)
                 Debug.println("Read " + tds.length + " tests, and " +
                               files.length + " files.");
-        }   // sync
+        }
+        else {
+            // finder object has state, so we need to control access to it
+            synchronized (tf) {
+                tf.read(file);
+                TestDescription[] tds_tmp = tf.getTests();
+                File[] files_tmp = tf.getFiles();
+
+                // shallow copy everything just in case...
+                // copy tests array
+                if (tds_tmp != null && tds_tmp.length != 0) {
+                    tds = new TestDescription[tds_tmp.length];
+                    System.arraycopy(tds_tmp, 0, tds, 0, tds_tmp.length);
+                }
+                else
+                    tds = new TestDescription[0];
+
+                // copy files array
+                if (files_tmp != null && files_tmp.length != 0) {
+                    files = new File[files_tmp.length];
+                    System.arraycopy(files_tmp, 0, files, 0, files_tmp.length);
+                }
+                else
+                    files = new File[0];
+
+                if (debug > 0)
+                    Debug.println("Read " + tds.length + " tests, and " +
+                                  files.length + " files.");
+            }   // sync
+        }
 
         // process the tests
         for (TestDescription td : tds) {
@@ -1328,24 +1378,28 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
             Debug.println("   => Adding " + file + " to scan list and leaving.");
             Debug.println("   => Local node is : " + node);
             Debug.println("   -> local size b4: " +
-                            (node.filesToScan == null ? 0 : node.filesToScan.length));
+                            (node.filesToScan == null ? 0 : node.filesToScan.size()));
         }
 
-        int i = 0;
-
-        // check for a name clash
-        if (node.filesToScan != null) {
-            // the first entry in the list is (always?) a special case
-            if (node.filesToScan.length > 0 && node.filesToScan[0].equals(node.getName()))
-                i = 1;
+        if (node.filesToScan == null) {
+            node.filesToScan = new ArrayList();
+            node.filesToScanSet = new HashSet();
+        }
 
-            for (; i < node.filesToScan.length; i++)
-                if (node.filesToScan[i].equals(file)) break;
+        // check for a name clash; the first entry in the list is (always?)
+        // a special case, and is not checked for clashes
+        boolean clash;
+        if (node.filesToScan.isEmpty()) {
+            clash = false;
+            if (!file.equals(node.getName()))
+                node.filesToScanSet.add(file);
         }
+        else
+            clash = !node.filesToScanSet.add(file);
 
         // if no conflicts were found, append it
-        if (node.filesToScan == null || i >= node.filesToScan.length)
-            node.filesToScan = (String[])DynamicArray.append(node.filesToScan, file);
+        if (!clash)
+            node.filesToScan.add(file);
         else {
             // name collision, ignore
             // actually, with scan suppression, this may be normal
@@ -1357,7 +1411,7 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
 
         if (debug > 1) {
             Debug.println("   -> local size after: " +
-                    (node.filesToScan == null ? 0 : node.filesToScan.length));
+                    (node.filesToScan == null ? 0 : node.filesToScan.size()));
         }
     }
 
@@ -1386,8 +1440,7 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
             Debug.println("   -> " + tr.getStatus().toString());
             Debug.println("   -> local node ref: " + this);
             Debug.println("   -> local node name: " + this.getName());
-            Debug.println("   -> local size: " +
-                            (childs == null ? 0 : childs.length));
+            Debug.println("   -> local size: " + childCount);
         }
 
         int oldIndex = getTestIndex(tr, suppressScan);
@@ -1401,22 +1454,18 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
                 if (debug > 1)
                     Debug.println("   -> no old entry for " + tr);
 
-                try {
-                    // XXX should cache result of Class.forName
-                    childs = DynamicArray.append(childs, tr, Class.forName("java.lang.Object"));
-                    tr.setParent(this);
-                    bubbleUpCounterInc();
-                    notifyInsResult(tr, childs.length-1);
-                }       // try
-                catch (ClassNotFoundException e) {
-                    throw new JavaTestError(i18n, "trttn.noObject", e);
-                }       // catch
+                appendChild(tr);
+                tr.setParent(this);
+                bubbleUpCounterInc();
+                notifyInsResult(tr, childCount-1);
+                updateChildStats(-1, tr.getStatus().getType());
             }
         }
         else if (shouldReplaceTest(oldIndex, tr, suppressScan)) {
             // replace a previous result
             oldTR = (TestResult)childs[oldIndex];
             childs[oldIndex] = tr;
+            indexChild(tr, oldIndex);
             if (debug > 1) {
                 Debug.println("   -> ** replacing existing TR with " + tr);
                 Debug.println("   -> " + tr.getTestName());
@@ -1428,6 +1477,7 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
             tr.setParent(this);
 
             notifyReplacedResult(oldTR, tr, oldIndex);
+            updateChildStats(oldTR.getStatus().getType(), tr.getStatus().getType());
         }   // else if
         else {
             // not inserting
@@ -1445,8 +1495,6 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
             return tr;
         }
 
-        invalidateChildStats();
-
         return oldTR;
     }
 
@@ -1461,12 +1509,20 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
         if (!suppressScan)
             scanIfNeeded();
 
-        try {
-            childs = DynamicArray.append(childs, tn,
-                                         Class.forName("java.lang.Object"));
-        }
-        catch (ClassNotFoundException e) {
-            throw new JavaTestError(i18n, "trttn.noObject", e);
+        appendChild(tn);
+
+        // the node may already contain tests
+        AtomicIntegerArray stats = tn.childStats;
+        if (stats == null)
+            invalidateChildStats();
+        else {
+            int[] s = toArray(stats);
+            for (int i = 0; i < s.length; i++) {
+                if (s[i] != 0) {
+                    addChildStats(s, 1);
+                    break;
+                }
+            }
         }
     }
 
@@ -1474,16 +1530,76 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
         if (childs == null)
             throw new IllegalStateException("Node is empty!");
 
-        for (int i = 0; i < childs.length; i++) {
-            if (childs[i] == tn) {
-                Object[] newarr = DynamicArray.remove(childs, i);
-                childs = (newarr == null ? new Object[0] : newarr);
-                invalidateChildStats();
-                return i;
-            }
-        }   // for
+        int i = getIndex(tn, true);
+        if (i == -1)
+            return -1;      // not found!
+
+        System.arraycopy(childs, i + 1, childs, i, childCount - i - 1);
+        childs[--childCount] = null;
+        nodeCount--;
+        // the indexes of the following children have changed
+        reindexChildren();
+
+        AtomicIntegerArray stats = tn.childStats;
+        if (stats == null)
+            invalidateChildStats();
+        else
+            addChildStats(toArray(stats), -1);
+        return i;
+    }
+
+    /**
+     * Add a child to the end of the list of children, growing the
+     * array of children if necessary.
+     */
+    private void appendChild(Object o) {
+        if (childs == null)
+            childs = new Object[INITIAL_CHILDS_SIZE];
+        else if (childCount == childs.length) {
+            Object[] newChilds = new Object[Math.max(INITIAL_CHILDS_SIZE, childCount * 2)];
+            System.arraycopy(childs, 0, newChilds, 0, childCount);
+            childs = newChilds;
+        }
 
-        return -1;      // not found!
+        childs[childCount] = o;
+        indexChild(o, childCount);
+        childCount++;
+        if (o instanceof TRT_TreeNode)
+            nodeCount++;
+    }
+
+    /**
+     * Record the position of a child, so that it can be found by name.
+     * If there is more than one child with the same name, the first is recorded.
+     */
+    private void indexChild(Object o, int index) {
+        if (o instanceof TestResult) {
+            if (resultIndex == null)
+                resultIndex = new HashMap();
+            String key = ((TestResult) o).getWorkRelativePath();
+            Integer prev = (Integer) (resultIndex.get(key));
+            if (prev == null || prev.intValue() >= index)
+                resultIndex.put(key, Integer.valueOf(index));
+        }
+        else {
+            if (nodeIndex == null)
+                nodeIndex = new HashMap();
+            String key = ((TRT_TreeNode) o).getName();
+            Integer prev = (Integer) (nodeIndex.get(key));
+            if (prev == null || prev.intValue() >= index)
+                nodeIndex.put(key, Integer.valueOf(index));
+        }
+    }
+
+    private void reindexChildren() {
+        resultIndex = null;
+        nodeIndex = null;
+        for (int i = 0; i < childCount; i++)
+            indexChild(childs[i], i);
+    }
+
+    private int getNodeCount() {
+        return nodeCount;
     }
 
     void setName(String name) {
@@ -1508,8 +1624,8 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
     private boolean shouldReplaceTest(int index, TestResult newone,
                                       boolean suppressScan) {
         // check for out of range indexes, types and null
-        if (!(childs[index] instanceof TestResult) || newone == null ||
-            index < 0 || index >= childs.length)
+        if (index < 0 || index >= childCount ||
+            !(childs[index] instanceof TestResult) || newone == null)
             return false;
 
         TestResult orig = (TestResult)(childs[index]);
@@ -1585,26 +1701,40 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
      * It is assumed that if a node has null childStats, that all nodes between
      * it and the root are also marked invalid.
      */
-    private static void refreshChildStats(TRT_TreeNode node) {
-        if (node.childStats != null) return;        // nothing to do
+    private static AtomicIntegerArray refreshChildStats(TRT_TreeNode node) {
+        AtomicIntegerArray result = node.childStats;
+        if (result != null) return result;        // nothing to do
 
-        node.childStats = new int[Status.NUM_STATES];
+        synchronized (node) {
+            int[] counts = new int[Status.NUM_STATES];
 
-        for (int i= 0; i < node.childs.length; i++) {
-            if (node.childs[i] instanceof TRT_TreeNode) {
-                // node is another branch
-                TRT_TreeNode child = (TRT_TreeNode)(node.childs[i]);
-                int[] stats = child.getChildStatus();
+            for (int i= 0; i < node.childCount; i++) {
+                if (node.childs[i] instanceof TRT_TreeNode) {
+                    // node is another branch
+                    TRT_TreeNode child = (TRT_TreeNode)(node.childs[i]);
+                    int[] stats = child.getChildStatus();
 
-                for (int j = 0; j < stats.length; j++)
-                    node.childStats[j] += stats[j];
-            }
-            else {
-                // node is a test result
-                TestResult tr = (TestResult)(node.childs[i]);
-                node.childStats[tr.getStatus().getType()]++;
+                    for (int j = 0; j < stats.length; j++)
+                        counts[j] += stats[j];
+                }
+                else {
+                    // node is a test result
+                    TestResult tr = (TestResult)(node.childs[i]);
+                    counts[tr.getStatus().getType()]++;
+                }
             }
+
+            result = new AtomicIntegerArray(counts);
+            node.childStats = result;
         }
+        return result;
+    }
+
+    private static int[] toArray(AtomicIntegerArray a) {
+        int[] result = new int[a.length()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = a.get(i);
+        return result;
     }
 
     /**
@@ -1612,11 +1742,52 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
      * The current node's counter IS incremented.
      */
     void bubbleUpCounterInc() {
-        counter++;
-        notifyCounterChange();
-        TRT_TreeNode parent = (TRT_TreeNode)(getParent());
+        for (TRT_TreeNode n = this; n != null; n = n.parent) {
+            n.counter.incrementAndGet();
+            n.notifyCounterChange();
+        }
+    }
+
+    /**
+     * Update the counters which track the status of tests below this node,
+     * in this node and all its ancestors, when a test is added or changed.
+     * Nodes whose counters have been invalidated are left to be recalculated
+     * when next required.
+     * @param oldType the status type of the test that was removed or replaced,
+     *      or -1 if none
+     * @param newType the status type of the test that was added, or -1 if none
+     */
+    private void updateChildStats(int oldType, int newType) {
+        if (oldType == newType)
+            return;
+
+        for (TRT_TreeNode n = this; n != null; n = n.parent) {
+            AtomicIntegerArray stats = n.childStats;
+            if (stats != null) {
+                if (oldType >= 0)
+                    stats.decrementAndGet(oldType);
+                if (newType >= 0)
+                    stats.incrementAndGet(newType);
+            }
+            n.notifyCounterChange();
+        }
+    }
 
-        if (parent != null) parent.bubbleUpCounterInc();
+    /**
+     * Add or subtract the counters for a subtree to or from the counters
+     * in this node and all its ancestors.
+     * @param stats the counters for the subtree
+     * @param sign 1 to add the counters, -1 to subtract them
+     */
+    private void addChildStats(int[] stats, int sign) {
+        for (TRT_TreeNode n = this; n != null; n = n.parent) {
+            AtomicIntegerArray nodeStats = n.childStats;
+            if (nodeStats != null) {
+                for (int i = 0; i < stats.length; i++)
+                    nodeStats.addAndGet(i, sign * stats[i]);
+            }
+            n.notifyCounterChange();
+        }
     }
 
     private int getTestSuitePathLen() {
@@ -1698,14 +1869,22 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
     }
 
     /**
-     * null if the node has not been scanned, zero length if it is acually empty
+     * null if the node has not been scanned; otherwise, the first childCount
+     * entries are the children, the rest being spare capacity
      */
     private Object[] childs;            // contains combo of TreeNodes or TestResults
+    private int childCount;
+    private int nodeCount;              // number of children which are TreeNodes
+    private HashMap resultIndex;        // work relative path of child tests -> index
+    private HashMap nodeIndex;          // name of child nodes -> index
     private TRT_TreeNode parent;        // should never be null, unless root
     private TestResultTable table;      // what table this node is in
 
-    private int counter;                // nodes below this point and including self
-    private int[] childStats;
+    // the counters may be updated by threads holding the lock on a descendant
+    // of this node, and so are updated atomically rather than being protected
+    // by the lock on this node
+    private final AtomicInteger counter = new AtomicInteger(); // nodes below this point and including self
+    private volatile AtomicIntegerArray childStats;
 
     private String name;                // basically the directory name, null means root node
 
@@ -1725,7 +1904,12 @@ public class TRT_TreeNode implements TestResultTable.TreeNode {
      * node which indicates that the current directory should be scanned by the
      * TestFinder.  This is to support directory walk style finders.
      */
-    private String[] filesToScan;       // in cases where the finder behaves like a web
+    private ArrayList filesToScan;      // in cases where the finder behaves like a web
+    private HashSet filesToScanSet;     // entries of filesToScan, for detecting clashes
+    private HashMap pendingReads;       // path -> Future(TestFinder.Contents), while scanning
+
+    private static final int INITIAL_CHILDS_SIZE = 4;
+    private static final int READS_PER_THREAD = 4;
 
     //static protected boolean debug = Boolean.getBoolean("debug." + TRT_TreeNode.class.getName());
     static protected int debug = Debug.getInt(TRT_TreeNode.class);
@@ -32,7 +32,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import com.sun.javatest.util.PropertyArray;
 import com.sun.javatest.util.StringArray;
 
@@ -58,8 +58,11 @@ public class TestDescription implements Serializable
     public TestDescription(File root, File file, Map params)
                 throws IllegalArgumentException {
 
-        if (root.equals(cachedRoot))
-            rootDir = cachedRootDir;
+        // test descriptions may be created on different threads,
+        // so the root and rootDir are cached together
+        Object[] cache = cachedRootAndDir;
+        if (cache != null && root.equals(cache[0]))
+            rootDir = (String) (cache[1]);
         else {
             if (root.exists() ? root.isFile() : root.getName().endsWith(".html"))
                 rootDir = root.getParent();
@@ -67,8 +70,7 @@ public class TestDescription implements Serializable
                 rootDir = root.getPath();
 
             // cache root->rootDir map to avoid making extra files
-            cachedRoot = root;
-            cachedRootDir = rootDir;
+            cachedRootAndDir = new Object[] { root, rootDir };
         }
 
         String fp = file.getPath();
@@ -83,36 +85,41 @@ public class TestDescription implements Serializable
             rootRelativeFile = fp;
         rootRelativePath = rootRelativeFile.replace(File.separatorChar, '/');
 
-        Vector v = new Vector(0, params.size() * 2);
-        for (Iterator i = params.keySet().iterator(); i.hasNext(); ) {
-            String key = (String) (i.next());
-            String value = (String)(params.get(key));
-            insert(v, key, value);
+        String[] f = new String[params.size() * 2];
+        int n = 0;
+        for (Iterator i = params.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry e = (Map.Entry) (i.next());
+            n = insert(f, n, (String) (e.getKey()), (String) (e.getValue()));
         }
-        fields = new String[v.size()];
-        v.copyInto(fields);
+        fields = f;
     }
 
     /**
      * Internal constructor used by load()
      */
     private TestDescription(String root, String file, String[] params) {
-        rootDir = root;
+        // the root is the same for all the tests in a test suite
+        rootDir = root.intern();
         // skip over the root part of the filename.
         char sep = file.charAt(root.length());
         rootRelativePath = file.substring(root.length() + 1).replace(sep, '/');
 
-        Vector v = new Vector(0, params.length);
+        String[] f = new String[params.length];
+        int n = 0;
         for (int i = 0; i < params.length; i += 2) {
             String key = params[i];
             if (!(key.startsWith("$") || key.equals("testsuite") ||  key.equals("file"))) {
                 // don't keep synthetic values from save;
                 String value = params[i+1];
-                insert(v, key, value);
+                n = insert(f, n, key, value);
             }
         }
-        fields = new String[v.size()];
-        v.copyInto(fields);
+        if (n < f.length) {
+            String[] f2 = new String[n];
+            System.arraycopy(f, 0, f2, 0, n);
+            f = f2;
+        }
+        fields = f;
     }
 
     public boolean equals(Object td) {
@@ -234,6 +241,21 @@ public class TestDescription implements Serializable
         return s;
     }
 
+    /**
+     * Get the keywords for this test description as a bit set,
+     * indexed by the keyword ids assigned by {@link Keywords}.
+     * The result is computed once and shared; it must not be modified.
+     * @return the keywords for this test description, as a bit set
+     */
+    long[] getKeywordBits() {
+        long[] bits = keywordBits;
+        if (bits == null) {
+            bits = Keywords.getKeywordBits(StringArray.split(getParameter("keywords")));
+            keywordBits = bits;
+        }
+        return bits;
+    }
+
     /**
      * Get the set of source files for this test description,
      * as specified by the "source" parameter.
@@ -504,29 +526,41 @@ public class TestDescription implements Serializable
         return new TestDescription(r, f, params);
     }
 
-    private static void insert(Vector v, String key, String value) {
+    /**
+     * Insert a name-value pair into an array of fields, sorted by name.
+     * The name and value are replaced by shared copies, since the same
+     * names, and many of the same values, occur in many test descriptions.
+     * @param f the array of fields
+     * @param n the number of entries in the array that are in use
+     * @return the new number of entries in the array that are in use
+     */
+    private static int insert(String[] f, int n, String key, String value) {
+        key = internKey(key);
+        if (value != null)
+            value = value.intern();
+
         int lower = 0;
-        int upper = v.size() - 2;
+        int upper = n - 2;
         int mid = 0;
 
         if (upper < 0) {
-            v.addElement(key);
-            v.addElement(value);
-            return;
+            f[n] = key;
+            f[n + 1] = value;
+            return n + 2;
         }
 
-        String last = (String)v.elementAt(upper);
+        String last = f[upper];
         int cmp = key.compareTo(last);
         if (cmp > 0) {
-            v.addElement(key);
-            v.addElement(value);
-            return;
+            f[n] = key;
+            f[n + 1] = value;
+            return n + 2;
         }
 
         while (lower <= upper) {
             // in next line, take care to ensure that mid is always even
             mid = lower + ((upper - lower) / 4) * 2;
-            String e = (String)(v.elementAt(mid));
+            String e = f[mid];
             cmp = key.compareTo(e);
             if (cmp < 0) {
                 upper = mid - 2;
@@ -543,8 +577,24 @@ public class TestDescription implements Serializable
         if (cmp > 0)
             mid += 2;
 
-        v.insertElementAt(key, mid);
-        v.insertElementAt(value, mid+1);
+        System.arraycopy(f, mid, f, mid + 2, n - mid);
+        f[mid] = key;
+        f[mid + 1] = value;
+        return n + 2;
+    }
+
+    /**
+     * Get the shared copy of a parameter name. The set of names is small,
+     * so the shared copies are kept in a table of their own, which is
+     * faster to access than the table of interned strings.
+     */
+    private static String internKey(String key) {
+        String k = (String) (keyDictionary.get(key));
+        if (k == null) {
+            k = key.intern();
+            keyDictionary.putIfAbsent(k, k);
+        }
+        return k;
     }
 
     //-----member variables-------------------------------------------------------
@@ -570,6 +620,9 @@ public class TestDescription implements Serializable
      */
     private String[] fields;
 
-    private static File cachedRoot;
-    private static String cachedRootDir;
+    private transient volatile long[] keywordBits;
+
+    private static volatile Object[] cachedRootAndDir;
+
+    private static final ConcurrentHashMap keyDictionary = new ConcurrentHashMap();
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.javatest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A record of how long each test in a work directory took to execute,
+ * the last time it was run. The record is used to estimate how long
+ * each test will take the next time it is run, so that the tests
+ * expected to take longest can be started first.
+ */
+class TestDurations
+{
+    /**
+     * Create an object to record the durations of the tests in a work
+     * directory, initialized from the durations recorded by previous runs.
+     * @param workDir the work directory
+     */
+    TestDurations(WorkDirectory workDir) {
+        file = workDir.getSystemFile(FILENAME);
+        if (file.exists()) {
+            try {
+                Properties p = new Properties();
+                InputStream in = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    p.load(in);
+                }
+                finally {
+                    in.close();
+                }
+                for (Enumeration e = p.propertyNames(); e.hasMoreElements(); ) {
+                    String name = (String) (e.nextElement());
+                    try {
+                        durations.put(name, Long.valueOf(p.getProperty(name)));
+                    }
+                    catch (NumberFormatException ignore) {
+                    }
+                }
+            }
+            catch (IOException e) {
+                // ignore: the durations will be recorded again as tests are run
+            }
+        }
+    }
+
+    /**
+     * Get the estimated time to execute a test.  If a duration was recorded
+     * for the test in a previous run, that is used; otherwise, if the test
+     * has a result from a previous run, the duration is determined from the
+     * start and end times in the result; otherwise, the average of the known
+     * durations is used.
+     * @param tr the result of the test, possibly from an earlier run, or
+     * indicating that the test has not been run
+     * @return the estimated time, in milliseconds, to execute the test
+     */
+    synchronized long getEstimate(TestResult tr) {
+        String path = tr.getTestName();
+        Long d = (Long) (durations.get(path));
+        if (d != null)
+            return d.longValue();
+
+        if (tr.getStatus().getType() != Status.NOT_RUN) {
+            long t = getElapsedTime(tr);
+            if (t >= 0) {
+                put(path, t);
+                return t;
+            }
+        }
+
+        return (durations.size() == 0 ? 0 : totalDuration / durations.size());
+    }
+
+    /**
+     * Record the time taken to execute a test, as given by the start and
+     * end times in its result.
+     * @param tr the result of the test
+     */
+    synchronized void record(TestResult tr) {
+        long t = getElapsedTime(tr);
+        if (t >= 0) {
+            put(tr.getTestName(), t);
+            modified = true;
+        }
+    }
+
+    /**
+     * Save the recorded durations in the work directory, if they have
+     * been modified.
+     */
+    synchronized void save() {
+        if (!modified)
+            return;
+
+        Properties p = new Properties();
+        for (Iterator i = durations.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry e = (Map.Entry) (i.next());
+            p.put(e.getKey(), String.valueOf(e.getValue()));
+        }
+
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                p.store(out, "test durations, in milliseconds");
+            }
+            finally {
+                out.close();
+            }
+            modified = false;
+        }
+        catch (IOException e) {
+            // ignore: the durations are just an aid to scheduling the tests
+        }
+    }
+
+    private void put(String path, long t) {
+        Long prev = (Long) (durations.put(path, Long.valueOf(t)));
+        if (prev != null)
+            totalDuration -= prev.longValue();
+        totalDuration += t;
+    }
+
+    private long getElapsedTime(TestResult tr) {
+        try {
+            String start = tr.getProperty(TestResult.START);
+            String end = tr.getProperty(TestResult.END);
+            if (start == null || end == null)
+                return -1;
+            long t = parseDate(end) - parseDate(start);
+            return (t >= 0 ? t : -1);
+        }
+        catch (TestResult.Fault e) {
+            return -1;
+        }
+        catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    private long parseDate(String s) throws ParseException {
+        // this is to parse Date.toString() output
+        Date date = dateFormat.parse(s);
+        return date.getTime();
+    }
+
+    private final File file;
+    private final Map durations = new HashMap();
+    private long totalDuration;
+    private boolean modified;
+    private final DateFormat dateFormat =
+        new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US);
+
+    private static final String FILENAME = "testDurations.properties";
+}
@@ -342,6 +342,13 @@ public abstract class TestFinder
      * @see #error
      */
     protected void localizedError(String msg) {
+        ReadState rs = (ReadState) (currentRead.get());
+        if (rs != null && rs.errors != null) {
+            // reading contents; the errors are returned with the contents
+            rs.errors.add(msg);
+            return;
+        }
+
         errorMessages.add(msg);
         if (errHandler != null)
             errHandler.error(msg);
@@ -426,18 +433,143 @@ public abstract class TestFinder
      * @param file The file to be read.
      */
     public synchronized void read(File file) {
-        if (tests != null)
-            tests.setSize(0);
-
-        if (files != null)
-            files.setSize(0);
-
-        testsInFile.clear();
+        lastRead = new ReadState(false);
 
         scan(file.isAbsolute() ? file : new File(rootDir, file.getPath()));
         //scan(file);
     }
 
+    /**
+     * The contents of a file, as found by {@link #readContents readContents}.
+     */
+    public static class Contents {
+        Contents(TestDescription[] tests, File[] files, String[] errors) {
+            this.tests = tests;
+            this.files = files;
+            this.errors = errors;
+        }
+
+        /**
+         * Get the test descriptions that were found in the file.
+         * @return the test descriptions that were found in the file
+         */
+        public TestDescription[] getTests() {
+            return tests;
+        }
+
+        /**
+         * Get the other files that were found by reading the file,
+         * and which need to be read in turn.
+         * @return the other files that were found by reading the file
+         */
+        public File[] getFiles() {
+            return files;
+        }
+
+        /**
+         * Get the errors that were found while reading the file.
+         * @return the errors that were found while reading the file
+         */
+        public String[] getErrors() {
+            return errors;
+        }
+
+        private final TestDescription[] tests;
+        private final File[] files;
+        private final String[] errors;
+    }
+
+    /**
+     * Check whether this test finder can read different files at the same
+     * time on different threads, using {@link #readContents readContents}.
+     * By default, this method returns false. Test finders which keep no
+     * state of their own while scanning a file, other than that managed by
+     * this class, may override this method to return true.
+     * @return true if this test finder can read different files at the same
+     * time on different threads
+     */
+    public boolean isConcurrentReadSupported() {
+        return false;
+    }
+
+    /**
+     * Read a file, and return the test descriptions and other files that
+     * were found. Unlike {@link #read read}, this method does not affect the
+     * values returned by {@link #getTests getTests} and {@link #getFiles getFiles},
+     * and any errors found while reading the file are returned with the
+     * contents, instead of being reported to the error handler.
+     * If {@link #isConcurrentReadSupported isConcurrentReadSupported} returns
+     * true, this method may be called on different threads at the same time.
+     * @param file The file to be read.
+     * @return the contents of the file
+     */
+    public Contents readContents(File file) {
+        if (isConcurrentReadSupported())
+            return readContents0(file);
+        else {
+            synchronized (this) {
+                return readContents0(file);
+            }
+        }
+    }
+
+    private Contents readContents0(File file) {
+        ReadState rs = new ReadState(true);
+        currentRead.set(rs);
+        try {
+            scan(file.isAbsolute() ? file : new File(rootDir, file.getPath()));
+        }
+        finally {
+            currentRead.set(null);
+        }
+
+        TestDescription[] tds = rs.getTests();
+        File[] fs = rs.getFiles();
+        String[] errs = new String[rs.errors.size()];
+        rs.errors.copyInto(errs);
+        return new Contents(tds, fs, errs);
+    }
+
+    // The state of the file being read: the state used by read() is also
+    // used for any calls of foundTestDescription or foundFile outside a read,
+    // for compatibility; the state used by readContents() is specific to the
+    // thread doing the reading.
+    private ReadState getReadState() {
+        ReadState rs = (ReadState) (currentRead.get());
+        return (rs != null ? rs : lastRead);
+    }
+
+    private static class ReadState {
+        ReadState(boolean deferErrors) {
+            errors = (deferErrors ? new Vector() : null);
+        }
+
+        TestDescription[] getTests() {
+            if (tests == null)
+                return noTests;
+            else {
+                TestDescription[] tds = new TestDescription[tests.size()];
+                tests.copyInto(tds);
+                return tds;
+            }
+        }
+
+        File[] getFiles() {
+            if (files == null)
+                return new File[0];
+            else {
+                File[] fs = new File[files.size()];
+                files.copyInto(fs);
+                return fs;
+            }
+        }
+
+        Vector files;
+        Vector tests;
+        final Map testsInFile = new HashMap();
+        final Vector errors;
+    }
+
     /**
      * Scan a file, looking for test descriptions and other files that might
      * need to be scanned.  The implementation depends on the type of test
@@ -462,15 +594,17 @@ public abstract class TestFinder
 
         if (name.equalsIgnoreCase("keywords")) {
             // canonicalize keywords in their own special table
-            String keywordCacheValue = (String)keywordCache.get(value);
-            if (keywordCacheValue == null) {
-                String lv = value.toLowerCase();
-                String[] lvs = StringArray.split(lv);
-                Arrays.sort(lvs);
-                keywordCacheValue = StringArray.join(lvs).intern();
-                keywordCache.put(value, keywordCacheValue);
+            synchronized (keywordCache) {
+                String keywordCacheValue = (String)keywordCache.get(value);
+                if (keywordCacheValue == null) {
+                    String lv = value.toLowerCase();
+                    String[] lvs = StringArray.split(lv);
+                    Arrays.sort(lvs);
+                    keywordCacheValue = StringArray.join(lvs).intern();
+                    keywordCache.put(value, keywordCacheValue);
+                }
+                value = keywordCacheValue;
             }
-            value = keywordCacheValue;
         }
         else
             value = value.intern();
@@ -520,6 +654,7 @@ public abstract class TestFinder
             id = "";
 
         // make sure test has unique id within file
+        Map testsInFile = getReadState().testsInFile;
         Integer prevLine = (Integer)testsInFile.get(id);
         if (prevLine != null) {
             int i = 1;
@@ -566,8 +701,10 @@ public abstract class TestFinder
             System.err.println("Found TestDescription" + td.getName());
         }
 
-        if (tests == null)
-            tests = new Vector();
+        ReadState rs = getReadState();
+        if (rs.tests == null)
+            rs.tests = new Vector();
+        Vector tests = rs.tests;
 
         int target = 0;
 
@@ -617,13 +754,7 @@ public abstract class TestFinder
      * @see #foundTestDescription
      */
     public TestDescription[] getTests() {
-        if (tests == null)
-            return noTests;
-        else {
-            TestDescription[] tds = new TestDescription[tests.size()];
-            tests.copyInto(tds);
-            return tds;
-        }
+        return lastRead.getTests();
     }
 
     private static final TestDescription[] noTests = { };
@@ -635,8 +766,10 @@ public abstract class TestFinder
      * @see #getFiles
      */
     protected void foundFile(File newFile) {
-        if (files == null)
-            files = new Vector();
+        ReadState rs = getReadState();
+        if (rs.files == null)
+            rs.files = new Vector();
+        Vector files = rs.files;
 
         int target = 0;
 
@@ -694,13 +827,7 @@ public abstract class TestFinder
      * @see #foundFile
      */
     public File[] getFiles() {
-        if (files == null)
-            return new File[0];
-        else {
-            File[] fs = new File[files.size()];
-            files.copyInto(fs);
-            return fs;
-        }
+        return lastRead.getFiles();
     }
 
 
@@ -721,10 +848,8 @@ public abstract class TestFinder
     private ErrorHandler errHandler;
     private Comparator comp = getDefaultComparator();
 
-    private Vector files;
-    private Vector tests;
-
-    private Map testsInFile = new HashMap();
+    private ReadState lastRead = new ReadState(false);
+    private final ThreadLocal currentRead = new ThreadLocal();
 
     private Vector errorMessages = new Vector();
 
@@ -27,8 +27,18 @@
 package com.sun.javatest;
 
 import java.io.File;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.sun.javatest.util.DynamicArray;
 import com.sun.javatest.util.Fifo;
@@ -445,11 +455,49 @@ public class TestFinderQueue {
      */
     public static final byte FULL_READ_AHEAD = 3;
 
+    /**
+     * Set the number of threads to be used to read files in parallel.
+     * If the number is greater than one, and if the test finder supports
+     * concurrent reads, files that are about to be needed are read ahead
+     * of time by a pool of worker threads. This does not affect the order
+     * in which test descriptions are returned by {@link #next next}, which
+     * is the same as if the files were read one at a time.
+     * The default is determined by the system property
+     * "javatest.finder.parallelism"; if it is not set, files are read one
+     * at a time.
+     * @param n the number of threads to be used to read files in parallel
+     * @see #getParallelism
+     * @see TestFinder#isConcurrentReadSupported
+     */
+    public synchronized void setParallelism(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException();
+
+        if (n != parallelism) {
+            parallelism = n;
+            cancelPendingReads();
+            if (readPool != null) {
+                readPool.shutdown();
+                readPool = null;
+            }
+        }
+    }
+
+    /**
+     * Get the number of threads to be used to read files in parallel.
+     * @return the number of threads to be used to read files in parallel
+     * @see #setParallelism
+     */
+    public synchronized int getParallelism() {
+        return parallelism;
+    }
+
     /**
      * Flush all readahead.
      */
     public void flush() {
         synchronized (this) {
+            cancelPendingReads();
             filesToRead.setSize(0);
             tests.flush();
             testDescsFound.flush();
@@ -543,20 +591,46 @@ public class TestFinderQueue {
         fileInsertPosn = filesToRead.size();
 
         notifier.reading(f);
+        boolean parallel = isParallelReadEnabled();
+        TestFinder.Contents contents = null;
         try {
-            testFinder.read(f);
+            if (parallel)
+                contents = readContents(f);
+            else
+                testFinder.read(f);
         }
         finally {
-            TestDescription[] tds = testFinder.getTests();
+            TestDescription[] tds;
+            File[] files;
+            if (contents != null) {
+                // report any errors in the order they would have been
+                // reported if the file had been read by read()
+                String[] errs = contents.getErrors();
+                for (int i = 0; i < errs.length; i++)
+                    testFinder.localizedError(errs[i]);
+                tds = contents.getTests();
+                files = contents.getFiles();
+            }
+            else if (!parallel) {
+                tds = testFinder.getTests();
+                files = testFinder.getFiles();
+            }
+            else {
+                tds = new TestDescription[0];
+                files = new File[0];
+            }
+
             for (int i = 0; i < tds.length; i++) {
                 foundTestDescription(tds[i]);
             }
 
-            File[] files = testFinder.getFiles();
             for (int i = 0; i < files.length; i++) {
                 foundFile(files[i]);
             }
 
+            if (parallel)
+                startPendingReads();
+
             // done limiting tests to this id
             selectedId = null;
             filesDoneCount++;
@@ -577,6 +651,81 @@ public class TestFinderQueue {
         return true;
     }
 
+    private boolean isParallelReadEnabled() {
+        return (parallelism > 1 && testFinder.isConcurrentReadSupported());
+    }
+
+    /**
+     * Get the contents of a file, using the result of an earlier read
+     * by a worker thread if available, or reading it now if not.
+     */
+    private TestFinder.Contents readContents(File f) {
+        Future fu = (Future) (pendingReads.remove(f.getPath()));
+        if (fu != null) {
+            try {
+                return (TestFinder.Contents) (fu.get());
+            }
+            catch (InterruptedException e) {
+                // read the file directly instead, but preserve the interrupt
+                fu.cancel(false);
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e) {
+                // read the file again on this thread, so that any
+                // exception is thrown to the caller as usual
+            }
+        }
+
+        return testFinder.readContents(f);
+    }
+
+    /**
+     * Start reading the files that will be needed next, so that they have
+     * been read by the time they are needed. The files to be read next are
+     * those at the end of the filesToRead stack; reads are started for a
+     * limited number of them, so that the contents held in memory ahead of
+     * time stays bounded.
+     */
+    private void startPendingReads() {
+        if (readPool == null) {
+            readPool = new ThreadPoolExecutor(parallelism, parallelism,
+                                              THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                                              new LinkedBlockingQueue(),
+                                              new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setName("TestFinderQueue:Reader:" + readerIndex++);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            readPool.allowCoreThreadTimeOut(true);
+        }
+
+        int limit = Math.max(0, filesToRead.size() - parallelism * READS_PER_THREAD);
+        for (int i = filesToRead.size() - 1; i >= limit; i--) {
+            final File f = (File) (filesToRead.elementAt(i));
+            String p = f.getPath();
+            // files with a test id are only ever initial files, and
+            // are read directly
+            if (p.indexOf('#') != -1 || pendingReads.containsKey(p))
+                continue;
+            pendingReads.put(p, readPool.submit(new Callable() {
+                    public Object call() {
+                        return testFinder.readContents(f);
+                    }
+                }));
+        }
+    }
+
+    private void cancelPendingReads() {
+        for (Iterator iter = pendingReads.values().iterator(); iter.hasNext(); ) {
+            Future fu = (Future) (iter.next());
+            fu.cancel(false);
+        }
+        pendingReads.clear();
+    }
+
     /**
      * Add a file to the queue of files waiting to be read.
      * It will be added to the queue if it has not already been read or is
@@ -709,6 +858,13 @@ public class TestFinderQueue {
     private Thread readAheadWorker;
     private static int workerIndex;
 
+    private int parallelism = Math.max(1, Integer.getInteger("javatest.finder.parallelism", 1).intValue());
+    private ThreadPoolExecutor readPool;
+    private Map pendingReads = new HashMap();   // path -> Future(TestFinder.Contents)
+    private static int readerIndex;
+    private static final int READS_PER_THREAD = 4;
+    private static final long THREAD_KEEP_ALIVE = 5000;
+
     private Notifier notifier = new Notifier();
     private static I18NResourceBundle i18n = I18NResourceBundle.getBundleForClass(TestFinder.class);
 }
@@ -27,15 +27,18 @@
 package com.sun.javatest;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.Writer;
+import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -48,6 +51,7 @@ import java.util.LinkedList;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentMap;
 
 import com.sun.javatest.util.BackupPolicy;
 import com.sun.javatest.util.I18NResourceBundle;
@@ -397,7 +401,9 @@ public class TestResult {
             }
 
             while ((line = in.readLine()).startsWith(JTR_V2_SECTSTREAM)) {
-                OutputBuffer b = new FixedOutputBuffer(line, in);
+                OutputBuffer b = (in instanceof MappedResultReader
+                                  ? (OutputBuffer) new MappedOutputBuffer(line, (MappedResultReader) in)
+                                  : new FixedOutputBuffer(line, in));
                 buffers = (OutputBuffer[])(DynamicArray.append(buffers, b));
             }
 
@@ -588,92 +594,13 @@ public class TestResult {
             }
 
             FixedOutputBuffer(String header, BufferedReader in) throws ReloadFault {
-                String nm = extractSlice(header, JTR_V2_SECTSTREAM.length(), null, ":");
-                if (nm == null)
-                    throw new ReloadFault(i18n, "rslt.noOutputTitle");
-
-                if (nm.equals(MESSAGE_OUTPUT_NAME ))
-                    nm = MESSAGE_OUTPUT_NAME;
+                StreamHeader h = new StreamHeader(header);
 
                 try {
-                    int lines;
-                    int chars;
-                    boolean needsEscape;
-
-                    try {
-                        int start = JTR_V2_SECTSTREAM.length();
-                        lines = Integer.parseInt(extractSlice(header, start, "(", "/"));
-                        chars = Integer.parseInt(extractSlice(header, start, "/", ")"));
-                        int rp = header.indexOf(")", start);
-                        if (rp >= 0 && rp < header.length() - 2)
-                            needsEscape = (header.charAt(rp + 1) == '*');
-                        else
-                            needsEscape = false;
-                    }
-                    catch (NumberFormatException e) {
-                        // fatal parsing error
-                        throw new ReloadFault(i18n, "rslt.badHeaderVersion", e);
-                    }
-
-                    StringBuffer buff = new StringBuffer(chars);
-
-                    if (needsEscape) {
-                        for (int i = 0; i < chars; i++) {
-                            int c = in.read();
-                            if (c == -1)
-                                throw new ReloadFault(i18n, "rslt.badEOF");
-                            else if (c == '\\') {
-                                c = in.read();
-                                i++;
-                                if (c == 'u') {
-                                    c =  Character.digit((char)in.read(), 16) << 12;
-                                    c += Character.digit((char)in.read(), 16) <<  8;
-                                    c += Character.digit((char)in.read(), 16) <<  4;
-                                    c += Character.digit((char)in.read(), 16);
-                                    i += 4;
-                                }
-                                // else drop through (for \\)
-                            }
-                            buff.append((char)c);
-                        }
-                    }
-                    else {
-                        char[] data = new char[Math.min(4096, chars)];
-                        int charsRead = 0;
-                        while (charsRead < chars) {
-                            int n = in.read(data, 0, Math.min(data.length, chars-charsRead));
-                            buff.append(data, 0, n);
-                            charsRead += n;
-                        }
-                    }
+                    name = h.name;
+                    output = readOutput(in, h.chars, h.needsEscape);
 
-                    /*NEW
-                    while (true) {
-                        int c = in.read();
-                        switch (c) {
-                        case -1:
-                            throw new ReloadFault(i18n, "rslt.badEOF");
-
-                        case '\\':
-                            if (needEscape) {
-                                c = in.read();
-                                if (c == 'u') {
-                                    c =  Character.digit((char)in.read(), 16) << 12;
-                                    c += Character.digit((char)in.read(), 16) <<  8;
-                                    c += Character.digit((char)in.read(), 16) <<  4;
-                                    c += Character.digit((char)in.read(), 16);
-                                }
-                                // else drop through (for \\)
-                            }
-                            buff.append((char)c);
-                        }
-                    }
-                    */
-
-                    name = nm;
-                    output = buff.toString();
-
-                    if (buff.length() > 0 && buff.charAt(buff.length() - 1) != '\n') {
+                    if (output.length() > 0 && output.charAt(output.length() - 1) != '\n') {
                         int c = in.read();
                         if (c == '\r')
                             c = in.read();
@@ -694,6 +621,88 @@ public class TestResult {
             private final String output;
         }
 
+        private class MappedOutputBuffer implements OutputBuffer {
+            MappedOutputBuffer(String header, MappedResultReader in) throws ReloadFault {
+                StreamHeader h = new StreamHeader(header);
+                name = h.name;
+                chars = h.chars;
+                needsEscape = h.needsEscape;
+                file = in.getFile();
+                fileLength = in.getFileLength();
+                fileLastModified = in.getFileLastModified();
+                offset = in.getPosition();
+
+                try {
+                    // skip over the output; it is only read if it is required
+                    if (in.skip(chars) != chars)
+                        throw new ReloadFault(i18n, "rslt.badEOF");
+
+                    // the final character is never escaped, so it can be checked directly
+                    if (chars > 0 && in.charAt(offset + chars - 1) != '\n') {
+                        int c = in.read();
+                        if (c == '\r')
+                            c = in.read();
+                        if (c != '\n')
+                            throw new ReloadFault(i18n, "rslt.badChars", name);
+                    }
+                }
+                catch (IOException e) {
+                    // not enough data probably fatal parsing error
+                    throw new ReloadFault(i18n, "rslt.badFile", e);
+                }
+            }
+
+            public String getName() {
+                return name;
+            }
+
+            public synchronized String getOutput() {
+                String output = (cache == null ? null : (String) (cache.get()));
+                if (output == null) {
+                    output = load();
+                    cache = new SoftReference(output);
+                }
+                return output;
+            }
+
+            public PrintWriter getPrintWriter() {
+                throw new IllegalStateException("This section is immutable");
+            }
+
+            private String load() {
+                if (chars == 0)
+                    return "";
+
+                if (file.length() != fileLength || file.lastModified() != fileLastModified)
+                    return i18n.getString("rslt.outputChanged", new Object[] { name, file });
+
+                try {
+                    MappedResultReader in = new MappedResultReader(file, offset, chars);
+                    try {
+                        return readOutput(in, chars, needsEscape);
+                    }
+                    finally {
+                        in.close();
+                    }
+                }
+                catch (IOException e) {
+                    return i18n.getString("rslt.outputUnavailable", new Object[] { name, file, e });
+                }
+                catch (ReloadFault e) {
+                    return i18n.getString("rslt.outputUnavailable", new Object[] { name, file, e.getMessage() });
+                }
+            }
+
+            private final String name;
+            private final int chars;
+            private final boolean needsEscape;
+            private final File file;
+            private final long fileLength;
+            private final long fileLastModified;
+            private final int offset;
+            private SoftReference cache;
+        }
+
         private class WritableOutputBuffer extends Writer implements OutputBuffer {
             WritableOutputBuffer(String name) {
                 super(TestResult.this);
@@ -794,6 +803,79 @@ public class TestResult {
         PrintWriter getPrintWriter();
     }
 
+    // The information in the header line of an output stream in a JTR file.
+    private static class StreamHeader {
+        StreamHeader(String header) throws ReloadFault {
+            String nm = extractSlice(header, JTR_V2_SECTSTREAM.length(), null, ":");
+            if (nm == null)
+                throw new ReloadFault(i18n, "rslt.noOutputTitle");
+
+            if (nm.equals(MESSAGE_OUTPUT_NAME ))
+                nm = MESSAGE_OUTPUT_NAME;
+
+            try {
+                int start = JTR_V2_SECTSTREAM.length();
+                lines = Integer.parseInt(extractSlice(header, start, "(", "/"));
+                chars = Integer.parseInt(extractSlice(header, start, "/", ")"));
+                int rp = header.indexOf(")", start);
+                if (rp >= 0 && rp < header.length() - 2)
+                    needsEscape = (header.charAt(rp + 1) == '*');
+                else
+                    needsEscape = false;
+            }
+            catch (NumberFormatException e) {
+                // fatal parsing error
+                throw new ReloadFault(i18n, "rslt.badHeaderVersion", e);
+            }
+
+            name = nm;
+        }
+
+        final String name;
+        final int lines;
+        final int chars;
+        final boolean needsEscape;
+    }
+
+    // Read the text of an output stream in a JTR file, decoding escapes if necessary.
+    private static String readOutput(Reader in, int chars, boolean needsEscape)
+        throws IOException, ReloadFault
+    {
+        StringBuffer buff = new StringBuffer(chars);
+
+        if (needsEscape) {
+            for (int i = 0; i < chars; i++) {
+                int c = in.read();
+                if (c == -1)
+                    throw new ReloadFault(i18n, "rslt.badEOF");
+                else if (c == '\\') {
+                    c = in.read();
+                    i++;
+                    if (c == 'u') {
+                        c =  Character.digit((char)in.read(), 16) << 12;
+                        c += Character.digit((char)in.read(), 16) <<  8;
+                        c += Character.digit((char)in.read(), 16) <<  4;
+                        c += Character.digit((char)in.read(), 16);
+                        i += 4;
+                    }
+                    // else drop through (for \\)
+                }
+                buff.append((char)c);
+            }
+        }
+        else {
+            char[] data = new char[Math.min(4096, chars)];
+            int charsRead = 0;
+            while (charsRead < chars) {
+                int n = in.read(data, 0, Math.min(data.length, chars-charsRead));
+                buff.append(data, 0, n);
+                charsRead += n;
+            }
+        }
+
+        return buff.toString();
+    }
+
 
 
 
@@ -1091,7 +1173,20 @@ public class TestResult {
      * @see #BAD_CHECKSUM
      * @see #GOOD_CHECKSUM
      */
-    public byte getChecksumState() {
+    public synchronized byte getChecksumState() {
+        if (pendingChecksum != null) {
+            if (sections == null) {
+                try {
+                    reload();
+                }
+                catch (Fault f) {
+                    return BAD_CHECKSUM;
+                }
+            }
+            String cs = pendingChecksum;
+            pendingChecksum = null;
+            verifyChecksum(cs);
+        }
         return checksumState;
     }
 
@@ -1500,7 +1595,7 @@ public class TestResult {
 
         File tempFile = createTempFile(workDir, backupPolicy);
         try {
-            writeResults(tempFile, backupPolicy);
+            writeResults(workDir, tempFile, backupPolicy);
         }
         finally {
             if (tempFile.exists())
@@ -1528,12 +1623,16 @@ public class TestResult {
     /**
      * Write the results to a temporary file, and when done, rename it to resultsFile
      */
-    private void writeResults(File tempFile, BackupPolicy backupPolicy)
+    private void writeResults(WorkDirectory workDir, File tempFile, BackupPolicy backupPolicy)
         throws IOException
     {
-        FileWriter out;
+        FileOutputStream fos;
+        Writer out;
         try {
-            out = new FileWriter(tempFile);
+            fos = new FileOutputStream(tempFile);
+            // much of the content is written a character at a time, so buffer
+            // the characters ahead of the encoder
+            out = new BufferedWriter(new OutputStreamWriter(fos), WRITE_BUFFER_SIZE);
         }
         catch (IOException e) {
             execStatus = Status.error("Problem writing result file for test: " + getTestName());
@@ -1551,7 +1650,8 @@ public class TestResult {
             out.write(lineSeparator);
 
             // date and time
-            out.write("#" + (new Date()).toString());
+            out.write('#');
+            out.write((new Date()).toString());
             out.write(lineSeparator);
 
             // checksum header and data
@@ -1635,8 +1735,6 @@ public class TestResult {
                 throw new JavaTestError("Cannot write test result - it contains no sections.");
             }
 
-            StringBuffer buffer = new StringBuffer();
-
             for (int i = 0; i < sections.length; i++) {
                 sections[i].save(out);
             }
@@ -1645,11 +1743,19 @@ public class TestResult {
             out.write(JTR_V2_TSTRESULT);
             out.write(execStatus.toString());
             out.write(lineSeparator);
+            out.flush();
+            if (workDir.getResultSyncMode() == WorkDirectory.SYNC_EACH)
+                fos.getFD().sync();
             out.close();
         }   // try
         catch (IOException e) {
             // This exception could be raised when trying to create the directory
             // for the test results; opening the results file, or closing it.
+            try {
+                fos.close();
+            }
+            catch (IOException ignore) {
+            }
             execStatus = Status.error("Write to temp. JTR file failed (old JTR intact): " +
                                         tempFile.getPath());
             resultsFile = null; // file not successfully written after all
@@ -1658,6 +1764,7 @@ public class TestResult {
 
         try {
             backupPolicy.backupAndRename(tempFile, resultsFile);
+            workDir.resultWritten(resultsFile);
 
             // now that it has been successfully written out, make the object
             // a candidate for shrinking
@@ -1828,7 +1935,7 @@ public class TestResult {
         this.endTime = endTime;
     }
 
-    void shareStatus(Hashtable[] tables) {
+    void shareStatus(ConcurrentMap[] tables) {
         execStatus = shareStatus(tables, execStatus);
     }
 
@@ -2001,7 +2108,20 @@ public class TestResult {
             throw new IllegalStateException("Cannot do a reload of this object.");
 
         try {
-            reload(new FileReader(resultsFile));
+            boolean done = false;
+            if (MappedResultReader.isEnabled()) {
+                // index the output sections, rather than reading them now
+                try {
+                    reload(new MappedResultReader(resultsFile));
+                    done = true;
+                }
+                catch (MappedResultReader.UnsupportedContentException e) {
+                    // fall back on reading the file with a FileReader
+                }
+            }
+
+            if (!done)
+                reload(new FileReader(resultsFile));
 
             // Well, we have successfully reloaded it, so the object is now taking
             // up a big footprint again ... put it back on the list to be shrunk again
@@ -2024,7 +2144,9 @@ public class TestResult {
         throws ReloadFault, IOException
     {
         try {
-            BufferedReader br = new BufferedReader(r);
+            BufferedReader br = (r instanceof MappedResultReader
+                                 ? (BufferedReader) r
+                                 : new BufferedReader(r));
             String line = br.readLine();
 
             // determine JTR version
@@ -2266,7 +2388,20 @@ public class TestResult {
         if (execStatus == null)
             execStatus = Status.error("NO STATUS RECORDED IN FILE");
 
-        // check whether checksum was valid or not
+        // check whether checksum was valid or not; verifying the checksum
+        // requires all the output, so if the output has not been read yet,
+        // defer the check until the checksum state is actually required
+        if (in instanceof MappedResultReader && checksumText != null) {
+            pendingChecksum = checksumText;
+            checksumState = NO_CHECKSUM;
+        }
+        else {
+            pendingChecksum = null;
+            verifyChecksum(checksumText);
+        }
+    }
+
+    private void verifyChecksum(String checksumText) {
         if (checksumText == null)
             checksumState = NO_CHECKSUM;
         else {
@@ -2298,7 +2433,7 @@ public class TestResult {
      *            to-end-of-string.
      * @return The requested substring or null if error.
      */
-    String extractSlice(String s, int where, String start, String end) {
+    static String extractSlice(String s, int where, String start, String end) {
         int startInd;
         int endInd;
 
@@ -2351,13 +2486,14 @@ public class TestResult {
         }
     }
 
-    private static Status shareStatus(Hashtable[] tables, Status s) {
+    private static Status shareStatus(ConcurrentMap[] tables, Status s) {
         int type = s.getType();
         String reason = s.getReason();
         Status result = (Status)tables[type].get(reason);
         if (result == null) {
-            tables[type].put(reason, s);
-            result = s;
+            result = (Status)tables[type].putIfAbsent(reason, s);
+            if (result == null)
+                result = s;
         }
 
         return result;
@@ -2548,6 +2684,7 @@ public class TestResult {
     private String testURL;             // URL for this test, equal to the one in TD.getRootRelativeURL
     private long endTime = -1;          // when test finished
     private byte checksumState;         // checksum state
+    private String pendingChecksum;     // checksum yet to be verified, if any
     // the following fields are candidates for shrinking although not currently done
     private TestDescription desc;       // test description for which this is the result
     private String[] props;             // table of values written during test execution
@@ -2674,6 +2811,7 @@ public class TestResult {
         Integer.getInteger("javatest.numCachedResults", DEFAULT_MAX_SHRINK_LIST_SIZE).intValue();
     private static LinkedList shrinkList = new LinkedList();
 
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
     private static final int DEFAULT_MAX_OUTPUT_SIZE = 100000;
     private static final int maxOutputSize =
         Integer.getInteger("javatest.maxOutputSize", DEFAULT_MAX_OUTPUT_SIZE).intValue();
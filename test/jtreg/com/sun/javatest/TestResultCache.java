@@ -26,9 +26,14 @@
  */
 package com.sun.javatest;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
 import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.Map;
@@ -43,6 +48,17 @@ import com.sun.javatest.util.I18NResourceBundle;
  * work directory.  It is designed to allow the harness to get general
  * information (name, status) about tests without having to open all the
  * result files.
+ *
+ * <p>The cache file is a log of the results of tests, each recorded with a
+ * checksum, following a header identifying the format of the file.  New
+ * results are appended to the file; periodically, the file is compacted by
+ * rewriting it with just the latest result for each test.  If the end of
+ * the file is found to be incomplete or corrupt, for example because a
+ * previous client was killed while writing it, the damaged entries are
+ * discarded, and the rest of the file is used; the cache is only rebuilt
+ * by reading all the result files in the work directory if the file cannot
+ * be used at all.  Results are read from and written to the file in bulk,
+ * to minimize the number of I/O operations.
  */
 public class TestResultCache {
     /**
@@ -116,8 +132,8 @@ public class TestResultCache {
         weakWorkDir = new WeakReference(workDir);
         weakObserver = new WeakReference(observer);
 
-        cacheFile = workDir.getSystemFile(V2_FILENAME);
-        lockFile = workDir.getSystemFile(V2_LOCKNAME);
+        cacheFile = workDir.getSystemFile(V3_FILENAME);
+        lockFile = workDir.getSystemFile(V3_LOCKNAME);
 
         File old = workDir.getSystemFile(V1_FILENAME);
         if (old.exists()) {
@@ -131,6 +147,18 @@ public class TestResultCache {
             old.delete();
         }
 
+        old = workDir.getSystemFile(V2_FILENAME);
+        if (old.exists()) {
+            workDir.log(i18n, "trc.rmCachev2", old.getAbsolutePath());
+            old.delete();
+        }
+
+        old = workDir.getSystemFile(V2_LOCKNAME);
+        if (old.exists()) {
+            workDir.log(i18n, "trc.rmLockv2", old.getAbsolutePath());
+            old.delete();
+        }
+
         raf = new RandomAccessFile(cacheFile, "rw");
 
         worker = new Thread() {
@@ -338,7 +366,7 @@ public class TestResultCache {
             }
 
             // if cache is empty, rebuild it from .jtr files;
-            // note that a valid cache with no tests has length 4
+            // note that a valid cache with no tests has length HEADER_SIZE
             if (rebuildCache) {
                 observer.buildingCache(rebuildCache);
                 tests = readJTRFiles();
@@ -533,7 +561,14 @@ public class TestResultCache {
         if (DEBUG_WORK)
             Debug.println("TRC.readCache");
 
+        if (raf.length() < HEADER_SIZE)
+            throw new IllegalArgumentException("cache file too short");
+
         raf.seek(0);
+        int magic = raf.readInt();
+        int version = raf.readInt();
+        if (magic != MAGIC || version != VERSION)
+            throw new IllegalArgumentException("bad cache file header");
         int fileSerial = raf.readInt();
 
         if (DEBUG_WORK)
@@ -547,7 +582,7 @@ public class TestResultCache {
             // read full cache
             lastSerial = fileSerial;
             totalEntryCount = 0;
-            Map tests = readCacheEntries();
+            Map tests = readCacheEntries(HEADER_SIZE);
             uniqueInitialEntryCount = tests.size();
 
             if (DEBUG_WORK)
@@ -557,8 +592,7 @@ public class TestResultCache {
         }
         else if (raf.length() > lastFileSize) {
             // just read updates from file
-            raf.seek(lastFileSize);
-            Map tests = readCacheEntries();
+            Map tests = readCacheEntries(lastFileSize);
 
             if (DEBUG_WORK)
                 Debug.println("TRC.readCache read update (" + tests.size() + " tests)");
@@ -573,16 +607,40 @@ public class TestResultCache {
         }
     }
 
-    private Map readCacheEntries()
+    /**
+     * Read the entries in the cache file, from the given position to the
+     * end of the file.  The entries are read with a single read operation.
+     * If an incomplete or corrupt entry is found, it and any subsequent
+     * entries are removed from the file.
+     */
+    private Map readCacheEntries(long start)
         throws IOException, IllegalArgumentException
     {
         Map tests = new TreeMap();
-        while (raf.getFilePointer() < raf.length()) {
-            String name = raf.readUTF();
-            int status = raf.readInt();
-            String reason = raf.readUTF();
-            long endTime = raf.readLong();
-            TestResult tr = new TestResult(name, workDir, new Status(status, reason), endTime);
+        long length = raf.length();
+        if (length - start > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("cache file too big");
+        byte[] data = new byte[(int) (length - start)];
+        raf.seek(start);
+        raf.readFully(data);
+
+        CRC32 crc = new CRC32();
+        int pos = 0;
+        while (data.length - pos >= ENTRY_OVERHEAD) {
+            int size = getInt(data, pos);
+            if (size <= 0 || size > data.length - pos - ENTRY_OVERHEAD)
+                break;
+
+            crc.reset();
+            crc.update(data, pos + 4, size);
+            if (getInt(data, pos + 4 + size) != (int) crc.getValue())
+                break;
+
+            TestResult tr = readCacheEntry(data, pos + 4, size);
+            if (tr == null)
+                break;
+            pos += size + ENTRY_OVERHEAD;
+
             File f = tr.getFile();
             if (!f.exists()) {
                 tr.resetFile();
@@ -590,10 +648,47 @@ public class TestResultCache {
             tests.put(tr.getWorkRelativePath(), tr);
             totalEntryCount++; // count all entries, including duplicates
         }
-        lastFileSize = raf.length();
+
+        if (pos < data.length) {
+            // discard the damaged entries at the end of the file
+            if (DEBUG_BASIC)
+                Debug.println("TRC.truncate " + (data.length - pos) + " bytes at " + (start + pos));
+            workDir.log(i18n, "trc.truncated", Long.valueOf(data.length - pos));
+            raf.setLength(start + pos);
+        }
+
+        lastFileSize = start + pos;
         return tests;
     }
 
+    /**
+     * Read the data for an entry from an array of bytes read from the cache file.
+     * @return the entry, or null if the data is invalid
+     */
+    private TestResult readCacheEntry(byte[] data, int offset, int size) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, size));
+            String name = in.readUTF();
+            int status = in.readInt();
+            String reason = in.readUTF();
+            long endTime = in.readLong();
+            return new TestResult(name, workDir, new Status(status, reason), endTime);
+        }
+        catch (IOException e) {
+            // should not happen, if the checksum is correct
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            // bad status
+            return null;
+        }
+    }
+
+    private static int getInt(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+            | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+    }
+
     //-------------------------------------------------------------------------------------
     //
     // Write the cache
@@ -620,15 +715,25 @@ public class TestResultCache {
         }
 
         // write cache
-        raf.seek(0);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
         long now = System.currentTimeMillis();
         lastSerial = (int) ((now >> 16) + (now & 0xffff));
-        raf.writeInt(lastSerial);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(lastSerial);
 
+        totalEntryCount = 0;
+        CRC32 crc = new CRC32();
         for (Iterator iter = tests.values().iterator(); iter.hasNext(); ) {
             tr = (TestResult) (iter.next());
-            writeCacheEntry(tr);
+            writeCacheEntry(out, tr, crc);
         }
+        out.flush();
+
+        raf.seek(0);
+        raf.write(bytes.toByteArray());
+        raf.setLength(bytes.size());
 
         if (DEBUG_WORK)
             Debug.println("TRC.writeCache write all (" + tests.size() + " tests)");
@@ -642,7 +747,9 @@ public class TestResultCache {
         // it till its empty, even though some tests may even have been added
         // after the worker woke up
         int debugCount = 0;
-        raf.seek(lastFileSize);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        CRC32 crc = new CRC32();
         TestResult tr;
         while ((tr = (TestResult) (testsToWrite.remove())) != null) {
             if (tests != null) {
@@ -656,21 +763,42 @@ public class TestResultCache {
                         tr = reload(tests, tr);
                 }
             }
-            writeCacheEntry(tr);
+            writeCacheEntry(out, tr, crc);
             debugCount++;
         }
+        out.flush();
+        if (bytes.size() > 0) {
+            raf.seek(lastFileSize);
+            raf.write(bytes.toByteArray());
+        }
         if (DEBUG_WORK && debugCount > 0)
             Debug.println("TRC.writeCache write update (" + debugCount + " tests)");
         lastFileSize = raf.length();
     }
 
-    private void writeCacheEntry(TestResult tr) throws IOException {
+    /**
+     * Write an entry for the cache file: the size of the data for the
+     * entry, the data, and a checksum for the data.
+     */
+    private void writeCacheEntry(DataOutputStream out, TestResult tr, CRC32 crc)
+        throws IOException
+    {
         String name = tr.getTestName();
         Status status = tr.getStatus();
-        raf.writeUTF(name);
-        raf.writeInt(status.getType());
-        raf.writeUTF(status.getReason());
-        raf.writeLong(tr.getEndTime());
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        DataOutputStream entryOut = new DataOutputStream(entryBytes);
+        entryOut.writeUTF(name);
+        entryOut.writeInt(status.getType());
+        entryOut.writeUTF(status.getReason());
+        entryOut.writeLong(tr.getEndTime());
+        entryOut.flush();
+
+        byte[] data = entryBytes.toByteArray();
+        crc.reset();
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
         totalEntryCount++;
     }
 
@@ -801,6 +929,16 @@ public class TestResultCache {
     private static final String V1_LOCKNAME = V1_FILENAME + ".lck";
     private static final String V2_FILENAME = "ResultCache2.jtw";
     private static final String V2_LOCKNAME = V2_FILENAME + ".lck";
+    private static final String V3_FILENAME = "ResultCache3.jtw";
+    private static final String V3_LOCKNAME = V3_FILENAME + ".lck";
+
+    // the cache file header: magic number, format version, and serial number
+    private static final int MAGIC = 0x4A545243; // "JTRC"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 12;
+
+    // the bytes in each entry in addition to the data: size and checksum
+    private static final int ENTRY_OVERHEAD = 8;
 
     // other
     private static I18NResourceBundle i18n = I18NResourceBundle.getBundleForClass(TestResultCache.class);
@@ -37,6 +37,15 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.sun.javatest.util.Debug;
 import com.sun.javatest.util.DynamicArray;
@@ -51,6 +60,15 @@ import java.util.HashSet;
  * may not have been run, but just "found" so far.  TestResultTable is
  * populated by using a TestFinder, and is subsequently updated as tests are
  * run by the harness.
+ *
+ * A result for a test that is already in the table replaces the old one
+ * while holding only the lock on the node containing the test, so that
+ * several threads may update the table at once. Readers do not get a
+ * consistent snapshot of the table: while it is being updated, an iterator
+ * returns each test once, but may return some tests in their old state and
+ * others in their new state, and the status counters of a node may briefly
+ * disagree with the tests below it. Observers may be notified from several
+ * threads at once, and notifications for different tests may be interleaved.
  */
 
 // debug values:
@@ -66,6 +84,12 @@ public class TestResultTable {
         if (trCache != null) {
             trCache.shutdown();
         }
+        synchronized (readPoolLock) {
+            if (readPool != null) {
+                readPool.shutdownNow();
+                readPool = null;
+            }
+        }
     }
 
     /**
@@ -236,9 +260,9 @@ public class TestResultTable {
      */
     public TestResultTable() {
         //table = new Hashtable();
-        statusTables = new Hashtable[Status.NUM_STATES];
+        statusTables = new ConcurrentHashMap[Status.NUM_STATES];
         for (int i = 0; i < statusTables.length; i++)
-            statusTables[i] = new Hashtable();
+            statusTables[i] = new ConcurrentHashMap();
 
         root = new TRT_TreeNode(this, null);
 
@@ -1039,11 +1063,79 @@ public class TestResultTable {
         String key = tr.getWorkRelativePath();
         //maxDepth = 0;
 
+        // Most updates, such as those for tests that have just been run,
+        // replace a test that is already in the tree; try to do that while
+        // only holding the lock on the node containing the test, so that
+        // many threads can update the table at once.
+        TestResult prev = replace(key, tr);
+        if (prev != null)
+            return prev;
+
         TRT_TreeNode[] path = new TRT_TreeNode[0];
 
         return insert(root, key, tr, path, suppressScan);
     }
 
+    /**
+     * Replace an existing test in the tree, without holding the lock on
+     * the table. The test is only replaced if all the nodes on the path
+     * to the test already exist, and if the table is not being updated
+     * from the cache; in all other cases, the test must be inserted
+     * with {@link #insert(TRT_TreeNode, String, TestResult, TRT_TreeNode[], boolean)}.
+     *
+     * @param path The work relative path of the test.
+     * @param tr The test result to put in the tree.
+     * @return The test result which was replaced, or the given test result if
+     *         it was not used because it was equivalent to the existing one,
+     *         or null if the test could not be replaced and needs to be inserted.
+     */
+    private TestResult replace(String path, TestResult tr) {
+        if (!cacheInitialized || updateInProgress || root == null)
+            return null;
+
+        ArrayList nodes = new ArrayList();
+        TRT_TreeNode node = root;
+        String p = path;
+        String rest;
+        while ((rest = behead(p)) != p) {
+            nodes.add(node);
+            node = node.getTreeNode(getDirName(p), true);
+            if (node == null)
+                return null;
+            p = rest;
+        }
+        nodes.add(node);
+
+        // The last parameter means that the test is not added if it is
+        // not already present. The node is not scanned: scanning may need
+        // the lock on the table, which must not be acquired while holding
+        // the lock on a node, so nodes that need scanning are left to insert().
+        TestResult oldTR = node.addChild(tr, true, true);
+        if (oldTR == null || oldTR == tr)
+            return oldTR;
+
+        int index = node.getIndex(tr, true);
+        if (index != -1) {
+            // handover known info if new tr is minimal
+            if (tr.isShrunk()) {
+                try {
+                    TestDescription desc = oldTR.getDescription();
+                    if (desc != null)
+                        tr.setTestDescription(desc);
+                }
+                catch (TestResult.Fault f) {
+                    // give up
+                }
+            }
+
+            TRT_TreeNode[] rec = (TRT_TreeNode[]) (nodes.toArray(new TRT_TreeNode[nodes.size()]));
+            notifyRemoveLeaf(rec, oldTR, index);
+            notifyNewLeaf(rec, tr, index);
+        }
+
+        return oldTR;
+    }
+
     /**
      * Insert the given test and indicate that test's previous status.
      *
@@ -1433,6 +1525,120 @@ public class TestResultTable {
         return finder.isFolder(f);
     }
 
+    /**
+     * Set the number of threads that may be used to read files with the
+     * test finder while the table is being populated. Files are only read
+     * in parallel if the value is greater than one, and if the test finder
+     * supports concurrent reads.
+     * The default is given by the system property
+     * <code>javatest.finder.parallelism</code>, or one if it is not set.
+     * @param n the number of threads that may be used to read files
+     * @see TestFinder#isConcurrentReadSupported
+     */
+    public void setFinderParallelism(int n) {
+        synchronized (readPoolLock) {
+            finderParallelism = Math.max(1, n);
+            if (readPool != null) {
+                readPool.shutdown();
+                readPool = null;
+            }
+        }
+    }
+
+    /**
+     * Get the number of threads that may be used to read files with the
+     * test finder while the table is being populated.
+     * @return the number of threads that may be used to read files
+     * @see #setFinderParallelism
+     */
+    public int getFinderParallelism() {
+        return finderParallelism;
+    }
+
+    /**
+     * Determine whether files should be read ahead of time on the reader
+     * threads while nodes are being scanned.
+     */
+    boolean isParallelReadEnabled() {
+        return (finder != null
+                && finderParallelism > 1
+                && finder.isConcurrentReadSupported());
+    }
+
+    /**
+     * Start reading a file on one of the reader threads.
+     * @param f The file to be read.
+     * @return a future for the contents of the file
+     */
+    Future startRead(final File f) {
+        final TestFinder tf = finder;
+        Callable c = new Callable() {
+                public Object call() {
+                    return tf.readContents(f);
+                }
+            };
+
+        synchronized (readPoolLock) {
+            if (readPool == null) {
+                readPool = new ThreadPoolExecutor(finderParallelism, finderParallelism,
+                                                  READER_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                                                  new LinkedBlockingQueue(),
+                                                  new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r);
+                            t.setName("TestResultTable:Reader:" + readerIndex++);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                readPool.allowCoreThreadTimeOut(true);
+            }
+
+            return readPool.submit(c);
+        }
+    }
+
+    /**
+     * Get the contents of a file, using the result of an earlier call of
+     * {@link #startRead startRead} if available, or reading it now if not.
+     * @param f The file to be read.
+     * @param fu The result of an earlier call of startRead for the file,
+     *        or null if none.
+     */
+    TestFinder.Contents readContents(File f, Future fu) {
+        if (fu != null) {
+            try {
+                return (TestFinder.Contents) (fu.get());
+            }
+            catch (InterruptedException e) {
+                // read the file directly instead, but preserve the interrupt
+                fu.cancel(false);
+                Thread.currentThread().interrupt();
+            }
+            catch (CancellationException e) {
+                // the pool was shut down; read the file directly instead
+            }
+            catch (ExecutionException e) {
+                // read the file again on this thread, so that any
+                // exception is thrown to the caller as usual
+            }
+        }
+
+        return finder.readContents(f);
+    }
+
+    /**
+     * Cancel any reads which were started but whose results are no longer needed.
+     * @param pendingReads a map whose values are the results of startRead
+     */
+    void cancelReads(Map pendingReads) {
+        for (Iterator iter = pendingReads.values().iterator(); iter.hasNext(); ) {
+            Future fu = (Future) (iter.next());
+            fu.cancel(false);
+        }
+        pendingReads.clear();
+    }
+
     /**
      * Determine the last logical time that a file was modified.
      * This is the semantic equivalent of File.lastModified(), but shielded
@@ -2206,7 +2412,7 @@ public class TestResultTable {
     /*OLD
     private static final String formatVersion = "JavaTest/Results/2.0";
     */
-    private Hashtable[] statusTables;
+    private ConcurrentHashMap[] statusTables;
                                 // tables indexed by status.type mapping status.reason
                                 // to a unique status object
     private WorkDirectory workDir;
@@ -2217,6 +2423,13 @@ public class TestResultTable {
     private TreeObserver[] treeObservers = new TreeObserver[0];
     private TestResultCache trCache;
 
+    private volatile int finderParallelism =
+        Math.max(1, Integer.getInteger("javatest.finder.parallelism", 1).intValue());
+    private ThreadPoolExecutor readPool;
+    private final Object readPoolLock = new Object();
+    private static int readerIndex;
+    private static final long READER_KEEP_ALIVE = 5000;
+
     private boolean suppressFinderScan = false; // false is traditional
 
     private Updater updater = new Updater();
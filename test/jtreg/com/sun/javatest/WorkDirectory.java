@@ -35,6 +35,7 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -748,6 +749,127 @@ public class WorkDirectory
         testResultTable = trt;
     }
 
+    /**
+     * A value for {@link #setResultSyncMode setResultSyncMode} indicating that
+     * result files are not explicitly forced to the storage device when they
+     * are written, but are left to be written out by the operating system.
+     */
+    public static final int SYNC_NONE = 0;
+
+    /**
+     * A value for {@link #setResultSyncMode setResultSyncMode} indicating that
+     * each result file is forced to the storage device before it replaces
+     * any previous result for the test.
+     */
+    public static final int SYNC_EACH = 1;
+
+    /**
+     * A value for {@link #setResultSyncMode setResultSyncMode} indicating that
+     * result files are forced to the storage device in batches, either when
+     * a number of results have been written, or when {@link #syncResults} is
+     * called, such as at the end of a test run.
+     */
+    public static final int SYNC_BATCH = 2;
+
+    /**
+     * Get the policy for forcing result files to the storage device.
+     * The default is determined by the system property "javatest.results.sync",
+     * which may be set to "none", "each" or "batch"; if it is not set,
+     * the default is {@link #SYNC_NONE}.
+     * @return the policy for forcing result files to the storage device
+     * @see #setResultSyncMode
+     */
+    public int getResultSyncMode() {
+        return resultSyncMode;
+    }
+
+    /**
+     * Set the policy for forcing result files to the storage device.
+     * @param mode one of {@link #SYNC_NONE}, {@link #SYNC_EACH} or {@link #SYNC_BATCH}
+     * @see #getResultSyncMode
+     */
+    public void setResultSyncMode(int mode) {
+        if (mode != SYNC_NONE && mode != SYNC_EACH && mode != SYNC_BATCH)
+            throw new IllegalArgumentException();
+
+        if (resultSyncMode == SYNC_BATCH && mode != SYNC_BATCH)
+            syncResults();
+
+        resultSyncMode = mode;
+    }
+
+    /**
+     * Force any result files that have been written but not yet forced
+     * to the storage device to be written out. This only has an effect
+     * if the result sync mode is {@link #SYNC_BATCH}.
+     * @see #setResultSyncMode
+     */
+    public void syncResults() {
+        File[] files;
+        synchronized (pendingSyncFiles) {
+            if (pendingSyncFiles.size() == 0)
+                return;
+            files = (File[]) (pendingSyncFiles.toArray(new File[pendingSyncFiles.size()]));
+            pendingSyncFiles.clear();
+        }
+
+        for (int i = 0; i < files.length; i++) {
+            // the result may since have been removed; don't create it again
+            if (!files[i].exists())
+                continue;
+
+            try {
+                // the file must be opened for writing to be forced on all
+                // platforms: on Windows, a read-only descriptor cannot be synced
+                RandomAccessFile raf = new RandomAccessFile(files[i], "rw");
+                try {
+                    raf.getFD().sync();
+                }
+                finally {
+                    raf.close();
+                }
+            }
+            catch (FileNotFoundException e) {
+                // the result cannot be opened, for example because its
+                // directory has been removed; ignore it
+            }
+            catch (IOException e) {
+                log(i18n, "wd.cantSync", new Object[] { files[i], e });
+            }
+        }
+    }
+
+    /**
+     * Record that a result file has been written, so that it can be
+     * forced to the storage device with the next batch, if appropriate.
+     * @param file the result file that has been written
+     */
+    void resultWritten(File file) {
+        if (resultSyncMode != SYNC_BATCH)
+            return;
+
+        boolean full;
+        synchronized (pendingSyncFiles) {
+            pendingSyncFiles.add(file);
+            full = (pendingSyncFiles.size() >= SYNC_BATCH_SIZE);
+        }
+
+        if (full)
+            syncResults();
+    }
+
+    private static int getDefaultResultSyncMode() {
+        String s = System.getProperty("javatest.results.sync");
+        if (s == null || s.equals("none"))
+            return SYNC_NONE;
+        else if (s.equals("each"))
+            return SYNC_EACH;
+        else if (s.equals("batch"))
+            return SYNC_BATCH;
+        else
+            return SYNC_NONE;
+    }
+
     /**
      * Print a text message to the workdir logfile.
      * A single line of text which is as short as possible is highly
@@ -930,6 +1052,8 @@ public class WorkDirectory
     private File jtData;
     private String logFileName;
     private LogFile logFile;
+    private int resultSyncMode = getDefaultResultSyncMode();
+    private final ArrayList pendingSyncFiles = new ArrayList();
     private static HashMap dirMap = new HashMap(2);     // must be manually synchronized
     private static final String JTDATA = "jtData";
     private static final String TESTSUITE = "testsuite";
@@ -937,6 +1061,7 @@ public class WorkDirectory
     private static final String TESTSUITE_NAME = "name";
     private static final String TESTSUITE_ROOT = "root";
     private static final String TESTSUITE_TESTCOUNT = "testCount";
+    private static final int SYNC_BATCH_SIZE = 256;
 
     private static I18NResourceBundle i18n = I18NResourceBundle.getBundleForClass(WorkDirectory.class);
 }
@@ -94,14 +94,40 @@ public class ActiveAgentCommand extends Command
 
         try {
             AgentManager mgr = AgentManager.access();
-            AgentManager.Task t = mgr.connectToActiveAgent();
+            String failedAgents = null;
+            for (int attempt = 0; ; attempt++) {
+                AgentManager.Task t = mgr.connectToActiveAgent();
 
-            if (classPath != null)
-                t.setClassPath(classPath);
+                if (classPath != null)
+                    t.setClassPath(classPath);
 
-            out.println("Executing command via " + t.getConnection().getName());
+                String name = t.getConnection().getName();
+                out.println("Executing command via " + name);
 
-            return t.executeCommand(tag, cmdClass, cmdArgs, localizeArgs, err, out);
+                Status s = t.executeCommand(tag, cmdClass, cmdArgs, localizeArgs, err, out);
+
+                if (t.isAgentFailure()) {
+                    // If the agent failed before accepting the command, for example
+                    // because it had already exited, the command has not written
+                    // any output, and can be run again on another agent.
+                    // Once accepted, the command may itself have caused the failure,
+                    // for example by calling System.exit, so it is not run again.
+                    if (!t.isRequestAccepted() && attempt < MAX_REDISPATCH) {
+                        out.println("Agent " + name + " failed before accepting the command ("
+                                    + s.getReason() + "); trying another agent");
+                        failedAgents = (failedAgents == null ? name : failedAgents + ", " + name);
+                        continue;
+                    }
+
+                    if (t.isRequestAccepted())
+                        s = s.augment("agent failed while running the command; not run again");
+                }
+
+                if (failedAgents != null)
+                    s = s.augment("run again after agent failure: " + failedAgents);
+
+                return s;
+            }
         }
         catch (InterruptedException e) {
             return Status.error("Interrupted while waiting for agent");
@@ -113,4 +139,8 @@ public class ActiveAgentCommand extends Command
             return Status.error("No agents available for use: " + e.getMessage());
         }
     }
+
+    // the number of times a command will be dispatched to another agent,
+    // if the agent given it fails before accepting it
+    private static final int MAX_REDISPATCH = 2;
 }
@@ -28,15 +28,26 @@ package com.sun.javatest.agent;
 
 
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.ServerSocket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import com.sun.javatest.util.DynamicArray;
-import java.io.InterruptedIOException;
 
 /**
  * A holding area in which to keep incoming requests from active agents
@@ -76,17 +87,45 @@ public class ActiveAgentPool
         void removedFromPool(Connection c);
     }
 
+    /**
+     * Used to choose between the agents that are available in the pool.
+     */
+    interface LoadMonitor {
+        /**
+         * Get the number of tasks that have been run on a connection to an agent.
+         * @param c the connection to the agent
+         * @return the number of tasks that have been run on the connection:
+         * agents that have run fewer tasks are preferred.
+         */
+        int getUses(Connection c);
+
+        /**
+         * Get the current load on the host of an agent.
+         * @param c the connection to the agent
+         * @return a measure of the current load on the host of the agent:
+         * of the agents that have run the same number of tasks, those on
+         * hosts with a lower load are preferred.
+         */
+        int getHostLoad(Connection c);
+    }
+
     //--------------------------------------------------------------------------
 
     /**
      * An entry requesting an active agent that is available for
      * use.
+     * The socket for the entry is a non-blocking channel, serviced by the
+     * pool's selector thread: while the entry is in the pool, the selector
+     * watches for the agent closing the connection prematurely; once the
+     * entry has been taken from the pool, the selector reads incoming data
+     * into a buffer, from which it is returned by the entry's input stream.
+     * Threads reading from or writing to the entry simply wait on the entry,
+     * and so can be interrupted, for example, when a test times out.
      */
     class Entry implements Connection {
-        Entry(Socket socket) throws IOException {
-            this.socket = socket;
-            socketInput = socket.getInputStream();
-            socketOutput = socket.getOutputStream();
+        Entry(SocketChannel channel) {
+            this.channel = channel;
+            socket = channel.socket();
         }
 
         public String getName() {
@@ -102,149 +141,23 @@ public class ActiveAgentPool
             return name;
         }
 
-        public synchronized InputStream getInputStream() {
-            // If there is no read outstanding in the watcher thread and
-            // no buffered data available take the fast way out and simply
-            // use the real socket stream.
-            if (!reading && data == null)
-                return socketInput;
-
-            // If there is a read outstanding in the watcher  thread, or if there
-            // is already buffered data available, create a stream to return that
-            // data first.
-            return new InputStream() {
-                public int read() throws IOException {
-                    // don't bother to optimize method this because stream should
-                    // be wrapped in a BufferedInputStream
-                    byte[] b = new byte[1];
-                    int n = read(b);
-                    if (n == -1) {
-                        return -1;
-                    }
-                    else {
-                        n = 0xFF & b[0];
-                        return n;
-                    }
-                }
-                public int read(byte[] buffer, int offset, int count) throws IOException {
-                    if (count == 0) // we ought to check
-                        return 0;
-
-                    try {
-                        // if the watcher thread has a read outstanding, wait for it to
-                        // complete
-                        waitWhileReading();
-//                  }
-//                  catch (InterruptedException ignore) {
-//                  }
-//
-//                        if (data == null) {
-//                            // no data available: must have been used already;
-//                            // simply delegate to socketInput
-//                            return socketInput.read(buffer, offset, count);
-//                        }
-                        if (data == null) {
-                            return new InterruptableReader().read(buffer, offset, count);
-                        }
-                    }
-                    catch (InterruptedException ie) {
-                        InterruptedIOException iio =
-                                new InterruptedIOException("Test execution timeout");
-                        iio.fillInStackTrace();
-                        throw iio;
-                    }
-                    try {
-                        if (data instanceof Integer) {
-                            int i = ((Integer)data).intValue();
-                            if (i == -1)
-                                return -1;
-                            else {
-                                buffer[offset] = (byte)i;
-                                return 1;
-                            }
-                        }
-                        else {
-                            IOException e = (IOException)data;
-                            e.fillInStackTrace();
-                            throw e;
-                        }
-                    }
-                    finally {
-                        data = null;
-                    }
-                }
-                public void close() throws IOException {
-                    socketInput.close();
-                }
-            };
-        }
-
-        /*
-         * This class made to read form socket input stream from separate thread.
-         * Thread, from which reading invokes (let's call it 'main'), waits
-         * befor end of reading from socket.
-         * Waiting allows harness to interrupt 'main' thread and thus manage
-         * timeout situation correctly.
-         * The same thing is made for passive agent.
-         * See <code>PassiveConnectionFactory.nextConnection()</code> and
-         * <code>AgentManager.connectToPassiveAgent()</code> methods where
-         * InterruptableSocketConnection used instead of usual SocketConnection.
-         */
-        private class InterruptableReader {
-            private IOException ioe;
-            private int n;
-
-            public int read(byte[] buffer, int offset, int count)
-                    throws IOException, InterruptedException {
-                synchronized (Entry.this) {
-                    ioe = null;
-                    n = -1;
-
-                    readInThread(buffer, offset, count);
-                    waitWhileReading();
-
-                    if (ioe != null) {
-                        throw ioe;
-                    }
-
-                    return n;
-                }
-            }
-            private void readInThread(byte[] buffer, int offset, int count) {
-                final byte[] b = buffer;
-                final int o = offset;
-                final int c = count;
-
-                Thread reader = new Thread() {
-                    public void run() {
-                        try {
-                            n = socketInput.read(b, o, c);
-                        }
-                        catch (IOException io) {
-                            ioe = io;
-                        }
-                        finally {
-                            synchronized(Entry.this) {
-                                reading = false;
-                                Entry.this.notifyAll();
-                            }
-                        }
-                    }
-                };
-                reading = true;
-                reader.start();
-            }
+        public InputStream getInputStream() {
+            return socketInput;
         }
 
         public OutputStream getOutputStream() {
             return socketOutput;
         }
 
-        public synchronized void close() throws IOException {
-            socketInput.close();
-            socketOutput.close();
-            closed = true;
-            notifyAll();
+        public void close() throws IOException {
+            synchronized (this) {
+                channel.close();
+                closed = true;
+                notifyAll();
+            }
+            // the socket is not actually released until the selector
+            // next notices that the channel has been closed
+            wakeupSelector();
         }
 
         public synchronized boolean isClosed() {
@@ -260,62 +173,201 @@ public class ActiveAgentPool
             }
         }
 
-        void readAhead() {
+        /**
+         * Put this entry back in the pool, after the agent has completed a task
+         * and offered to accept further requests on the same connection.
+         * @param state information for whoever next takes the entry from the pool
+         * @return true if the entry was put back, or false if the connection is
+         *  no longer usable
+         */
+        synchronized boolean returnToPool(Object state) {
+            if (closed || eof || error != null || buffer.position() > 0)
+                return false;
+            idleState = state;
+            entries.add(this);
+            return true;
+        }
+
+        /**
+         * Get the information, if any, left by the previous user of this entry
+         * when it was put back in the pool.
+         * @return the information, or null if none
+         */
+        synchronized Object takeIdleState() {
+            Object s = idleState;
+            idleState = null;
+            return s;
+        }
+
+        /**
+         * Called on the selector thread when the channel is ready for
+         * one or more of the operations currently of interest.
+         */
+        void ready() {
+            boolean drop = false;
             synchronized (this) {
-                if (!entries.contains(this))
-                    // if this entry has already been removed from the agent pool,
-                    // there is no need to monitor the socket, so exit without reading.
-                    // This is an optimization only; the entry could be being removed
-                    // right now, but the synchronized block we are in will handle
-                    // everything OK.
-                    return;
+                if (key.isWritable())
+                    writeWaiting = false;
+
+                if (key.isReadable()) {
+                    try {
+                        if (channel.read(buffer) == -1)
+                            eof = true;
+                    }
+                    catch (IOException e) {
+                        error = e;
+                    }
+
+                    // If the entry is still in the pool, the agent has closed
+                    // the connection (or sent something unexpected) before
+                    // anyone asked it to do anything, so drop the socket.
+                    // Otherwise, the data is saved for the new owner of the
+                    // entry, which reads it via getInputStream.
+                    drop = entries.remove(this);
+                }
 
-                // mark this object as busy doing a read; other synchronized methods
-                // (ie getInputStream()) should take this into account
-                reading = true;
+                notifyAll();
             }
 
-            // initiate a blocking read call on the socket, in the hope of being
-            // notified if the socket gets closed prematurely. If it does
-            // (i.e. if the read terminates while the entry is still in the pool),
-            // the entry is removed from the pool and the socket closed.
-            // Otherwise, if the entry is removed from the pool while the read is blocked,
-            // then when the read terminates the data will be saved for use by the
-            // new owner (via getInputStream), and the thread will be marked as no
-            // longer doing a read.
+            if (drop)
+                closeNoExceptions(this);
+            else
+                updateInterest();
+        }
+
+        /**
+         * Set the operations of interest for the channel, according to
+         * the current state of the entry. Must be called on the selector thread.
+         */
+        synchronized void updateInterest() {
+            if (key == null || !key.isValid())
+                return;
+
+            int ops = 0;
+            if (!eof && error == null && buffer.hasRemaining())
+                ops |= SelectionKey.OP_READ;
+            if (writeWaiting)
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        private void requestUpdateInterest() {
+            submit(new Runnable() {
+                public void run() {
+                    updateInterest();
+                }
+            });
+        }
+
+        private synchronized int read(byte[] b, int offset, int count) throws IOException {
             try {
-                data = new Integer(socketInput.read());
+                while (buffer.position() == 0 && !eof && error == null && !closed)
+                    wait();
             }
-            catch (IOException e) {
-                data = e;
-            }
-            finally {
-                synchronized (this) {
-                    boolean ok = entries.remove(this);
-                    if (ok)
-                        // The read has unblocked prematurely and no one else
-                        // owns the entry (since we managed to remove it ourselves.
-                        // Drop the socket.
-                        closeNoExceptions(this);
-
-                    reading = false;
-                    notifyAll();
-                }
+            catch (InterruptedException ie) {
+                InterruptedIOException iio =
+                        new InterruptedIOException("Test execution timeout");
+                iio.fillInStackTrace();
+                throw iio;
+            }
+
+            if (buffer.position() > 0) {
+                boolean full = !buffer.hasRemaining();
+                buffer.flip();
+                int n = Math.min(count, buffer.remaining());
+                buffer.get(b, offset, n);
+                buffer.compact();
+                // the selector stops reading when the buffer is full,
+                // so tell it there is now room for more
+                if (full)
+                    requestUpdateInterest();
+                return n;
+            }
+
+            if (closed)
+                throw new SocketException("Socket closed");
+
+            if (error != null) {
+                IOException e = error;
+                e.fillInStackTrace();
+                throw e;
             }
+
+            return -1;
         }
 
-        private synchronized void waitWhileReading() throws InterruptedException {
-            while (reading)
-                wait();
+        private void write(byte[] b, int offset, int count) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(b, offset, count);
+            while (bb.hasRemaining()) {
+                if (channel.write(bb) == 0)
+                    waitUntilWritable();
+            }
         }
 
+        private synchronized void waitUntilWritable() throws IOException {
+            writeWaiting = true;
+            requestUpdateInterest();
+            try {
+                while (writeWaiting && !closed)
+                    wait();
+            }
+            catch (InterruptedException ie) {
+                InterruptedIOException iio =
+                        new InterruptedIOException("Test execution timeout");
+                iio.fillInStackTrace();
+                throw iio;
+            }
+
+            if (closed)
+                throw new SocketException("Socket closed");
+        }
+
+        private final SocketChannel channel;
         private final Socket socket;
-        private InputStream socketInput;
-        private OutputStream socketOutput;
+        private SelectionKey key;   // set on the selector thread when registered
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
         private String name;
-        private boolean reading;
-        private Object data;
+        private boolean eof;
+        private IOException error;
+        private boolean writeWaiting;
         private boolean closed;
+        private Object idleState;
+
+        private final InputStream socketInput = new InputStream() {
+            public int read() throws IOException {
+                // don't bother to optimize method this because stream should
+                // be wrapped in a BufferedInputStream
+                byte[] b = new byte[1];
+                int n = read(b);
+                if (n == -1) {
+                    return -1;
+                }
+                else {
+                    n = 0xFF & b[0];
+                    return n;
+                }
+            }
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                if (count == 0) // we ought to check
+                    return 0;
+                return Entry.this.read(buffer, offset, count);
+            }
+            public void close() throws IOException {
+                Entry.this.close();
+            }
+        };
+
+        private final OutputStream socketOutput = new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+            public synchronized void write(byte[] b, int offset, int count) throws IOException {
+                Entry.this.write(b, offset, count);
+            }
+            public void close() throws IOException {
+                Entry.this.close();
+            }
+        };
     }
 
 
@@ -328,17 +380,10 @@ public class ActiveAgentPool
             return ((Vector)(v.clone())).elements();
         }
 
-        synchronized void add(final Entry e) {
+        synchronized void add(Entry e) {
             v.addElement(e);
             notifyAddedToPool(e);
             notifyAll();
-            Runnable r = new Runnable() {
-                public void run() {
-                    e.readAhead();
-                }
-            };
-            Thread t = new Thread(r, "ActiveAgentPool.EntryWatcher" + entryWatcherCount++);
-            t.start();
         }
 
         synchronized boolean remove(Entry e) {
@@ -361,13 +406,41 @@ public class ActiveAgentPool
             return e;
         }
 
-        synchronized Entry next(int timeout) throws InterruptedException {
+        synchronized Entry next(LoadMonitor m) {
+            if (m == null || v.size() <= 1)
+                return next();
+
+            // Choose the agent that has run the fewest tasks, so that the work
+            // is shared between all the agents, even those on the same host.
+            // If there are several, choose the one on the least loaded host,
+            // and then the one that has been waiting the longest.
+            Entry best = null;
+            int bestUses = Integer.MAX_VALUE;
+            int bestLoad = Integer.MAX_VALUE;
+            for (int i = 0; i < v.size(); i++) {
+                Entry e = (Entry)(v.elementAt(i));
+                int uses = m.getUses(e);
+                if (uses > bestUses)
+                    continue;
+                int load = m.getHostLoad(e);
+                if (uses < bestUses || load < bestLoad) {
+                    best = e;
+                    bestUses = uses;
+                    bestLoad = load;
+                }
+            }
+            v.removeElement(best);
+            notifyRemovedFromPool(best);
+            return best;
+        }
+
+        synchronized Entry next(int timeout, LoadMonitor m) throws InterruptedException {
             long end = System.currentTimeMillis() + timeout;
             for (long t = timeout; t > 0;  t = end - System.currentTimeMillis()) {
                 if (v.size() == 0)
                     wait(t);
 
-                Entry e = next();
+                Entry e = next(m);
                 if (e != null)
                     return e;
             }
@@ -425,8 +498,8 @@ public class ActiveAgentPool
      * @see #setPort
      */
     public synchronized int getPort()  {
-        return (port == 0 && serverSocket != null ?
-                serverSocket.getLocalPort() : port);
+        return (port == 0 && serverChannel != null ?
+                serverChannel.socket().getLocalPort() : port);
     }
 
 
@@ -465,7 +538,7 @@ public class ActiveAgentPool
      * @see #setListening
      */
     public synchronized boolean isListening() {
-        return (serverSocket != null);
+        return (serverChannel != null);
     }
 
     /**
@@ -483,29 +556,39 @@ public class ActiveAgentPool
             new Exception("ActiveAgentPool.setListening " + listen + ",port=" + port).printStackTrace(System.err);
 
         if (listen) {
-            if (serverSocket != null) {
-                if (port == 0 || serverSocket.getLocalPort() == port)
+            if (serverChannel != null) {
+                if (port == 0 || serverChannel.socket().getLocalPort() == port)
                     return;
                 else
-                    closeNoExceptions(serverSocket);
+                    closeServerChannel(serverChannel);
             }
 
-            serverSocket = new ServerSocket(port);
+            final ServerSocketChannel ssc = ServerSocketChannel.open();
+            try {
+                ssc.socket().bind(new InetSocketAddress(port));
+                ssc.configureBlocking(false);
+            }
+            catch (IOException e) {
+                closeNoExceptions(ssc);
+                throw e;
+            }
+            serverChannel = ssc;
 
-            Runnable r = new Runnable() {
+            submit(new Runnable() {
                 public void run() {
-                    acceptRequests();
+                    try {
+                        ssc.register(selector, SelectionKey.OP_ACCEPT);
+                    }
+                    catch (ClosedChannelException ignore) {
+                        // no longer listening on this channel
+                    }
                 }
-            };
-            Thread worker = new Thread(r, "ActiveAgentPool" + counter++);
-            worker.start();
-            // could synchronize (wait()) with run() here
-            // if it should be really necessary
+            });
         }
         else {
-            if (serverSocket != null)
-                serverSocket.close();
-            serverSocket = null;
+            if (serverChannel != null)
+                closeServerChannel(serverChannel);
+            serverChannel = null;
             // flush the agents that have already registered
             Entry e;
             while ((e = entries.next()) != null)
@@ -513,78 +596,218 @@ public class ActiveAgentPool
         }
     }
 
+    /**
+     * Return an agent to the pool, after it has completed a task and offered
+     * to accept further requests on the same connection.
+     * @param e the entry for the connection to the agent
+     * @param state information for whoever next takes the entry from the pool
+     * @return true if the entry was returned to the pool, or false if it
+     *  could not be, in which case the caller should close it
+     */
+    boolean returnAgent(Entry e, Object state) {
+        if (!isListening())
+            return false;
+        return e.returnToPool(state);
+    }
+
     Entry nextAgent() throws NoAgentException, InterruptedException {
+        return nextAgent(null);
+    }
+
+    Entry nextAgent(LoadMonitor m) throws NoAgentException, InterruptedException {
         if (!isListening())
             throw new NoAgentException("AgentPool not listening");
-        Entry e = entries.next(timeout);
+        Entry e = entries.next(timeout, m);
         if (e != null)
             return e;
 
         throw new NoAgentException("Timeout waiting for agent to become available");
     }
 
-    private void acceptRequests() {
-        ServerSocket ss;
-        // warning: serverSocket can be mutated by other methods, but we
-        // don't want to do the accept call in a synchronized block;
-        // after the accept call, we make sure that serverSocket is still
-        // what we think it is--if not, this specific thread instance is
-        // not longer current or required
-        synchronized (this) {
-            ss = serverSocket;
-            // could synchronize (notify()) with setListening() here
-            // if it should be really necessary
+    /**
+     * Run a task on the selector thread, starting the thread if necessary.
+     * Channels may only be registered, and their operations of interest changed,
+     * on the selector thread.
+     */
+    private void submit(Runnable r) {
+        synchronized (selectorLock) {
+            pending.addElement(r);
+            if (selector == null) {
+                try {
+                    selector = Selector.open();
+                }
+                catch (IOException e) {
+                    // perhaps need a better reporting channel here
+                    System.err.println("error opening selector for remote socket pool");
+                    System.err.println(e.getMessage());
+                    pending.removeAllElements();
+                    return;
+                }
+                final Selector sel = selector;
+                Runnable worker = new Runnable() {
+                    public void run() {
+                        runSelector(sel);
+                    }
+                };
+                Thread t = new Thread(worker, "ActiveAgentPool" + counter++);
+                t.setDaemon(true);
+                t.start();
+            }
+            else
+                selector.wakeup();
         }
+    }
 
-        try {
-            int errors = 0;
-
-            while (errors < MAX_ERRORS) {
-                try {
+    private void wakeupSelector() {
+        synchronized (selectorLock) {
+            if (selector != null)
+                selector.wakeup();
+        }
+    }
 
-                    // wait for connection or exception, whichever comes first
-                    Socket s = ss.accept();
+    /**
+     * Close a server channel, and wait for the selector to release the
+     * underlying socket, so that the port may be reused immediately.
+     */
+    private void closeServerChannel(ServerSocketChannel ssc) {
+        closeNoExceptions(ssc);
 
-                    // got connection: make sure we still want it,
-                    // and if so, add it to pool and notify interested parties
-                    synchronized (this) {
-                        if (ss == serverSocket)
-                            entries.add(new Entry(s));
-                        else {
-                            closeNoExceptions(s);
-                            return;
-                        }
+        final CountDownLatch released = new CountDownLatch(1);
+        submit(new Runnable() {
+            public void run() {
+                released.countDown();
+            }
+        });
 
-                    }
+        try {
+            released.await(RELEASE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                    if (errors > 0)
-                        errors--; // let #errors decay with each successful open
+    private void runSelector(Selector sel) {
+        try {
+            while (true) {
+                // Pending tasks are run at the top of the loop, after the
+                // previous select, so that any channels closed before a task
+                // was submitted have been released by the time it runs.
+                Runnable[] tasks;
+                synchronized (selectorLock) {
+                    tasks = new Runnable[pending.size()];
+                    pending.copyInto(tasks);
+                    pending.removeAllElements();
                 }
-                catch (IOException e) {
-                    synchronized (this) {
-                        if (ss != serverSocket)
-                            return;
+                for (int i = 0; i < tasks.length; i++)
+                    tasks[i].run();
+
+                sel.select();
+
+                for (Iterator iter = sel.selectedKeys().iterator(); iter.hasNext(); ) {
+                    SelectionKey key = (SelectionKey) (iter.next());
+                    iter.remove();
+                    try {
+                        if (key.isAcceptable())
+                            acceptRequest(key);
+                        else
+                            ((Entry) (key.attachment())).ready();
+                    }
+                    catch (CancelledKeyException ignore) {
+                        // channel closed by another thread
                     }
+                }
 
-                    // perhaps need a better reporting channel here
-                    System.err.println("error opening socket for remote socket pool");
-                    System.err.println(e.getMessage());
-                    errors++;
+                // exit when there is nothing left to watch; the thread will
+                // be restarted if needed
+                synchronized (selectorLock) {
+                    if (pending.size() == 0 && !hasValidKeys(sel)) {
+                        selector = null;
+                        break;
+                    }
                 }
             }
+        }
+        catch (IOException e) {
             // perhaps need a better reporting channel here
-            System.err.println("too many errors opening socket for remote socket pool");
+            System.err.println("error in selector for remote socket pool");
+            System.err.println(e.getMessage());
             System.err.println("server thread exiting");
-
-            synchronized (this) {
-                if (serverSocket == ss)
-                    serverSocket = null;
+            synchronized (selectorLock) {
+                if (selector == sel)
+                    selector = null;
+            }
+            for (Iterator iter = sel.keys().iterator(); iter.hasNext(); ) {
+                SelectionKey key = (SelectionKey) (iter.next());
+                if (key.attachment() instanceof Entry)
+                    closeNoExceptions((Entry) (key.attachment()));
             }
         }
         finally {
-            closeNoExceptions(ss);
+            try {
+                sel.close();
+            }
+            catch (IOException ignore) {
+            }
+        }
+    }
+
+    private static boolean hasValidKeys(Selector sel) {
+        for (Iterator iter = sel.keys().iterator(); iter.hasNext(); ) {
+            SelectionKey key = (SelectionKey) (iter.next());
+            if (key.isValid())
+                return true;
+        }
+        return false;
+    }
+
+    private void acceptRequest(SelectionKey key) {
+        // warning: serverChannel can be mutated by other methods, but we
+        // must not block on the pool here; after the accept call, we make sure
+        // that serverChannel is still what we think it is--if not, this
+        // channel is no longer current or required
+        ServerSocketChannel ssc = (ServerSocketChannel) (key.channel());
+
+        try {
+            SocketChannel sc = ssc.accept();
+            if (sc == null)
+                return;
+
+            if (ssc != serverChannel) {
+                closeNoExceptions(sc);
+                return;
+            }
+
+            // got connection: add it to pool and notify interested parties
+            sc.configureBlocking(false);
+            Entry e = new Entry(sc);
+            e.key = sc.register(key.selector(), SelectionKey.OP_READ, e);
+            entries.add(e);
+
+            if (acceptErrors > 0)
+                acceptErrors--; // let #errors decay with each successful open
         }
+        catch (IOException e) {
+            if (ssc != serverChannel)
+                return;
 
+            // perhaps need a better reporting channel here
+            System.err.println("error opening socket for remote socket pool");
+            System.err.println(e.getMessage());
+
+            if (++acceptErrors >= MAX_ERRORS) {
+                // perhaps need a better reporting channel here
+                System.err.println("too many errors opening socket for remote socket pool");
+                System.err.println("server thread exiting");
+
+                // don't lock the pool here: setListening may be waiting,
+                // with the pool locked, for this thread to release a channel
+                if (serverChannel == ssc)
+                    serverChannel = null;
+                closeNoExceptions(ssc);
+                acceptErrors = 0;
+            }
+        }
     }
 
     /**
@@ -619,29 +842,33 @@ public class ActiveAgentPool
         }
     }
 
-    private void closeNoExceptions(Socket s) {
+    private void closeNoExceptions(SocketChannel sc) {
         try {
-            s.close();
+            sc.close();
         }
         catch (IOException ignore) {
         }
     }
 
-    private void closeNoExceptions(ServerSocket ss) {
+    private void closeNoExceptions(ServerSocketChannel ssc) {
         try {
-            ss.close();
+            ssc.close();
         }
         catch (IOException ignore) {
         }
     }
 
-    private Thread worker;
     private int counter;
     private Entries entries = new Entries();
-    private ServerSocket serverSocket;
+    private volatile ServerSocketChannel serverChannel;
+    private int acceptErrors;       // only accessed on the selector thread
+    private final Object selectorLock = new Object();
+    private Selector selector;      // guarded by selectorLock
+    private Vector pending = new Vector();  // guarded by selectorLock
     private int timeout = 3*60*1000;  // 3 minutes
     private int port = Agent.defaultActivePort;
     private final int MAX_ERRORS = 10;
-    private static int entryWatcherCount;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int RELEASE_TIMEOUT = 10 * 1000;  // 10 seconds
     private static boolean debug = Boolean.getBoolean("debug.ActiveAgentPool");
 }
@@ -29,6 +29,7 @@ package com.sun.javatest.agent;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.PrintStream;
@@ -38,8 +39,10 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Enumeration;
+import java.util.Hashtable;
 import java.util.MissingResourceException;
 import java.util.Vector;
+import java.util.zip.Deflater;
 
 import com.sun.javatest.Command;
 import com.sun.javatest.Status;
@@ -245,6 +248,7 @@ public class Agent implements Runnable
         mainThread = Thread.currentThread();
 
         timer = new Timer();
+        flushTimer = new Timer();
         closing = false;
 
         try {
@@ -302,6 +306,7 @@ public class Agent implements Runnable
         }
         finally {
             timer.finished();
+            flushTimer.finished();
             notifier.finished();
             if (tracing)
                 traceOut.println("AGENT EXITING");
@@ -553,6 +558,7 @@ public class Agent implements Runnable
 
     private Map map;
     private Timer timer;
+    private Timer flushTimer;   // only used for delayed flushes, which may block
 
     /* For autonumbering agent tasks. */
     private static int threadInitNumber;
@@ -562,7 +568,24 @@ public class Agent implements Runnable
     }
 
     // The following is used to ensure consistency between Agent and AgentManager
-    static final short protocolVersion = 103;
+    static final short protocolVersion = 104;
+
+    // The oldest version of the protocol accepted by the agent. Clients always
+    // start a connection with a request using this version; if the agent replies
+    // with KEEP_ALIVE, the client may send further requests on the same connection,
+    // using protocolVersion, instead of closing it.
+    static final short minProtocolVersion = 103;
+
+    // The time for which an agent will wait for a further request on a connection
+    // before closing it. Clients should not reuse a connection which has been idle
+    // for more than half this time.
+    static final int KEEP_ALIVE_TIMEOUT = 30 * 1000;  // 30 seconds
+
+    // The delay before acting on a request from a test to flush its output.
+    static final int FLUSH_DELAY = 50;
+
+    // OUTPUT chunks of at least this many bytes are compressed.
+    static final int COMPRESS_THRESHOLD = 1024;
 
     /**
      * The default port to which active agents will try and connect on a nominated host.
@@ -575,12 +598,15 @@ public class Agent implements Runnable
     public static final int defaultPassivePort = 1908;
 
     static final byte CLASS = (byte)'C';
+    static final byte CLASS_CHECK = (byte)'c';
     static final byte DATA = (byte)'D';
     static final byte LOG = (byte)'L';
     static final byte LOG_FLUSH = (byte)'l';
     static final byte REF = (byte)'R';
     static final byte REF_FLUSH = (byte)'r';
     static final byte STATUS = (byte)'S';
+    static final byte OUTPUT = (byte)'O';
+    static final byte KEEP_ALIVE = (byte)'K';
 
     static final String productName = "JT Harness Agent";
     static final String productVersion = "JTA_3.1.4";
@@ -609,111 +635,128 @@ public class Agent implements Runnable
                     traceOut.println("REQUEST FROM " + connection.getName());
 
                 in = new DataInputStream(connection.getInputStream());
-                short pVer = in.readShort();
-                if (pVer != protocolVersion)
-                    throw new IOException("protocol mismatch;" +
-                                          " expected " + protocolVersion +
-                                          " received " + pVer);
+                out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
 
-                tag = in.readUTF();
+                int pVer = in.readShort();
+                do {
+                    handleRequest(pVer);
 
-                if (tracing)
-                    traceOut.println("TAG IS `" + tag + "'");
+                    if (tracing)
+                        traceOut.println("AWAIT NEXT REQUEST OR CLOSE");
 
-                request = in.readUTF();
+                    pVer = readNextRequest();
+                } while (pVer != -1);
 
-                if (tracing)
-                    traceOut.println("REQUEST IS `" + request + "'");
+                notifier.completed(connection);
+            }
+            catch (InterruptedIOException e) {
+                if (tracing) {
+                    traceOut.println("Interrupted (IO)");
+                }
 
-                out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+                notifier.exception(connection, e);
+            }
+            catch (IOException e) {
+                if (tracing) {
+                    traceOut.println("EXCEPTION IS `" + e + "'");
+                    e.printStackTrace(traceOut);
+                }
 
-                Status status;
+                notifier.exception(connection, e);
+            }
+            finally {
+                close();
+            }
+        }
 
-                if (request.equals("executeTest") || request.equals("executeCommand") || request.equals("executeMain") )
-                    status = execute();
-                else {
-                    if (tracing)
-                        traceOut.println("Unrecognized request for agent: `" + request + "'");
-                    status = Status.error("Unrecognized request for agent: `" + request + "'");
-                }
+        private void handleRequest(int pVer) throws IOException {
+            if (pVer != protocolVersion && pVer != minProtocolVersion)
+                throw new IOException("protocol mismatch;" +
+                                      " expected " + protocolVersion +
+                                      " received " + pVer);
 
-                if (tracing)
-                    traceOut.println("RETURN " + status);
+            // class caching and compressed output are only used with clients
+            // that understand the current version of the protocol
+            currentProtocol = (pVer == protocolVersion);
 
-                notifier.result(connection, status);
+            tag = in.readUTF();
 
-                if (tracing)
-                    traceOut.println("SEND STATUS");
+            if (tracing)
+                traceOut.println("TAG IS `" + tag + "'");
 
-                sendStatus(status);
+            request = in.readUTF();
 
-                if (tracing)
-                    traceOut.println("FLUSH");
+            if (tracing)
+                traceOut.println("REQUEST IS `" + request + "'");
+
+            // Tell the client that this connection may be used for further
+            // requests, using the current version of the protocol.
+            // Clients that do not understand this simply ignore it, and close
+            // the connection after the status has been sent, as before.
+            // It is sent, and sent now, for every request, so that the client
+            // knows the request was accepted if the test then brings down the agent.
+            out.write(KEEP_ALIVE);
+            out.flush();
 
-                out.flush();
+            Status status;
 
+            if (request.equals("executeTest") || request.equals("executeCommand") || request.equals("executeMain") )
+                status = execute();
+            else {
                 if (tracing)
-                    traceOut.println("AWAIT CLOSE");
-
-                /*
-                final Thread taskThread = Thread.currentThread();
-
-                Timer.Timeable timeOutHandler = new Timer.Timeable() {
-                    public void timeout() {
-                        if (tracing)
-                            traceOut.println("EOF TIMEOUT");
-                        IOException e = new IOException("timeout communicating with AgentManager");
-                        synchronized (Agent.this) {
-                            for (int i = 0; i < observers.length; i++)
-                                observers[i].exception(Agent.this, connection, e);
-                        }
-                        close(); // give up
-                        taskThread.interrupt();
-                        traceOut.println("EOF TIMEOUT CLOSED");
-                    }
-                };
+                    traceOut.println("Unrecognized request for agent: `" + request + "'");
+                status = Status.error("Unrecognized request for agent: `" + request + "'");
+            }
 
-                Timer.Entry te = timer.requestDelayedCallback(timeOutHandler, 5000);
-                while (in.read() != -1) ;
+            if (tracing)
+                traceOut.println("RETURN " + status);
 
-                if (tracing)
-                    traceOut.println("RECEIVED EOF");
+            notifier.result(connection, status);
 
-                timer.cancel(te);
+            if (tracing)
+                traceOut.println("SEND STATUS");
 
-                notifier.completed(connection);
-                */
+            sendStatus(status);
 
-                connection.waitUntilClosed(5000);
-                if (connection.isClosed())
-                    notifier.completed(connection);
-                else
-                    notifier.exception(connection, new IOException("timeout awaiting close from AgentManager"));
-            }
-            catch (InterruptedException e) {
-                if (tracing) {
-                    traceOut.println("Interrupted");
-                }
+            if (tracing)
+                traceOut.println("FLUSH");
 
-                notifier.exception(connection, e);
-            }
-            catch (InterruptedIOException e) {
-                if (tracing) {
-                    traceOut.println("Interrupted (IO)");
+            out.flush();
+        }
+
+        /**
+         * Wait for the client to either close the connection or send another
+         * request. If neither happens within KEEP_ALIVE_TIMEOUT, the connection
+         * is closed.
+         * @return the protocol version at the head of the next request,
+         *  or -1 if the connection has been closed
+         */
+        private int readNextRequest() throws IOException {
+            Timer.Timeable idleHandler = new Timer.Timeable() {
+                public void timeout() {
+                    if (tracing)
+                        traceOut.println("IDLE TIMEOUT");
+                    closeIgnoreExceptions(connection);
                 }
+            };
 
-                notifier.exception(connection, e);
+            Timer.Entry te = timer.requestDelayedCallback(idleHandler, KEEP_ALIVE_TIMEOUT);
+            try {
+                int b1 = in.read();
+                if (b1 == -1)
+                    return -1;
+                int b2 = in.read();
+                if (b2 == -1)
+                    throw new EOFException();
+                return (short) ((b1 << 8) + b2);
             }
             catch (IOException e) {
-                if (tracing) {
-                    traceOut.println("EXCEPTION IS `" + e + "'");
-                    e.printStackTrace(traceOut);
-                }
-
-                notifier.exception(connection, e);
+                if (connection.isClosed())
+                    return -1;
+                throw e;
             }
             finally {
-                close();
+                timer.cancel(te);
             }
         }
 
@@ -901,25 +944,108 @@ public class Agent implements Runnable
                 catch (IOException ignore) {
                 }
             }
+
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
         }
 
         /**
          * Send wrapped data back to the client.
+         * Flush requests are not acted on immediately; instead, the connection
+         * is flushed shortly afterwards, so that a test that flushes its output
+         * frequently does not cause a network write for each flush.
+         * The flush is normally done by the task's own thread, when it next
+         * sends output after the delay, or when it sends the final status;
+         * if the test does not write anything more in the meantime, the flush
+         * is done from the agent's flush timer.
          */
         synchronized void sendChars(byte type, char b[], int off, int len) throws IOException {
-            out.write(type);
-            out.writeUTF(new String(b, off, len));
-            switch (type) {
-            case LOG_FLUSH:
-            case REF_FLUSH:
-                out.flush();
+            if (currentProtocol)
+                sendOutput(type, b, off, len);
+            else {
+                out.write(type);
+                out.writeUTF(new String(b, off, len));
+            }
+
+            if (flushPending) {
+                if (System.currentTimeMillis() >= flushDue)
+                    flushOutput();
+            }
+            else {
+                switch (type) {
+                case LOG_FLUSH:
+                case REF_FLUSH:
+                    flushPending = true;
+                    flushDue = System.currentTimeMillis() + FLUSH_DELAY;
+                    flushTimer.requestDelayedCallback(flushHandler, FLUSH_DELAY);
+                }
             }
         }
 
+        private void flushOutput() throws IOException {
+            flushPending = false;
+            out.flush();
+        }
+
+        /**
+         * Send output as UTF-8 bytes, compressing them if there are enough
+         * of them to make it worthwhile.
+         */
+        private void sendOutput(byte type, char b[], int off, int len) throws IOException {
+            byte[] data = new String(b, off, len).getBytes("UTF-8");
+
+            int clen = 0;
+            if (data.length >= COMPRESS_THRESHOLD) {
+                if (deflater == null)
+                    deflater = new Deflater(Deflater.BEST_SPEED);
+                else
+                    deflater.reset();
+                deflater.setInput(data);
+                deflater.finish();
+                if (compressBuffer == null || compressBuffer.length < data.length)
+                    compressBuffer = new byte[data.length];
+                while (!deflater.finished() && clen < data.length)
+                    clen += deflater.deflate(compressBuffer, clen, data.length - clen);
+                if (!deflater.finished())
+                    clen = 0; // not compressible; send it as is
+            }
+
+            out.write(OUTPUT);
+            out.write(type);
+            out.writeInt(data.length);
+            out.writeInt(clen);
+            if (clen > 0)
+                out.write(compressBuffer, 0, clen);
+            else
+                out.write(data);
+        }
+
+        // Only called if the task has not already done the flush itself.
+        // This may block while the task is writing, or while the connection
+        // is slow, which is why it is not run on the agent's general timer.
+        private final Timer.Timeable flushHandler = new Timer.Timeable() {
+            public void timeout() {
+                synchronized (Task.this) {
+                    if (flushPending && out != null) {
+                        try {
+                            flushOutput();
+                        }
+                        catch (IOException ignore) {
+                            // will be reported when the task next writes
+                        }
+                    }
+                }
+            }
+        };
+
         /**
          * Send the final status back to the client.
          */
         private synchronized void sendStatus(Status s) throws IOException {
+            // the status is followed by a flush, which covers any pending flush
+            flushPending = false;
             out.write(STATUS);
             out.write((byte)s.getType());
             out.writeUTF(s.getReason());
@@ -933,14 +1059,33 @@ public class Agent implements Runnable
                 traceOut.println("REMOTE LOAD " + className);
 
             try {
-                out.write(CLASS);
-                out.writeUTF(className);
+                CachedClass cc = null;
+                if (currentProtocol) {
+                    // ask the client to confirm the cached copy, if any, is still
+                    // current, rather than transfer the bytecodes again
+                    cc = getCachedClass(className);
+                    out.write(CLASS_CHECK);
+                    out.writeUTF(className);
+                    out.writeUTF(cc == null ? "" : cc.hash);
+                }
+                else {
+                    out.write(CLASS);
+                    out.writeUTF(className);
+                }
                 out.flush();
 
                 int size = in.readInt();
                 if (size == 0)
                     throw new ClassNotFoundException(className);
 
+                if (size == -1) {
+                    if (cc == null)
+                        throw new ClassNotFoundException(className + ": unexpected reply while reading class data");
+                    if (tracing)
+                        traceOut.println("CACHED " + className);
+                    return cc.data;
+                }
+
                 byte[] data = new byte[size];
                 int offset = 0;
                 while (offset < data.length) {
@@ -951,6 +1096,12 @@ public class Agent implements Runnable
                         offset += n;
                 }
 
+                if (currentProtocol) {
+                    String hash = in.readUTF();
+                    if (hash.length() > 0)
+                        putCachedClass(className, new CachedClass(hash, data));
+                }
+
                 //System.err.println(data.length);
                 //for (int i = 0; i < min(10, data.length); i++) {
                 //    System.err.print(data[i] + " ");
@@ -1053,9 +1204,50 @@ public class Agent implements Runnable
         private DataOutputStream out;
         private String tag;
         private String request;
+        private boolean currentProtocol;
+        private boolean flushPending;
+        private long flushDue;
+        private Deflater deflater;
+        private byte[] compressBuffer;
         private ClassLoader agentClassLoader;
     }
 
+    /**
+     * The bytecodes for a class, as previously sent by a client,
+     * together with the client's hash of their content.
+     */
+    private static class CachedClass {
+        CachedClass(String hash, byte[] data) {
+            this.hash = hash;
+            this.data = data;
+        }
+
+        final String hash;
+        final byte[] data;
+    }
+
+    private synchronized CachedClass getCachedClass(String className) {
+        return (CachedClass) (classCache.get(className));
+    }
+
+    private synchronized void putCachedClass(String className, CachedClass cc) {
+        CachedClass prev = (CachedClass) (classCache.put(className, cc));
+        if (prev != null)
+            classCacheSize -= prev.data.length;
+        classCacheSize += cc.data.length;
+
+        // keep it simple: if the cache gets too big, start again
+        if (classCacheSize > CLASS_CACHE_LIMIT) {
+            classCache.clear();
+            classCache.put(className, cc);
+            classCacheSize = cc.data.length;
+        }
+    }
+
+    private Hashtable classCache = new Hashtable();
+    private int classCacheSize;
+    private static final int CLASS_CACHE_LIMIT = 16 * 1024 * 1024;
+
     private static Constructor classLoaderConstructor;
 }
 
@@ -1077,6 +1269,11 @@ class AgentWriter extends Writer {
     AgentWriter(byte type, Agent.Task parent) {
         this.type = type;
         this.parent = parent;
+        switch (type) {
+        case Agent.LOG: flushType = Agent.LOG_FLUSH; break;
+        case Agent.REF: flushType = Agent.REF_FLUSH; break;
+        default: flushType = type;
+        }
     }
 
     /**
@@ -1087,10 +1284,8 @@ class AgentWriter extends Writer {
      */
     public synchronized void write(int ch) throws IOException {
         buf[count++] = (char)ch;
-        if (count == buf.length) {
-            parent.sendChars(type, buf, 0, count);
-            count = 0;
-        }
+        if (count == buf.length)
+            sendFullBuffer();
     }
 
     /**
@@ -1105,30 +1300,46 @@ class AgentWriter extends Writer {
 
     /**
      * Writes a sub array of characters.
+     * The characters are sent to the parent in chunks of at most the size
+     * of the buffer, so that large writes are batched in the same way as small ones.
      * @param c the data to be written
      * @param off       the start offset in the data
      * @param len       the number of bytes that are written
      * @exception IOException If an I/O error has occurred.
      */
     public synchronized void write(char c[], int off, int len) throws IOException {
-        if (len < buf.length - count) {
-            // there is room for the bytes in the current buffer
-            System.arraycopy(c, off, buf, count, len);
-            count += len;
-        } else {
-            // not room in the current buffer, so flush it
-            flush();
-            if (len < buf.length) {
-                // there is _now_ enough room in the current buffer, so use it
-                System.arraycopy(c, off, buf, count, len);
-                count += len;
-            } else {
-                // current buffer not big enough; send data directly
-                parent.sendChars(type, c, off, len);
-            }
+        while (len > 0) {
+            int n = Math.min(len, buf.length - count);
+            System.arraycopy(c, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == buf.length)
+                sendFullBuffer();
         }
     }
 
+    /**
+     * Send the contents of the full buffer to the parent.
+     * A high surrogate at the end of the buffer is kept back, to be sent
+     * with the low surrogate that follows it; the parent encodes each chunk
+     * separately, and would otherwise encode each half of the pair as a
+     * malformed character.
+     * @exception IOException If an I/O error has occurred.
+     */
+    private void sendFullBuffer() throws IOException {
+        int n = count;
+        if (Character.isHighSurrogate(buf[n - 1]))
+            n--;
+        parent.sendChars(type, buf, 0, n);
+        if (n < count) {
+            buf[0] = buf[n];
+            count = 1;
+        }
+        else
+            count = 0;
+    }
+
     /**
      * Flushes the stream. This will write any buffered
      * output bytes.
@@ -1136,11 +1347,7 @@ class AgentWriter extends Writer {
      */
     public synchronized void flush() throws IOException {
         if (count > 0) {
-            switch (type) {
-            case Agent.LOG: type = Agent.LOG_FLUSH; break;
-            case Agent.REF: type = Agent.REF_FLUSH; break;
-            }
-            parent.sendChars(type, buf, 0, count);
+            parent.sendChars(flushType, buf, 0, count);
             count = 0;
         }
     }
@@ -1155,8 +1362,9 @@ class AgentWriter extends Writer {
         flush();
     }
 
-    private byte type;
+    private final byte type;
+    private final byte flushType;
     private Agent.Task parent;
-    private char[] buf = new char[1024];
+    private char[] buf = new char[8192];
     private int count = 0;
 }
@@ -38,9 +38,15 @@ import java.io.InterruptedIOException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.ConnectException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -172,7 +178,20 @@ public class AgentManager
      * @throws IOException if a problem occurs establishing the connection
      */
     public Task connectToActiveAgent() throws ActiveAgentPool.NoAgentException, InterruptedException, IOException {
-        return connect(pool.nextAgent());
+        // Connections that agents have kept open after completing a task are
+        // returned to the pool, so that anyone waiting for an agent sees them.
+        while (true) {
+            ActiveAgentPool.Entry e = pool.nextAgent(loadMonitor);
+            Task prev = (Task) (e.takeIdleState());
+            if (prev == null)
+                return new Task(e, ACTIVE_AGENTS);
+
+            if (System.currentTimeMillis() - prev.idleSince <= Agent.KEEP_ALIVE_TIMEOUT / 2)
+                return new Task(prev);
+
+            // the agent may be about to close the connection; don't risk it
+            prev.closeConnection();
+        }
     }
 
     /**
@@ -204,26 +223,168 @@ public class AgentManager
         if (host == null)
             throw new NullPointerException();
 
-        for (int i = 0; ; i++) {
-            try {
-//              return connect(new SocketConnection(host, port));
-                return connect(new InterruptableSocketConnection(host, port));
-            }
-            catch (ConnectException e) {
-                if (i == PASSIVE_AGENT_RETRY_LIMIT)
-                    throw e;
+        String key = host + ":" + port;
+
+        // Either reuse an idle connection, or mark the new connection as pending
+        // before making it. Both are done while holding the lock used by
+        // addIdleTask, so that no connection can be kept open after this point
+        // that might hold the thread the agent needs to accept the new one.
+        synchronized (this) {
+            Task t = takeIdleTask(key);
+            if (t != null)
+                return t;
+            updatePending(key, 1);
+        }
 
+        boolean connected = false;
+        try {
+            for (int i = 0; ; i++) {
                 try {
-                    Thread.currentThread().sleep(5000);
+//                  return connect(new SocketConnection(host, port));
+                    Task t = new Task(new InterruptableSocketConnection(host, port), key);
+                    // already counted in pendingConnections, above
+                    t.pending = true;
+                    connected = true;
+                    return t;
                 }
-                catch (InterruptedException ignore) {
+                catch (ConnectException e) {
+                    if (i == PASSIVE_AGENT_RETRY_LIMIT)
+                        throw e;
+
+                    try {
+                        Thread.currentThread().sleep(5000);
+                    }
+                    catch (InterruptedException ignore) {
+                    }
                 }
             }
         }
+        finally {
+            if (!connected)
+                updatePending(key, -1);
+        }
     }
 
     private static final int PASSIVE_AGENT_RETRY_LIMIT = 12;
 
+    //--------------------------------------------------------------------------
+
+    /**
+     * Get a task for a connection to a passive agent that has been kept open
+     * by the agent after completing an earlier task, if there is one that is
+     * still usable.
+     * @param key identifies the host and port of the passive agent
+     * @return a task for the most recently used idle connection, or null if none
+     */
+    private synchronized Task takeIdleTask(String key) {
+        long now = System.currentTimeMillis();
+        for (int i = idleTasks.size() - 1; i >= 0; i--) {
+            Task t = (Task) (idleTasks.elementAt(i));
+            if (now - t.idleSince > Agent.KEEP_ALIVE_TIMEOUT / 2) {
+                // the agent may be about to close the connection; don't risk it
+                idleTasks.removeElementAt(i);
+                t.closeConnection();
+            }
+            else if (t.key.equals(key)) {
+                idleTasks.removeElementAt(i);
+                return new Task(t);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keep a connection to a passive agent open for reuse.
+     * This is not done if there is a new connection to the same agent that
+     * has not yet been served: the agent thread holding this connection may
+     * be needed to accept it.
+     * @return false if the connection should be closed instead
+     */
+    private synchronized boolean addIdleTask(Task t) {
+        if (pendingConnections.get(t.key) != null)
+            return false;
+        t.idleSince = System.currentTimeMillis();
+        idleTasks.addElement(t);
+        return true;
+    }
+
+    private synchronized void updatePending(String key, int delta) {
+        Integer n = (Integer) (pendingConnections.get(key));
+        int count = (n == null ? 0 : n.intValue()) + delta;
+        if (count == 0)
+            pendingConnections.remove(key);
+        else
+            pendingConnections.put(key, Integer.valueOf(count));
+    }
+
+    private Vector idleTasks = new Vector();
+    private Hashtable pendingConnections = new Hashtable();
+
+    //--------------------------------------------------------------------------
+
+    /**
+     * Get the number of tasks that have been started on a connection.
+     */
+    private int getUses(Connection c) {
+        synchronized (connectionUses) {
+            Integer n = (Integer) (connectionUses.get(c));
+            return (n == null ? 0 : n.intValue());
+        }
+    }
+
+    /**
+     * Get the number of tasks currently running on agents on the same host
+     * as a given connection.
+     */
+    private int getHostLoad(Connection c) {
+        synchronized (hostLoad) {
+            Integer n = (Integer) (hostLoad.get(getHost(c)));
+            return (n == null ? 0 : n.intValue());
+        }
+    }
+
+    private void updateLoad(Connection c, int delta) {
+        if (delta > 0) {
+            synchronized (connectionUses) {
+                connectionUses.put(c, Integer.valueOf(getUses(c) + delta));
+            }
+        }
+
+        String host = getHost(c);
+        synchronized (hostLoad) {
+            Integer n = (Integer) (hostLoad.get(host));
+            int load = (n == null ? 0 : n.intValue()) + delta;
+            if (load == 0)
+                hostLoad.remove(host);
+            else
+                hostLoad.put(host, Integer.valueOf(load));
+        }
+    }
+
+    // connection names begin with the host name, followed by details of the ports
+    private static String getHost(Connection c) {
+        String name = c.getName();
+        int sep = name.indexOf(',');
+        return (sep == -1 ? name : name.substring(0, sep));
+    }
+
+    // connections are forgotten once they are closed and discarded
+    private Map connectionUses = new WeakHashMap();
+    private Hashtable hostLoad = new Hashtable();
+
+    private ActiveAgentPool.LoadMonitor loadMonitor = new ActiveAgentPool.LoadMonitor() {
+        public int getUses(Connection c) {
+            return AgentManager.this.getUses(c);
+        }
+
+        public int getHostLoad(Connection c) {
+            return AgentManager.this.getHostLoad(c);
+        }
+    };
+    private static final String ACTIVE_AGENTS = "";
+    private static final boolean noKeepAlive =
+        Boolean.getBoolean("javatest.agent.noKeepAlive");
+
 
     //--------------------------------------------------------------------------
 
@@ -237,11 +398,36 @@ public class AgentManager
          * @param c     The connection with which to communicate to the agent.
          */
         Task(Connection c) throws IOException {
+            this(c, null);
+        }
+
+        /**
+         * Create a task for a new connection to an agent.
+         * @param c     The connection with which to communicate to the agent.
+         * @param key   Identifies where the connection came from, so that it can be
+         *              reused if the agent offers to keep it open, or null if the
+         *              connection should be closed when the task is complete.
+         */
+        private Task(Connection c, String key) throws IOException {
             connection = c;
+            this.key = key;
             in = new DataInputStream(new BufferedInputStream(c.getInputStream()));
             out = new DataOutputStream(new BufferedOutputStream(c.getOutputStream()));
         }
 
+        /**
+         * Create a task for a connection that was kept open by an agent after
+         * completing an earlier task.
+         * @param prev  The earlier task.
+         */
+        private Task(Task prev) {
+            connection = prev.connection;
+            key = prev.key;
+            in = prev.in;
+            out = prev.out;
+            keepAlive = true;
+        }
+
         /**
          * Get the connection being used for this task.
          * @return the connection to the remote agent.
@@ -384,9 +570,12 @@ public class AgentManager
                            boolean localizeArgs,
                            PrintWriter log, PrintWriter ref) {
             notifyStarted(connection, tag, request, executable, args, localizeArgs);
+            updateLoad(connection, 1);
             Status result = null;
             try {
-                out.writeShort(Agent.protocolVersion);
+                // only use the current version of the protocol once the agent has
+                // shown that it understands it
+                out.writeShort(keepAlive ? Agent.protocolVersion : Agent.minProtocolVersion);
                 out.writeUTF(tag);
                 out.writeUTF(request);
                 out.writeUTF(executable);
@@ -412,10 +601,14 @@ public class AgentManager
                 if (e instanceof InterruptedIOException)
                     result = Status.error("Communication with agent interrupted! (timed out?)." +
                             "\n InterruptedException: " + e);
-                else
+                else {
                     result = Status.error("Problem communicating with agent: " + e);
+                    agentFailure = true;
+                }
             }
             finally {
+                setPending(false);
+                updateLoad(connection, -1);
                 notifyFinished(connection, result);
             }
             return result;
@@ -429,9 +622,14 @@ public class AgentManager
 
             while (status == null) {
                 int code = in.read();
+                // the agent is now serving this connection
+                setPending(false);
+                if (code != -1)
+                    accepted = true;
                 switch (code) {
                 case -1: // unexpected EOF
                     status = Status.error("premature EOF from agent");
+                    agentFailure = true;
                     break;
 
                 case Agent.CLASS:
@@ -457,6 +655,30 @@ public class AgentManager
                     out.flush();
                     break;
 
+                case Agent.CLASS_CHECK:
+                    String checkName = in.readUTF();
+                    String agentHash = in.readUTF();
+                    byte[] checkData = locateClass(checkName);
+                    if (checkData == null)
+                        out.writeInt(0);
+                    else {
+                        String hash = getHash(checkData);
+                        if (hash.length() > 0 && hash.equals(agentHash))
+                            // the agent's cached copy is up to date
+                            out.writeInt(-1);
+                        else {
+                            out.writeInt(checkData.length);
+                            out.write(checkData, 0, checkData.length);
+                            out.writeUTF(hash);
+                        }
+                    }
+                    out.flush();
+                    break;
+
+                case Agent.KEEP_ALIVE:
+                    keepAlive = true;
+                    break;
+
                 case Agent.DATA:
                     String resourceName = in.readUTF();
                     //System.err.println("received request for " + resourceName);
@@ -508,12 +730,27 @@ public class AgentManager
                     ref.write(in.readUTF());
                     ref.flush();
                     break;
+
+                case Agent.OUTPUT:
+                    int outputType = in.read();
+                    PrintWriter pw = (outputType == Agent.LOG || outputType == Agent.LOG_FLUSH ? log : ref);
+                    pw.write(readOutput());
+                    if (outputType == Agent.LOG_FLUSH || outputType == Agent.REF_FLUSH)
+                        pw.flush();
+                    break;
                 }
             }
 
-            out.close();
-            in.close();
-            connection.close();
+            if (keepAlive && key != null && !noKeepAlive && !agentFailure)
+                // the agent will accept further requests on this connection
+                keepConnection();
+            else
+                closeConnection();
+
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
 
             log.flush();
             ref.flush();
@@ -529,6 +766,116 @@ public class AgentManager
             return status;
         }
 
+        /**
+         * Read the body of an OUTPUT message: UTF-8 bytes, possibly compressed.
+         */
+        private String readOutput() throws IOException {
+            int size = in.readInt();
+            int clen = in.readInt();
+            byte[] data = new byte[size];
+            if (clen == 0)
+                in.readFully(data);
+            else {
+                if (outputBuffer == null || outputBuffer.length < clen)
+                    outputBuffer = new byte[clen];
+                in.readFully(outputBuffer, 0, clen);
+                if (inflater == null)
+                    inflater = new Inflater();
+                else
+                    inflater.reset();
+                inflater.setInput(outputBuffer, 0, clen);
+                try {
+                    int n = 0;
+                    while (n < size && !inflater.finished()) {
+                        int k = inflater.inflate(data, n, size - n);
+                        // with all the input given, no progress means the
+                        // data is truncated or corrupt
+                        if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                            throw new IOException("truncated output data from agent");
+                        n += k;
+                    }
+                    if (n != size)
+                        throw new IOException("bad output data from agent");
+                }
+                catch (DataFormatException e) {
+                    throw new IOException("bad output data from agent: " + e.getMessage());
+                }
+            }
+            return new String(data, "UTF-8");
+        }
+
+        /**
+         * Mark whether this task is for a new connection to a passive agent that
+         * the agent has not yet started to serve.
+         */
+        private void setPending(boolean b) {
+            if (b != pending) {
+                pending = b;
+                updatePending(key, (b ? 1 : -1));
+            }
+        }
+
+        private void keepConnection() {
+            idleSince = System.currentTimeMillis();
+            boolean ok;
+            if (key == ACTIVE_AGENTS)
+                ok = pool.returnAgent((ActiveAgentPool.Entry) connection, this);
+            else
+                ok = addIdleTask(this);
+            if (!ok)
+                closeConnection();
+        }
+
+        private void closeConnection() {
+            try {
+                out.close();
+                in.close();
+                connection.close();
+            }
+            catch (IOException ignore) {
+            }
+        }
+
+        /**
+         * Check whether the last request failed because of a problem with the
+         * agent or the connection to it, such as the agent exiting, rather than
+         * because of the outcome of the request itself, or a timeout.
+         * In such cases, the request may be retried on another agent.
+         * @return true if the last request failed because of a problem with the agent
+         */
+        boolean isAgentFailure() {
+            return agentFailure;
+        }
+
+        /**
+         * Check whether the agent sent anything in reply to the last request,
+         * showing that it had accepted the request: the agent replies with
+         * KEEP_ALIVE before it starts to run a request. If it failed before then,
+         * the request did not run and may safely be sent to another agent;
+         * if it failed after then, the request itself may have caused the failure.
+         * @return true if the agent replied to the last request
+         */
+        boolean isRequestAccepted() {
+            return accepted;
+        }
+
+        private String getHash(byte[] data) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                byte[] digest = md.digest(data);
+                StringBuffer sb = new StringBuffer(digest.length * 2);
+                for (int i = 0; i < digest.length; i++) {
+                    sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+                    sb.append(Character.forDigit(digest[i] & 0xf, 16));
+                }
+                return sb.toString();
+            }
+            catch (NoSuchAlgorithmException e) {
+                // no hash: the agent will not cache the class
+                return "";
+            }
+        }
+
         private byte[] locateClass(String name) {
             //System.err.println("locateClass: " + name);
             if (classPath != null) {
@@ -637,6 +984,14 @@ public class AgentManager
         private Connection connection;
         private DataInputStream in;
         private DataOutputStream out;
+        private final String key;
+        private boolean keepAlive;
+        private boolean agentFailure;
+        private boolean accepted;
+        private boolean pending;
+        private long idleSince;
+        private Inflater inflater;
+        private byte[] outputBuffer;
 
         private File[] classPath;
         private Hashtable zips = new Hashtable();
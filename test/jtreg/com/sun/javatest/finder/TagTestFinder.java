@@ -27,8 +27,15 @@
 package com.sun.javatest.finder;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Map;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -91,7 +98,7 @@ public class TagTestFinder extends TestFinder
      * @param file The file to scan
      */
     public void scan(File file) {
-        currFile = file;
+        currFile.set(file);
         if (file.isDirectory())
             scanDirectory(file);
         else
@@ -99,13 +106,24 @@ public class TagTestFinder extends TestFinder
     }
 
     /**
-     * Get the name of the file currently being scanned.
+     * Get the name of the file currently being scanned by the current thread.
      * @return the name of the file currently being scanned.
      */
     // Ideally, we should be able to get the current line number as well,
     // (for error messages)
     protected File getCurrentFile() {
-        return currFile;
+        return (File) (currFile.get());
+    }
+
+    /**
+     * {@inheritDoc}
+     * This test finder keeps no per-file state of its own other than
+     * the current file, which is recorded for each thread, so this method
+     * returns true for this class. Subtypes must override this method to
+     * return true as well, if they also support concurrent reads.
+     */
+    public boolean isConcurrentReadSupported() {
+        return (getClass() == TagTestFinder.class);
     }
 
     /**
@@ -164,6 +182,7 @@ public class TagTestFinder extends TestFinder
      */
     public void setInitialTag(String tag) {
         initialTag = tag;
+        initialTagBytes = getTagBytes(tag);
     }
 
     /**
@@ -244,8 +263,32 @@ public class TagTestFinder extends TestFinder
             return;
         }
 
+        // Every test description must begin with the initial tag, so if
+        // the initial tag does not appear anywhere in the file, there is
+        // no need to look for comments. Check the bytes of the file first,
+        // and only decode the file if the tag is found.
+        ByteBuffer data = null;
+        byte[] tagBytes = initialTagBytes;
+        if (tagBytes != null) {
+            try {
+                data = readFile(file);
+            }
+            catch (FileNotFoundException e) {
+                error(i18n, "tag.cantFindFile", file);
+                return;
+            }
+            catch (IOException e) {
+                error(i18n, "tag.ioError", file);
+                return;
+            }
+            if (indexOf(data, tagBytes) == -1)
+                return;
+        }
+
         try {
-            cs.init(new BufferedReader(new FileReader(file)));
+            Reader r = (data == null ? new FileReader(file)
+                        : new InputStreamReader(new ByteArrayInputStream(data.array(), 0, data.limit())));
+            cs.init(new BufferedReader(r));
             if (fastScan)
                 cs.setFastScan(true);
 
@@ -370,13 +413,90 @@ public class TagTestFinder extends TestFinder
         return end;
     }
 
+    /**
+     * Read the entire contents of a file.
+     */
+    private static ByteBuffer readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long size = in.getChannel().size();
+            if (size >= Integer.MAX_VALUE)
+                throw new IOException(file + ": file too large");
+            // allow an extra byte, so that the end of file is normally
+            // detected without having to grow the array
+            byte[] data = new byte[(int) size + 1];
+            int n = 0;
+            int count;
+            while ((count = in.read(data, n, data.length - n)) != -1) {
+                n += count;
+                if (n == data.length) {
+                    // the file has grown since it was opened
+                    byte[] newData = new byte[data.length * 2];
+                    System.arraycopy(data, 0, newData, 0, n);
+                    data = newData;
+                }
+            }
+            return ByteBuffer.wrap(data, 0, n);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Find the first occurrence of a sequence of bytes within a buffer.
+     * @return the position of the first occurrence, or -1 if there is none
+     */
+    private static int indexOf(ByteBuffer buf, byte[] target) {
+        byte[] data = buf.array();
+        int max = buf.limit() - target.length;
+        byte first = target[0];
+    search:
+        for (int i = 0; i <= max; i++) {
+            if (data[i] != first)
+                continue;
+            for (int j = 1; j < target.length; j++) {
+                if (data[i + j] != target[j])
+                    continue search;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the bytes that represent an initial tag in a file, such as
+     * "@test". The result is null if there is no initial tag, or if the
+     * tag would not be represented by the same bytes in all files, as is the
+     * case if the tag contains non-ASCII characters or if the default
+     * charset is not compatible with ASCII.
+     */
+    private static byte[] getTagBytes(String tag) {
+        if (tag == null)
+            return null;
+        String s = "@" + tag;
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80)
+                return null;
+            b[i] = (byte) c;
+        }
+        // the bytes are compared with the default charset, which is the
+        // charset used to read the file when it is scanned for comments
+        if (!Arrays.equals(b, s.getBytes(Charset.defaultCharset())))
+            return null;
+        return b;
+    }
+
     //----------member variables------------------------------------------------
 
-    private File currFile;
+    private ThreadLocal currFile = new ThreadLocal();
     private HashMap excludeList   = new HashMap();
     private HashMap extensionTable = new HashMap();
     private boolean fastScan = false;
     private String initialTag = "test";
+    private byte[] initialTagBytes = getTagBytes(initialTag);
 
     //private int testDescNumber;
     private static final String[] excludeNames = {
@@ -33,6 +33,11 @@ import java.net.ServerSocket;
 import java.net.BindException;
 
 import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.sun.javatest.util.I18NResourceBundle;
 
@@ -40,6 +45,13 @@ import com.sun.javatest.util.I18NResourceBundle;
  * HTTP services for JT Harness.
  * This is designed to be a Singleton in the system, although this is not
  * enforced.
+ * Connections are served by a bounded pool of low priority worker threads,
+ * so that clients polling the server do not unduly disturb a test run.
+ * The number of workers is given by the system property
+ * <code>jt.httpd.threads</code>, and the number of connections that may
+ * be waiting for a worker by <code>jt.httpd.queue</code>; further
+ * connections are rejected, as "503 Service Unavailable", until the
+ * server is less busy.
  */
 
 // this code is based upon that found in the sun.net package
@@ -56,16 +68,34 @@ public class HttpdServer implements Runnable {
     }
 
     public void run() {
+        int nThreads = Integer.getInteger("jt.httpd.threads", DEFAULT_THREADS).intValue();
+        int queueSize = Integer.getInteger("jt.httpd.queue", DEFAULT_QUEUE).intValue();
+        workers = new ThreadPoolExecutor(nThreads, nThreads,
+                                         WORKER_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                                         new ArrayBlockingQueue(queueSize),
+                                         new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setName("HttpdServer:Worker-" + workerIndex++);
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        workers.allowCoreThreadTimeOut(true);
+
         while (true) {
             try {
                 Socket ns = socket.accept();
                 if (debug) System.out.println("httpd-New connection " + ns);
 
-                RequestHandler handler = new RequestHandler(ns);
-                Thread thr = new Thread(handler);
-
-                if (debug) System.out.println("httpd-Starting thread for connection ");
-                thr.start();
+                try {
+                    workers.execute(new RequestHandler(ns, this));
+                }
+                catch (RejectedExecutionException e) {
+                    if (debug) System.out.println("httpd-Too busy, rejecting connection " + ns);
+                    RequestHandler.reject(ns);
+                }
             }
             catch (IOException e) {
                 System.out.println(i18n.getString("server.errorInAccept"));
@@ -76,6 +106,14 @@ public class HttpdServer implements Runnable {
 
     }
 
+    /**
+     * Are there connections waiting for a worker thread?
+     * If so, workers should not keep idle connections open.
+     */
+    boolean hasWaitingConnections() {
+        return (workers != null && workers.getQueue().size() > 0);
+    }
+
     /**
      * Get the local port on which the server is listening
      */
@@ -176,6 +214,21 @@ public class HttpdServer implements Runnable {
     private static ServerSocket socket;
     private static String baseURL;
 
+    private ThreadPoolExecutor workers;
+    private int workerIndex;
+
+    /**
+     * Default number of worker threads, and of connections that may
+     * be waiting for one.
+     */
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_QUEUE = 25;
+
+    /**
+     * How long an idle worker thread is kept, in milliseconds.
+     */
+    private static final int WORKER_KEEP_ALIVE = 60000;
+
     /**
      * Maximum number of ports above the given port number to try to attach to.
      */
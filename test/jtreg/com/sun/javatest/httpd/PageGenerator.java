@@ -44,9 +44,21 @@ public class PageGenerator {
      * Generate the correct HTTP header for a sucessful request (200)
      */
     public static void generateOkHttp(PrintWriter out) {
+        generateOkHttp(out, CONTENT_HTML);
+    }
+
+    /**
+     * Generate the correct HTTP header for a sucessful request (200),
+     * for content of a given type.
+     *
+     * @param contentType The MIME type of the content, such as
+     *                    {@link #CONTENT_JSON}.
+     */
+    public static void generateOkHttp(PrintWriter out, String contentType) {
         out.println(HTTP_OK);
         genServerHdr(out);
-        out.println(HTTP_CONTENT_HTML);
+        out.print(HTTP_CONTENT_TYPE);
+        out.println(contentType);
         out.println();
     }
 
@@ -216,9 +228,10 @@ public class PageGenerator {
                 out.print("  built ");
                 out.print(swBuildDate);
             }
+
+            out.println();
         }
 
-        out.println();
         out.print("Date: ");
         out.println(dateFormat.format(new Date()));
     }
@@ -231,6 +244,9 @@ public class PageGenerator {
 
     private static final String TIMEZONE = "UTC";
 
+    public static final String CONTENT_HTML = "text/html";
+    public static final String CONTENT_JSON = "application/json";
+
     public static final int HTML32 = 0;
     public static final int HTML40_TRANS = 1;
 
@@ -240,7 +256,7 @@ public class PageGenerator {
     private static final String HTTP_CONTENT_TYPE = "Content-Type: ";
     private static final String HTTP_OK = "HTTP/1.1 200 OK";
     private static final String HTTP_BAD = "HTTP/1.1 400 Bad Request";
-    private static final String HTTP_CONTENT_HTML = HTTP_CONTENT_TYPE + "text/html";
+    private static final String HTTP_CONTENT_HTML = HTTP_CONTENT_TYPE + CONTENT_HTML;
 
     static {
         dateFormat = DateFormat.getDateTimeInstance(DateFormat.FULL,
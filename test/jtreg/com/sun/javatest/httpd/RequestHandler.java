@@ -26,38 +26,42 @@
  */
 package com.sun.javatest.httpd;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.LineNumberReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.Hashtable;
 
 import com.sun.javatest.util.I18NResourceBundle;
 import com.sun.javatest.util.StringArray;
 
 /**
- * HTTP service handler for requests sent to JT Harness
+ * HTTP service handler for requests sent to JT Harness.
+ * The handler serves requests on a connection until the client closes it,
+ * or it has been idle for a while, or it has served a number of requests.
+ * Connections are not kept open if other connections are waiting to be
+ * served, so that a few clients cannot monopolize the server.
  */
 
 // this code is based upon that found in the sun.net package
 class RequestHandler implements Runnable {
     /**
-     * Construct a handler to take the HTTP request on the given socket.
+     * Construct a handler to take the HTTP requests on the given socket.
      * Based on the requested URL, the correct JThttpProvider class will be
      * notified.  For special URLs, this class will delegate responsibility to
      * them.
      */
-    public RequestHandler(Socket soc) {
+    public RequestHandler(Socket soc, HttpdServer server) {
         this.soc = soc;
+        this.server = server;
     }
 
     public void run() {
-        // read the request
-        String request = null;
-
         try {
             if (debug) {
                 StringBuffer buf = new StringBuffer();
@@ -70,30 +74,91 @@ class RequestHandler implements Runnable {
                 buf.setLength(0);
             }
 
-            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(soc.getOutputStream())));
+            soc.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            // responses are buffered, and sent with as few writes as possible
+            soc.setTcpNoDelay(true);
+            socketOut = new BufferedOutputStream(soc.getOutputStream(), BUFFER_SIZE);
             in = new LineNumberReader(new InputStreamReader(soc.getInputStream()));
 
-
-            request = in.readLine();
-
-            if (debug) {
-                System.out.println("-------------");
-                System.out.println("RH-Full request:");
-                System.out.println(request);
+            for (int n = 1; handleRequest(n); n++)
+                ;
+        }
+        catch (SocketTimeoutException e) {
+            if (debug) System.out.println("RH-Idle connection timed out.");
+        }
+        catch (IOException e) {
+            if (debug) e.printStackTrace();
+        }
+        catch (RuntimeException e) {
+            // don't let a faulty provider kill the worker thread
+            e.printStackTrace();
+        }
+        finally {
+            try {
+                soc.close();
             }
+            catch (IOException ignore) {
+            }
+        }
+    }
 
-            // if we are debugging, print the rest of the message
-            while (debug && in.ready()) {
-                String line = in.readLine();
-                System.out.println(line);
+    /**
+     * Send a response to say the server is too busy to handle a connection,
+     * and close it.
+     */
+    static void reject(Socket soc) {
+        try {
+            soc.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            OutputStream o = soc.getOutputStream();
+            o.write(("HTTP/1.1 " + UNAVAILABLE + "\r\n"
+                     + "Connection: close\r\n"
+                     + "Retry-After: 1\r\n\r\n").getBytes("ISO-8859-1"));
+            o.flush();
+        }
+        catch (IOException ignore) {
+        }
+        finally {
+            try {
+                soc.close();
+            }
+            catch (IOException ignore) {
             }
+        }
+    }
 
-            if (debug) System.out.println("-------------");
+    /**
+     * Read and handle a request on the connection.
+     * @param n the number of this request on the connection
+     * @return true if the connection should be kept open for another request
+     */
+    private boolean handleRequest(int n) throws IOException {
+        // read the request
+        String request = in.readLine();
+        // be tolerant of blank lines between requests
+        while (request != null && request.length() == 0)
+            request = in.readLine();
+
+        if (request == null)
+            return false;
+
+        if (debug) {
+            System.out.println("-------------");
+            System.out.println("RH-Full request:");
+            System.out.println(request);
         }
-        catch (IOException e) {
-            e.printStackTrace();
+
+        Hashtable headers = new Hashtable();
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+            if (debug) System.out.println(line);
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                            line.substring(colon + 1).trim());
         }
 
+        if (debug) System.out.println("-------------");
+
         // decode
         String[] args = StringArray.split(request);
         if (debug) {
@@ -104,10 +169,24 @@ class RequestHandler implements Runnable {
         if (args == null || args.length < 3) {
             if (debug) System.err.println("RH-HTTP request too short.");
             // ignore the request
-            return;
+            return false;
         }
 
-        if (args[0].equalsIgnoreCase(GET)) {
+        // Only GET requests are served on a persistent connection, since
+        // other requests may have a body. The body of the response is sent
+        // with chunked encoding, which requires HTTP/1.1.
+        boolean get = args[0].equalsIgnoreCase(GET);
+        boolean keepAlive = get
+            && args[2].equalsIgnoreCase(HTTP_1_1)
+            && !"close".equalsIgnoreCase((String) (headers.get("connection")))
+            && n < MAX_REQUESTS
+            && !server.hasWaitingConnections();
+        String accept = (String) (headers.get("accept-encoding"));
+        boolean gzip = (accept != null && accept.toLowerCase().indexOf("gzip") != -1);
+
+        out = new PrintWriter(new BufferedWriter(new ResponseWriter(socketOut, keepAlive, gzip)));
+
+        if (get) {
             if (debug) System.out.println("RH-Processing HTTP GET request.");
             doGet(args);
         }
@@ -118,9 +197,11 @@ class RequestHandler implements Runnable {
         else {
             if (debug) System.err.println("RH-Unsupported request method: " + args[0]);
             error(out, BAD_METHOD, args[0] + " is an unsupported request method. " + BAD_METHOD);
-            out.close();
-            return;
         }
+
+        // complete the response, if the provider has not already done so
+        out.close();
+        return keepAlive && !out.checkError();
     }
 
     protected void doGet(String[] args) {
@@ -135,8 +216,8 @@ class RequestHandler implements Runnable {
         if (handler != null)
             handler.serviceRequest(url, out);
         else {
-            // need to produce an error page!
             if (debug) System.out.println("No handler found for: " + args[1]);
+            error(out, NOT_FOUND, args[1]);
         }
     }
 
@@ -153,6 +234,7 @@ class RequestHandler implements Runnable {
         out.print("HTTP/1.1 ");
         out.println(code);
         out.println(HTTP_CONTENT_HTML);
+        out.println();
         out.print("<html><head><title>");
         out.print(code);
         out.println("</title></head><body>");
@@ -162,15 +244,30 @@ class RequestHandler implements Runnable {
         out.println("</body></html>");
     }
 
-    private static Hashtable urlMap;
-
     private Socket soc;
+    private HttpdServer server;
+    private OutputStream socketOut;
     private PrintWriter out;
     private LineNumberReader in;
 
+    /**
+     * How long a connection may be idle before it is closed, in milliseconds.
+     */
+    private static final int KEEP_ALIVE_TIMEOUT = 15000;
+
+    /**
+     * The maximum number of requests served on a connection.
+     */
+    private static final int MAX_REQUESTS = 100;
+
+    private static final int BUFFER_SIZE = 8192;
+
     private static final String GET = "GET";
     private static final String POST = "POST";
+    private static final String HTTP_1_1 = "HTTP/1.1";
     private static final String BAD_METHOD = "405 Method Not Allowed";
+    private static final String NOT_FOUND = "404 Not Found";
+    private static final String UNAVAILABLE = "503 Service Unavailable";
     private static final String HTTP_CONTENT_TYPE = "Content-Type: ";
     private static final String HTTP_CONTENT_HTML = HTTP_CONTENT_TYPE + "text/html";
     private static I18NResourceBundle i18n = I18NResourceBundle.getBundleForClass(RequestHandler.class);
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.javatest.httpd;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.Writer;
+import java.util.Vector;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The writer given to a {@link JThttpProvider} for its response.
+ * Providers write the response in the traditional way, as an HTTP status
+ * line and headers followed by the body, or just as the body. The writer
+ * separates the headers from the body, so that it can add the headers
+ * needed to deliver the body, and then streams the body to the client,
+ * compressed and chunked if appropriate, so that the connection may be
+ * used for further requests. Closing the writer completes the response
+ * but does not close the connection.
+ * The body is buffered, and is only sent when the buffer fills, or when
+ * the writer is flushed or closed.
+ */
+class ResponseWriter extends Writer {
+    /**
+     * Create a writer for a response.
+     * @param out the stream to the client
+     * @param keepAlive whether the connection will be kept open after the
+     *          response, in which case the body is sent with chunked encoding
+     * @param gzip whether the body should be compressed
+     */
+    ResponseWriter(OutputStream out, boolean keepAlive, boolean gzip) {
+        this.out = out;
+        this.keepAlive = keepAlive;
+        this.gzip = gzip;
+    }
+
+    public void write(char[] buf, int offset, int len) throws IOException {
+        if (closed)
+            throw new IOException("Writer closed");
+
+        int end = offset + len;
+        while (offset < end && body == null) {
+            char c = buf[offset++];
+            line.append(c);
+            if (c == '\n')
+                headerLine();
+        }
+
+        if (offset < end)
+            body.write(buf, offset, end - offset);
+    }
+
+    public void flush() throws IOException {
+        // the headers cannot be sent until they are complete
+        if (body != null) {
+            body.flush();
+            out.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        if (closed)
+            return;
+
+        if (body == null) {
+            if (line.length() > 0)
+                headerLine();
+            if (body == null)
+                startBody();
+        }
+
+        body.close();
+        closed = true;
+    }
+
+    /**
+     * Process a complete line written while still in the header section.
+     * A line that does not look like a header starts the body.
+     */
+    private void headerLine() throws IOException {
+        String s = line.toString().trim();
+
+        if (status == null && s.startsWith("HTTP/")) {
+            status = s;
+            line.setLength(0);
+            return;
+        }
+
+        int colon = s.indexOf(':');
+        if (status != null && colon > 0 && s.lastIndexOf(' ', colon) == -1
+            && s.lastIndexOf('<', colon) == -1) {
+            String name = s.substring(0, colon).toLowerCase();
+            // these are determined here, not by the provider
+            if (!name.equals("connection") && !name.equals("content-length")
+                && !name.equals("transfer-encoding")) {
+                if (name.equals("content-type"))
+                    hasContentType = true;
+                headers.addElement(s);
+            }
+            line.setLength(0);
+            return;
+        }
+
+        // An empty line ends the headers; anything else is the
+        // beginning of the body, and belongs in it.
+        String rest = (s.length() == 0 ? null : line.toString());
+        line.setLength(0);
+        startBody();
+        if (rest != null)
+            body.write(rest);
+    }
+
+    private void startBody() throws IOException {
+        StringBuffer sb = new StringBuffer(256);
+        sb.append(status == null ? DEFAULT_STATUS : status).append(CRLF);
+        for (int i = 0; i < headers.size(); i++)
+            sb.append((String) (headers.elementAt(i))).append(CRLF);
+        if (!hasContentType)
+            sb.append(DEFAULT_CONTENT_TYPE).append(CRLF);
+        sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append(CRLF);
+        if (keepAlive)
+            sb.append("Transfer-Encoding: chunked").append(CRLF);
+        if (gzip)
+            sb.append("Content-Encoding: gzip").append(CRLF);
+        sb.append(CRLF);
+
+        byte[] head = sb.toString().getBytes("ISO-8859-1");
+        out.write(head);
+
+        OutputStream bodyOut = new BodyOutputStream(out, keepAlive);
+        if (gzip)
+            bodyOut = new GZIPOutputStream(new BufferedOutputStream(bodyOut, BUFFER_SIZE));
+        body = new OutputStreamWriter(bodyOut);
+    }
+
+    /**
+     * The stream for the body of the response, which applies chunked encoding
+     * if required. Closing the stream ends the body, but does not close the
+     * underlying stream.
+     */
+    private static class BodyOutputStream extends FilterOutputStream {
+        BodyOutputStream(OutputStream out, boolean chunked) {
+            super(out);
+            this.chunked = chunked;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int offset, int len) throws IOException {
+            if (len == 0)
+                return;
+            if (chunked) {
+                out.write((Integer.toHexString(len) + CRLF).getBytes("ISO-8859-1"));
+                out.write(b, offset, len);
+                out.write(CRLF_BYTES);
+            }
+            else
+                out.write(b, offset, len);
+        }
+
+        public void flush() {
+            // Data is sent when the buffer fills, or when the body is complete,
+            // so that a small response goes in a single packet: the writers
+            // above flush before closing.
+        }
+
+        public void close() throws IOException {
+            if (chunked)
+                out.write(LAST_CHUNK);
+            out.flush();
+        }
+
+        private boolean chunked;
+    }
+
+    private final OutputStream out;
+    private final boolean keepAlive;
+    private final boolean gzip;
+    private final StringBuffer line = new StringBuffer(80);
+    private String status;
+    private Vector headers = new Vector();
+    private boolean hasContentType;
+    private Writer body;
+    private boolean closed;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final String CRLF = "\r\n";
+    private static final byte[] CRLF_BYTES = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+    private static final String DEFAULT_STATUS = "HTTP/1.1 200 OK";
+    private static final String DEFAULT_CONTENT_TYPE = "Content-Type: text/html";
+}
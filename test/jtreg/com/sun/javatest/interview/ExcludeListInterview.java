@@ -480,7 +480,7 @@ public class ExcludeListInterview
                 if (ts == null || files == null || files.length == 0)
                     setCachedExcludeList(new ExcludeList());
                 else
-                    setCachedExcludeList(new ExcludeList(files));
+                    setCachedExcludeList(new ExcludeList(files, false, getExcludeListIndexFile()));
             }
             catch (FileNotFoundException e) {
                 setCachedExcludeListError(qExcludeListFileNotFound, e.getMessage());
@@ -497,6 +497,15 @@ public class ExcludeListInterview
         }
     }
 
+    private File getExcludeListIndexFile() {
+        // the compiled form of the exclude list is kept in the work directory,
+        // unless disabled
+        WorkDirectory wd = parent.getWorkDirectory();
+        if (wd == null || Boolean.getBoolean("javatest.excludeList.noIndex"))
+            return null;
+        return wd.getSystemFile("excludeList.index");
+    }
+
     private void setCachedExcludeList(ExcludeList l) {
         cachedExcludeList = l;
         cachedExcludeListFilter = (l.isEmpty() ? null : new ExcludeListFilter(l));
@@ -0,0 +1,734 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+
+package com.sun.javatest.regtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.sun.javatest.Command;
+import com.sun.javatest.Status;
+import com.sun.javatest.lib.JavaCompileCommand;
+import com.sun.javatest.util.Timer;
+
+/**
+ * A long-lived VM in which "compile" and "main" actions can be run.
+ *
+ * In agentVM mode, instead of starting a new VM for every action, actions are
+ * passed over a local socket to a VM that is kept running between tests.
+ * The agent VM restores its state (system properties, standard streams and
+ * security manager) after every action; if it cannot do so, if an action
+ * times out, or if a test does not complete normally, the VM is discarded
+ * and a new one will be started for the next test that needs it.  Idle VMs
+ * that have exited are also discarded, rather than being reused.
+ *
+ * Agents are shared between tests via a {@link Pool}.  An agent can only be
+ * reused by a test that requires the same JDK, VM options, environment and
+ * scratch directory.
+ */
+public class Agent {
+    /**
+     * Exception to report a problem starting or communicating with an agent.
+     */
+    public static class Fault extends Exception {
+        static final long serialVersionUID = 8765154720931768716L;
+        Fault(String msg) {
+            super(msg);
+        }
+        Fault(String msg, Throwable cause) {
+            super(msg, cause);
+        }
+    }
+
+    /**
+     * Start a new agent VM.
+     * @param dir the directory in which to run the VM
+     * @param jdk the JDK to use to run the VM
+     * @param vmOpts the VM options to use when starting the VM
+     * @param envVars the environment variables for the VM
+     * @param classpath the class path for the VM; it must contain jtreg
+     * @throws Agent.Fault if the VM cannot be started
+     */
+    private Agent(File dir, JDK jdk, List<String> vmOpts, String[] envVars,
+            String classpath, String key) throws Fault {
+        this.key = key;
+        this.id = nextId();
+
+        ServerSocket ss = null;
+        try {
+            // the agent connects back to the harness, on the loopback address
+            ss = new ServerSocket(0, 1, InetAddress.getByName(null));
+            ss.setSoTimeout(ACCEPT_TIMEOUT);
+
+            List<String> cmd = new ArrayList<String>();
+            cmd.add(jdk.getJavaProg().getPath());
+            cmd.add("-classpath");
+            cmd.add(classpath);
+            cmd.addAll(vmOpts);
+            cmd.add(Server.class.getName());
+            cmd.add("-port");
+            cmd.add(String.valueOf(ss.getLocalPort()));
+            if (debugAgent)
+                System.err.println("Agent[" + id + "]: starting " + cmd + " in " + dir);
+
+            process = Runtime.getRuntime().exec(cmd.toArray(new String[cmd.size()]), envVars, dir);
+            process.getOutputStream().close();
+            new StreamDrainer(process.getInputStream(), id).start();
+            new StreamDrainer(process.getErrorStream(), id).start();
+
+            socket = ss.accept();
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        } catch (IOException e) {
+            close();
+            throw new Fault(AGENT_CANT_START + e, e);
+        } finally {
+            if (ss != null) {
+                try {
+                    ss.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the compiler in the agent VM.
+     * @param args the arguments for the compiler
+     * @param reuseCompiler whether to reuse the compiler and its platform
+     *      classes from previous compilations in the agent VM
+     * @param timeout the timeout for the action, in seconds, or 0 for none
+     * @param outputs a map in which to place the text written by the compiler,
+     *      keyed by the names "direct", "direct.log", "System.out" and "System.err"
+     * @return the status returned by the compiler
+     * @throws Agent.Fault if there is a problem communicating with the agent;
+     *      the agent should not be reused
+     */
+    Status doCompileAction(String[] args, boolean reuseCompiler, int timeout,
+            Map<String,String> outputs) throws Fault {
+        try {
+            out.writeByte(DO_COMPILE);
+            writeStrings(out, args);
+            out.writeBoolean(reuseCompiler);
+            out.flush();
+        } catch (IOException e) {
+            throw new Fault(AGENT_IO_PROB + e, e);
+        }
+        return readResults(timeout, outputs);
+    }
+
+    /**
+     * Run the main method of a class in the agent VM.
+     * @param testProps system properties to be set while the class is run
+     * @param classpath the class path from which to load the class
+     * @param className the name of the class
+     * @param args the arguments to pass to the main method
+     * @param timeout the timeout for the action, in seconds, or 0 for none
+     * @param outputs a map in which to place the text written to
+     *      "System.out" and "System.err"
+     * @return the status of running the main method
+     * @throws Agent.Fault if there is a problem communicating with the agent;
+     *      the agent should not be reused
+     */
+    Status doMainAction(Map<String,String> testProps, String classpath,
+            String className, String[] args, int timeout, Map<String,String> outputs)
+            throws Fault {
+        try {
+            out.writeByte(DO_MAIN);
+            out.writeInt(testProps.size());
+            for (Map.Entry<String,String> e: testProps.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+            writeString(out, classpath);
+            writeString(out, className);
+            writeStrings(out, args);
+            out.flush();
+        } catch (IOException e) {
+            throw new Fault(AGENT_IO_PROB + e, e);
+        }
+        return readResults(timeout, outputs);
+    }
+
+    /**
+     * Determine whether the agent may be reused for another action.
+     * An agent may not be reused after an action timed out, or if the
+     * agent could not restore its state after the previous action, or if
+     * the previous action did not complete normally.
+     */
+    boolean isReusable() {
+        return reusable && !timedOut && socket != null;
+    }
+
+    /**
+     * Determine whether the agent VM is still running, so that an idle
+     * agent can be given another action.
+     */
+    synchronized boolean isAlive() {
+        if (socket == null || process == null)
+            return false;
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            // the process has not yet exited
+            return true;
+        }
+    }
+
+    /**
+     * Close the connection to the agent, and destroy the agent VM.
+     */
+    synchronized void close() {
+        if (socket != null) {
+            try {
+                out.writeByte(CLOSE);
+                out.flush();
+            } catch (IOException ignore) {
+            }
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+            socket = null;
+        }
+        if (process != null) {
+            process.destroy();
+            process = null;
+        }
+    }
+
+    private Status readResults(int timeout, Map<String,String> outputs) throws Fault {
+        Timer.Entry alarm = null;
+        if (timeout > 0) {
+            alarm = timer.requestDelayedCallback(new Timer.Timeable() {
+                public void timeout() {
+                    timedOut = true;
+                    close();
+                }
+            }, timeout * 1000L);
+        }
+        try {
+            while (true) {
+                byte op = in.readByte();
+                switch (op) {
+                    case OUTPUT:
+                        String name = readString(in);
+                        String text = readString(in);
+                        outputs.put(name, text);
+                        break;
+                    case STATUS:
+                        int type = in.readByte();
+                        String reason = readString(in);
+                        reusable = in.readBoolean();
+                        return new Status(type, reason);
+                    default:
+                        throw new Fault(AGENT_BAD_MSG + op);
+                }
+            }
+        } catch (IOException e) {
+            reusable = false;
+            if (timedOut)
+                throw new Fault(AGENT_TIMEOUT + timeout + " seconds", e);
+            throw new Fault(AGENT_IO_PROB + e, e);
+        } finally {
+            if (alarm != null)
+                timer.cancel(alarm);
+        }
+    }
+
+    private static synchronized int nextId() {
+        return count++;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String s: strings)
+            writeString(out, s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = readString(in);
+        return strings;
+    }
+
+    /**
+     * A thread to discard anything written by an agent VM to its standard
+     * output streams outside of an action.
+     */
+    private static class StreamDrainer extends Thread {
+        StreamDrainer(InputStream in, int id) {
+            super("Agent" + id + "_StreamDrainer");
+            setDaemon(true);
+            this.in = in;
+        }
+
+        @Override
+        public void run() {
+            byte[] buf = new byte[1024];
+            try {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    if (debugAgent)
+                        System.err.write(buf, 0, n);
+                }
+            } catch (IOException ignore) {
+            }
+        }
+
+        private InputStream in;
+    }
+
+    //---------------------------------------------------------------------
+
+    /**
+     * A pool of idle agents, keyed by the parameters used to start them.
+     */
+    public static class Pool {
+        /**
+         * Get the single instance of the pool.
+         */
+        public static synchronized Pool instance() {
+            if (instance == null)
+                instance = new Pool();
+            return instance;
+        }
+
+        private Pool() {
+            Runtime.getRuntime().addShutdownHook(new Thread("Agent.Pool shutdown") {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+        }
+
+        /**
+         * Get an agent for the given parameters, reusing an idle one
+         * if possible, and starting a new one otherwise.
+         */
+        Agent getAgent(File dir, JDK jdk, List<String> vmOpts, String[] envVars,
+                String classpath) throws Fault {
+            String key = getKey(dir, jdk, vmOpts, envVars, classpath);
+            while (true) {
+                Agent a;
+                synchronized (this) {
+                    LinkedList<Agent> l = idleAgents.get(key);
+                    if (l == null || l.isEmpty())
+                        break;
+                    a = l.removeFirst();
+                }
+                // an idle agent VM may have exited, or been killed, since
+                // it was returned to the pool
+                if (a.isAlive())
+                    return a;
+                if (debugAgent)
+                    System.err.println("Agent[" + a.id + "]: discarding dead agent");
+                a.close();
+            }
+            // start the new agent without holding the lock on the pool
+            return new Agent(dir, jdk, vmOpts, envVars, classpath, key);
+        }
+
+        /**
+         * Return an agent to the pool once an action has completed.
+         * Agents that cannot be reused are closed instead.
+         */
+        void save(Agent agent) {
+            if (!agent.isReusable()) {
+                agent.close();
+                return;
+            }
+            synchronized (this) {
+                LinkedList<Agent> l = idleAgents.get(agent.key);
+                if (l == null)
+                    idleAgents.put(agent.key, l = new LinkedList<Agent>());
+                l.addLast(agent);
+            }
+        }
+
+        /**
+         * Close all the idle agents in the pool.
+         */
+        public synchronized void close() {
+            for (List<Agent> l: idleAgents.values()) {
+                for (Agent a: l)
+                    a.close();
+            }
+            idleAgents.clear();
+        }
+
+        private static String getKey(File dir, JDK jdk, List<String> vmOpts,
+                String[] envVars, String classpath) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(dir.getAbsolutePath()).append("\n");
+            sb.append(jdk.getAbsoluteFile()).append("\n");
+            sb.append(classpath).append("\n");
+            sb.append(StringUtils.join(vmOpts, " ")).append("\n");
+            sb.append(StringArray.join(envVars, " "));
+            return sb.toString();
+        }
+
+        private Map<String,LinkedList<Agent>> idleAgents = new HashMap<String,LinkedList<Agent>>();
+        private static Pool instance;
+    }
+
+    //---------------------------------------------------------------------
+
+    /**
+     * The main program for the agent VM.  The agent connects back to the
+     * harness and executes the actions it is given, one at a time, until
+     * it is told to close or the connection is lost.
+     */
+    public static class Server {
+        public static void main(String[] args) {
+            try {
+                int port = -1;
+                for (int i = 0; i < args.length; i++) {
+                    if (args[i].equals("-port") && i + 1 < args.length)
+                        port = Integer.parseInt(args[++i]);
+                    else
+                        throw new IllegalArgumentException(args[i]);
+                }
+                if (port < 0)
+                    throw new IllegalArgumentException("no port specified");
+
+                Server server = new Server(port);
+                server.run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+                exit(1);
+            }
+            exit(0);
+        }
+
+        Server(int port) throws IOException {
+            socket = new Socket(InetAddress.getByName(null), port);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            RegressionSecurityManager.install();
+            SecurityManager sm = System.getSecurityManager();
+            if (sm instanceof RegressionSecurityManager) {
+                // the agent VM is dedicated to running tests, so tests may
+                // freely modify the state that is reset after each action
+                ((RegressionSecurityManager) sm).setAllowSetIO(true);
+                ((RegressionSecurityManager) sm).setAllowPropertiesAccess(true);
+            }
+            securityManager = sm;
+
+            stdOut = System.out;
+            stdErr = System.err;
+            sysProps = copyProperties(System.getProperties());
+        }
+
+        void run() throws IOException {
+            try {
+                while (true) {
+                    int op = in.read();
+                    switch (op) {
+                        case -1:
+                        case CLOSE:
+                            return;
+                        case DO_COMPILE:
+                            doCompile();
+                            break;
+                        case DO_MAIN:
+                            doMain();
+                            break;
+                        default:
+                            throw new IOException(AGENT_BAD_MSG + op);
+                    }
+                }
+            } finally {
+                socket.close();
+            }
+        }
+
+        private void doCompile() throws IOException {
+            String[] args = readStrings(in);
+            boolean reuseCompiler = in.readBoolean();
+
+            StringWriter outSW = new StringWriter();
+            StringWriter errSW = new StringWriter();
+            PrintWriter outPW = new PrintWriter(outSW);
+            PrintWriter errPW = new PrintWriter(errSW);
+            ByteArrayOutputStream outOS = new ByteArrayOutputStream();
+            ByteArrayOutputStream errOS = new ByteArrayOutputStream();
+            PrintStream outPS = new PrintStream(outOS);
+            PrintStream errPS = new PrintStream(errOS);
+
+            Status status;
+            boolean crashed = false;
+            try {
+                System.setOut(outPS);
+                System.setErr(errPS);
+                Command c = (reuseCompiler
+                        ? new CachingJavaCompileCommand()
+                        : new JavaCompileCommand());
+                status = c.run(args, errPW, outPW);
+            } catch (Throwable t) {
+                t.printStackTrace(errPS);
+                status = Status.error(t.toString());
+                crashed = true;
+            } finally {
+                outPW.close();
+                errPW.close();
+                outPS.close();
+                errPS.close();
+            }
+
+            // a compilation that fails normally leaves the VM fit for reuse,
+            // but not one that ended with an unexpected exception or error
+            boolean ok = reset() && !crashed;
+            sendOutput("direct", outSW.toString());
+            sendOutput("direct.log", errSW.toString());
+            sendOutput("System.out", outOS.toString());
+            sendOutput("System.err", errOS.toString());
+            sendStatus(status, ok);
+        }
+
+        private void doMain() throws IOException {
+            Map<String,String> testProps = new HashMap<String,String>();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String key = readString(in);
+                testProps.put(key, readString(in));
+            }
+            String classpath = readString(in);
+            String className = readString(in);
+            final String[] args = readStrings(in);
+
+            ByteArrayOutputStream outOS = new ByteArrayOutputStream();
+            ByteArrayOutputStream errOS = new ByteArrayOutputStream();
+            PrintStream outPS = new PrintStream(outOS);
+            final PrintStream errPS = new PrintStream(errOS);
+
+            Status status;
+            boolean cleanupOK = true;
+            try {
+                Properties p = System.getProperties();
+                p.putAll(testProps);
+                p.put("java.class.path", classpath + PATHSEP + sysProps.getProperty("java.class.path"));
+                System.setOut(outPS);
+                System.setErr(errPS);
+
+                List<URL> urls = new ArrayList<URL>();
+                for (String f: StringArray.splitSeparator(PATHSEP, classpath)) {
+                    if (f.length() > 0) {
+                        try {
+                            urls.add(new File(f).toURI().toURL());
+                        } catch (MalformedURLException ignore) {
+                        }
+                    }
+                }
+                ClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]));
+                Class<?> c = loader.loadClass(className);
+                final Method method = c.getMethod("main", String[].class);
+
+                // run the test in its own thread group, so that any threads
+                // it leaves behind can be found and cleaned up
+                final Throwable[] error = new Throwable[1];
+                MainAction.SameVMThreadGroup tg = new MainAction.SameVMThreadGroup();
+                Thread t = new Thread(tg, new Runnable() {
+                    public void run() {
+                        try {
+                            method.invoke(null, new Object[] { args });
+                        } catch (InvocationTargetException e) {
+                            error[0] = e.getTargetException();
+                            error[0].printStackTrace(errPS);
+                        } catch (IllegalAccessException e) {
+                            error[0] = e;
+                            e.printStackTrace(errPS);
+                        }
+                    }
+                }, "AgentVMThread");
+                t.start();
+                t.join();
+                tg.cleanup();
+                cleanupOK = tg.cleanupOK;
+
+                if (error[0] == null && tg.uncaughtThrowable != null)
+                    error[0] = tg.uncaughtThrowable;
+                if (error[0] == null)
+                    status = Status.passed(EXEC_PASS);
+                else
+                    status = Status.failed(MAIN_THREW_EXCEPT + error[0]);
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace(errPS);
+                status = Status.error(MAIN_CANT_LOAD_TEST + e);
+            } catch (NoSuchMethodException e) {
+                e.printStackTrace(errPS);
+                status = Status.error(MAIN_CANT_FIND_MAIN);
+            } catch (InterruptedException e) {
+                status = Status.error(MAIN_THREAD_INTR + e.getMessage());
+            } finally {
+                outPS.close();
+                errPS.close();
+            }
+
+            // a test that did not complete normally, for example because it
+            // threw an exception or ran out of memory, may have left the VM
+            // in a bad state, so the VM is not reused
+            boolean ok = reset() && cleanupOK && status.isPassed();
+            sendOutput("System.out", outOS.toString());
+            sendOutput("System.err", errOS.toString());
+            if (!cleanupOK)
+                status = Status.error(EXEC_ERROR_CLEANUP);
+            sendStatus(status, ok);
+        }
+
+        /**
+         * Restore the state of the VM after an action.
+         * @return true if the state was successfully restored, and false
+         *      if the VM should not be reused
+         */
+        private boolean reset() {
+            boolean ok = true;
+            try {
+                System.setOut(stdOut);
+                System.setErr(stdErr);
+                System.setProperties(copyProperties(sysProps));
+            } catch (SecurityException e) {
+                ok = false;
+            }
+            if (System.getSecurityManager() != securityManager)
+                ok = false;
+            return ok;
+        }
+
+        private void sendOutput(String name, String text) throws IOException {
+            out.writeByte(OUTPUT);
+            writeString(out, name);
+            writeString(out, text);
+        }
+
+        private void sendStatus(Status status, boolean reusable) throws IOException {
+            out.writeByte(STATUS);
+            out.writeByte(status.getType());
+            writeString(out, status.getReason());
+            out.writeBoolean(reusable);
+            out.flush();
+        }
+
+        private static Properties copyProperties(Properties p) {
+            Properties copy = new Properties();
+            copy.putAll(p);
+            return copy;
+        }
+
+        private static void exit(int rc) {
+            SecurityManager sm = System.getSecurityManager();
+            if (sm instanceof RegressionSecurityManager)
+                ((RegressionSecurityManager) sm).setAllowExit(true);
+            System.exit(rc);
+        }
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final SecurityManager securityManager;
+        private final PrintStream stdOut;
+        private final PrintStream stdErr;
+        private final Properties sysProps;
+    }
+
+    //---------------------------------------------------------------------
+
+    private static final byte DO_COMPILE = 1;
+    private static final byte DO_MAIN = 2;
+    private static final byte OUTPUT = 3;
+    private static final byte STATUS = 4;
+    private static final byte CLOSE = 5;
+
+    private static final String
+        AGENT_CANT_START = "Cannot start agent VM: ",
+        AGENT_IO_PROB    = "Problem communicating with agent VM: ",
+        AGENT_BAD_MSG    = "Unexpected message from agent VM: ",
+        AGENT_TIMEOUT    = "Agent VM timed out after ";
+
+    // uses the constants defined for the actions
+    private static final String
+        EXEC_PASS           = Action.EXEC_PASS,
+        EXEC_ERROR_CLEANUP  = Action.EXEC_ERROR_CLEANUP,
+        MAIN_THREW_EXCEPT   = Action.MAIN_THREW_EXCEPT,
+        MAIN_CANT_LOAD_TEST = Action.MAIN_CANT_LOAD_TEST,
+        MAIN_CANT_FIND_MAIN = Action.MAIN_CANT_FIND_MAIN,
+        MAIN_THREAD_INTR    = Action.MAIN_THREAD_INTR;
+
+    private static final String PATHSEP = System.getProperty("path.separator");
+    private static final int ACCEPT_TIMEOUT = 60 * 1000;
+
+    private static final Timer timer = new Timer();
+    private static int count;
+    private static boolean debugAgent = Boolean.getBoolean("javatest.regtest.debugAgent");
+
+    private final String key;
+    private final int id;
+    private Process process;
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private boolean reusable = true;
+    private volatile boolean timedOut;
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.javatest.regtest;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sun.javatest.TestDescription;
+import com.sun.javatest.TestResult;
+import com.sun.javatest.WorkDirectory;
+import com.sun.javatest.lib.ProcessCommand;
+import com.sun.javatest.util.Fifo;
+
+/**
+ * Compile the classes named in the build actions of a set of tests before
+ * the tests are run.  The source files that need compiling are grouped by
+ * the directory in which the classes will be placed, and by the class path
+ * and source path used to compile them; each group is then compiled with a
+ * single invocation of javac. Groups are compiled in parallel, up to the
+ * given concurrency, except that groups which place their classes in the
+ * same directory are compiled one after another, so that no two
+ * compilations write the same class files at the same time.
+ *
+ * No results are recorded for the compilations performed here: when the
+ * tests are subsequently run, each build action will find its classes are
+ * up to date. If the compilation of a group fails, the build actions of the
+ * affected tests will compile the files again, and report any errors in the
+ * usual way.
+ */
+class BatchBuilder
+{
+    /**
+     * Create a batch builder.
+     *
+     * @param params The parameters for the test run.
+     * @param concurrency The maximum number of compilations to run in parallel.
+     */
+    BatchBuilder(RegressionParameters params, int concurrency) {
+        this.params = params;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Compile the classes named in the build actions of a set of tests.
+     *
+     * @param iter An iterator giving the TestResult objects for the tests
+     * to be run.
+     * @throws InterruptedException if the thread is interrupted while
+     * waiting for the compilations to complete.
+     */
+    void build(Iterator iter) throws InterruptedException {
+        findGroups(iter);
+        if (groups.isEmpty())
+            return;
+
+        // the groups for each directory are compiled in turn, by one thread
+        final Map<File,List<Group>> dirGroups = new LinkedHashMap<File,List<Group>>();
+        for (Group g: groups.values()) {
+            List<Group> l = dirGroups.get(g.destDir);
+            if (l == null)
+                dirGroups.put(g.destDir, l = new ArrayList<Group>());
+            l.add(g);
+        }
+
+        final Fifo queue = new Fifo();
+        for (File dir: dirGroups.keySet())
+            queue.insert(dir);
+
+        int nThreads = Math.min(concurrency, dirGroups.size());
+        Thread[] threads = new Thread[nThreads];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread("BatchBuilder" + i) {
+                public void run() {
+                    File dir;
+                    while ((dir = (File) queue.remove()) != null) {
+                        for (Group g: dirGroups.get(dir))
+                            compile(g);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+    }
+
+    private void findGroups(Iterator iter) {
+        WorkDirectory wd = params.getWorkDirectory();
+        RegressionEnvironment env = (RegressionEnvironment) params.getEnv();
+        if (env == null)
+            return;
+
+        // set up the values that the harness and script would otherwise
+        // provide in the environment when running each test
+        float tf = params.getTimeoutFactor();
+        env.put("javatestTimeoutFactor", new String[] {
+            String.valueOf((int) (Math.ceil(tf))),
+            String.valueOf(tf)
+        });
+        env.putUrlAndFile("testClassDir", wd.getFile("classes"));
+
+        while (iter.hasNext()) {
+            TestResult tr = (TestResult) (iter.next());
+            TestDescription td;
+            try {
+                td = tr.getDescription();
+            } catch (TestResult.Fault e) {
+                continue;
+            }
+
+            RegressionScript script = new RegressionScript();
+            script.initTestDescription(td);
+            script.initTestEnvironment(env);
+            script.initWorkDir(wd);
+            Map<File,List<File>> buildFiles = script.getBuildFiles(td, env);
+            if (buildFiles.isEmpty() || script.isJDK11())
+                continue;
+
+            String classPath;
+            String sourcePath;
+            try {
+                classPath = script.testClassPath();
+                sourcePath = script.testSourcePath();
+            } catch (TestRunException e) {
+                continue;
+            }
+
+            for (Map.Entry<File,List<File>> e: buildFiles.entrySet()) {
+                File destDir = e.getKey();
+                String key = destDir + "\n" + classPath + "\n" + sourcePath;
+                Group g = groups.get(key);
+                if (g == null) {
+                    g = new Group(destDir, classPath, sourcePath);
+                    groups.put(key, g);
+                }
+                g.files.addAll(e.getValue());
+            }
+        }
+    }
+
+    private void compile(Group g) {
+        if (!g.destDir.exists())
+            g.destDir.mkdirs();
+
+        List<String> javacOpts = new ArrayList<String>();
+        javacOpts.add(params.getJDK().getJavacProg().getPath());
+        javacOpts.addAll(params.getTestToolVMOptions());
+        javacOpts.addAll(params.getTestCompilerOptions());
+        javacOpts.add("-d");
+        javacOpts.add(g.destDir.getPath());
+        javacOpts.add("-classpath");
+        javacOpts.add(new Path(params.getJavaTestClassPath(), g.classPath).toString());
+        javacOpts.add("-sourcepath");
+        javacOpts.add(g.sourcePath);
+        for (File f: g.files)
+            javacOpts.add(f.getPath());
+
+        String[] cmdArgs = StringArray.append(params.getEnvVars(),
+                javacOpts.toArray(new String[javacOpts.size()]));
+
+        File scratchDir = params.getWorkDirectory().getFile("scratch");
+        if (!scratchDir.exists())
+            scratchDir.mkdirs();
+
+        StringWriter outSW = new StringWriter();
+        StringWriter errSW = new StringWriter();
+        ProcessCommand cmd = new ProcessCommand();
+        cmd.setExecDir(scratchDir);
+        // the status is ignored: if the compilation failed, the build
+        // actions in the tests will recompile the files and report the errors
+        cmd.run(cmdArgs, new PrintWriter(errSW), new PrintWriter(outSW));
+    }
+
+    private static class Group {
+        Group(File destDir, String classPath, String sourcePath) {
+            this.destDir = destDir;
+            this.classPath = classPath;
+            this.sourcePath = sourcePath;
+        }
+
+        final File destDir;
+        final String classPath;
+        final String sourcePath;
+        final Set<File> files = new LinkedHashSet<File>();
+    }
+
+    private final RegressionParameters params;
+    private final int concurrency;
+    private final Map<String,Group> groups = new LinkedHashMap<String,Group>();
+}
@@ -30,9 +30,11 @@ import java.io.File;
 import com.sun.javatest.TestResult;
 import com.sun.javatest.Status;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 // TODO: batch compile targets to be built
 // use script.absTestClsDestDir(absSrc) to determine dest class dir
@@ -119,6 +121,84 @@ public class BuildAction extends Action
         return l.toArray(new File[l.size()]);
     }
 
+    /**
+     * Determine which of the named classes need to be compiled, because
+     * the class file does not exist or is not up to date with respect to
+     * its source file, the compiler options, or the source files on which
+     * it depends, as recorded in the build index for the work directory.
+     * Any of those source files that have changed are also compiled.
+     * The source files are grouped according to the value of the -d flag
+     * that will be required to compile them.
+     *
+     * @return     A map from destination directory to the source files to be
+     *             compiled into that directory.
+     * @exception  TestRunException If a source file cannot be found.
+     */
+    Map<File,List<File>> getFilesToCompile() throws TestRunException {
+        BuildIndex index = script.getBuildIndex();
+        String options = getOptionsKey();
+        Map<File,List<File>> filesToCompile = new LinkedHashMap<File,List<File>>();
+        for (int i = 0; i < args.length; i++) {
+            // the argument to build is a classname
+            String currFN = args[i].replace('.', File.separatorChar) + ".java";
+            File sf = script.locateJavaSrc(currFN);
+            File cf = script.locateJavaCls(currFN);
+            if (!cf.exists() || !cf.canRead()
+                    || !index.isUpToDate(sf, cf, options)) {
+                addFileToCompile(filesToCompile, sf);
+                for (File dep: index.getChangedDependencies(sf)) {
+                    if (dep.exists()) {
+                        try {
+                            addFileToCompile(filesToCompile, dep);
+                        } catch (RegressionScript.TestClassException ignore) {
+                            // leave it to javac to find the file if needed
+                        }
+                    }
+                }
+            }
+        }
+        return filesToCompile;
+    } // getFilesToCompile()
+
+    private void addFileToCompile(Map<File,List<File>> filesToCompile, File sf)
+            throws RegressionScript.TestClassException {
+        File destDir = script.absTestClsDestDir(sf);
+        List<File> filesForDest = filesToCompile.get(destDir);
+        if (filesForDest == null) {
+            filesForDest = new ArrayList<File>();
+            filesToCompile.put(destDir, filesForDest);
+        }
+        if (!filesForDest.contains(sf))
+            filesForDest.add(sf);
+    }
+
+    /**
+     * Record the named classes in the build index, if they are not already
+     * recorded there, or if they have just been compiled.
+     */
+    private void updateBuildIndex(Map<File,List<File>> compiledFiles)
+            throws TestRunException {
+        BuildIndex index = script.getBuildIndex();
+        String options = getOptionsKey();
+        Set<File> compiled = new HashSet<File>();
+        for (List<File> files: compiledFiles.values())
+            compiled.addAll(files);
+        for (int i = 0; i < args.length; i++) {
+            String currFN = args[i].replace('.', File.separatorChar) + ".java";
+            File sf = script.locateJavaSrc(currFN);
+            File cf = script.locateJavaCls(currFN);
+            if (cf.exists() && (compiled.contains(sf) || !index.contains(sf, cf)))
+                index.update(sf, cf, options, BuildIndex.getDependencies(cf, script));
+        }
+    }
+
+    private String getOptionsKey() {
+        List<String> l = new ArrayList<String>();
+        l.add(script.getJavacProg());
+        l.addAll(script.getTestCompilerOptions());
+        return BuildIndex.getOptionsKey(l);
+    }
+
     /**
      * The method that does the work of the action.  The necessary work for the
      * given action is defined by the tag specification.
@@ -170,23 +250,7 @@ public class BuildAction extends Action
 
         // step 1: see which files need compiling, and group them according
         // to the value of the -d flag that will be required
-        Map<File,List<File>> filesToCompile = new LinkedHashMap<File,List<File>>();
-        for (int i = 0; i < args.length; i++) {
-            // the argument to build is a classname
-            String currFN = args[i].replace('.', File.separatorChar) + ".java";
-            File sf = script.locateJavaSrc(currFN);
-            File cf = script.locateJavaCls(currFN);
-            if (!cf.exists() || !cf.canRead()
-                    || (cf.lastModified() < sf.lastModified())) {
-                File destDir = script.absTestClsDestDir(sf);
-                List<File> filesForDest = filesToCompile.get(destDir);
-                if (filesForDest == null) {
-                    filesForDest = new ArrayList<File>();
-                    filesToCompile.put(destDir, filesForDest);
-                }
-                filesForDest.add(sf);
-            }
-        }
+        Map<File,List<File>> filesToCompile = getFilesToCompile();
 
         // step 2: perform the compilations, if any
         if (filesToCompile.isEmpty()) {
@@ -206,6 +270,9 @@ public class BuildAction extends Action
                 status = Status.passed(BUILD_SUCC);
         }
 
+        if (status.isPassed() && !script.isCheck())
+            updateBuildIndex(filesToCompile);
+
         endAction(status, section);
         return status;
     } // run()
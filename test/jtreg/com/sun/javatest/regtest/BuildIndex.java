@@ -0,0 +1,469 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.javatest.regtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sun.javatest.WorkDirectory;
+
+/**
+ * A persistent index, stored in the system area of a work directory, of the
+ * source files that have been compiled by build actions.  For each source
+ * file, the index records a hash of its contents, a hash of the options used
+ * to compile it, and hashes of the contents of the source files for the
+ * classes it depends on.  This allows build actions to determine whether a
+ * class is up to date without relying on file modification times, which
+ * are unreliable after operations such as checking out files from a source
+ * code repository or extracting them from an archive, and on some network
+ * file systems.
+ *
+ * The index is written as a log, to which an entry is appended whenever a
+ * file is compiled; later entries for a file supersede earlier ones.
+ * A single instance is shared by all the tests using the same work
+ * directory.
+ */
+class BuildIndex
+{
+    /**
+     * Get the build index for a work directory.
+     * @param wd the work directory
+     * @return the build index for the work directory
+     */
+    static synchronized BuildIndex instance(WorkDirectory wd) {
+        File file = wd.getSystemFile(FILENAME);
+        BuildIndex index = instances.get(file);
+        if (index == null) {
+            index = new BuildIndex(file);
+            instances.put(file, index);
+        }
+        return index;
+    }
+
+    private static Map<File,BuildIndex> instances = new HashMap<File,BuildIndex>();
+
+    private BuildIndex(File file) {
+        this.file = file;
+        read();
+    }
+
+    /**
+     * Get a string identifying a set of compiler options, suitable for
+     * recording in the index.
+     * @param options the options
+     * @return a string identifying the options
+     */
+    static String getOptionsKey(List<String> options) {
+        StringBuilder sb = new StringBuilder();
+        for (String o: options)
+            sb.append(o).append('\0');
+        try {
+            return toHex(MessageDigest.getInstance(DIGEST).digest(sb.toString().getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * Determine if the class file for a source file is up to date.
+     * If the class file has not been written since the source file was
+     * recorded in the index, the class file is up to date if the contents
+     * of the source file, the compiler options, and the contents of the
+     * source files it depends on are all unchanged since then.
+     * Otherwise, the modification times of the files are compared.
+     *
+     * @param sf the source file
+     * @param cf the class file for the source file
+     * @param options a string identifying the compiler options, as returned
+     *      by getOptionsKey
+     * @return true if the class file is up to date, and false otherwise
+     */
+    synchronized boolean isUpToDate(File sf, File cf, String options) {
+        Entry e = entries.get(sf);
+        if (e == null || e.classLastModified != cf.lastModified())
+            return (cf.lastModified() >= sf.lastModified());
+
+        return e.options.equals(options)
+            && e.hash.equals(getHash(sf))
+            && getChangedDependencies(e).isEmpty();
+    }
+
+    /**
+     * Determine if a source file has an entry in the index that is
+     * consistent with its class file.
+     * @param sf the source file
+     * @param cf the class file for the source file
+     * @return true if the source file has a current entry in the index
+     */
+    synchronized boolean contains(File sf, File cf) {
+        Entry e = entries.get(sf);
+        return (e != null && e.classLastModified == cf.lastModified());
+    }
+
+    /**
+     * Get the source files, on which a given source file depends, whose
+     * contents have changed since the given source file was last compiled.
+     * @param sf the source file
+     * @return the changed source files
+     */
+    synchronized List<File> getChangedDependencies(File sf) {
+        Entry e = entries.get(sf);
+        if (e == null)
+            return new ArrayList<File>();
+        return getChangedDependencies(e);
+    }
+
+    private List<File> getChangedDependencies(Entry e) {
+        List<File> list = new ArrayList<File>();
+        for (Map.Entry<File,String> d: e.dependencies.entrySet()) {
+            if (!d.getValue().equals(getHash(d.getKey())))
+                list.add(d.getKey());
+        }
+        return list;
+    }
+
+    /**
+     * Record that a source file has been compiled into a class file.
+     * @param sf the source file
+     * @param cf the class file for the source file
+     * @param options a string identifying the compiler options, as returned
+     *      by getOptionsKey
+     * @param dependencies the source files for the classes referenced by
+     *      the class file
+     */
+    synchronized void update(File sf, File cf, String options, Set<File> dependencies) {
+        String hash = getHash(sf);
+        if (hash == null)
+            return;
+        Entry e = new Entry(cf.lastModified(), hash, options);
+        for (File d: dependencies) {
+            if (d.equals(sf))
+                continue;
+            String h = getHash(d);
+            if (h != null)
+                e.dependencies.put(d, h);
+        }
+        if (e.equals(entries.get(sf)))
+            return;
+        entries.put(sf, e);
+
+        try {
+            Writer out = new BufferedWriter(new FileWriter(file, true));
+            try {
+                write(out, sf, e);
+            } finally {
+                out.close();
+            }
+            logSize++;
+        } catch (IOException ex) {
+            // ignore: the index is just an optimization; if it cannot
+            // be written, the file will be recompiled if necessary
+        }
+    }
+
+    /**
+     * Get the source files for the classes referenced by a class file.
+     * The names of the referenced classes are read from the constant pool
+     * of the class file, and the corresponding source files are located
+     * using the source path for the test.
+     * @param cf the class file
+     * @param script the script for the test
+     * @return the source files for the classes referenced by the class file
+     */
+    static Set<File> getDependencies(File cf, RegressionScript script) {
+        Set<File> files = new LinkedHashSet<File>();
+        for (String name: getReferencedClasses(cf)) {
+            int dollar = name.indexOf('$');
+            if (dollar != -1)
+                name = name.substring(0, dollar);
+            if (name.startsWith("java/") || name.startsWith("javax/"))
+                continue;
+            try {
+                String fn = name.replace('/', File.separatorChar) + ".java";
+                files.add(script.locateJavaSrc(fn));
+            } catch (TestRunException e) {
+                // not a source file on the source path for the test
+            }
+        }
+        return files;
+    }
+
+    private static Set<String> getReferencedClasses(File cf) {
+        Set<String> names = new LinkedHashSet<String>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cf)));
+            try {
+                if (in.readInt() != 0xCAFEBABE)
+                    return names;
+                in.readUnsignedShort(); // minor_version
+                in.readUnsignedShort(); // major_version
+                int count = in.readUnsignedShort();
+                String[] utf8 = new String[count];
+                List<Integer> classNameIndexes = new ArrayList<Integer>();
+                for (int i = 1; i < count; i++) {
+                    int tag = in.readUnsignedByte();
+                    switch (tag) {
+                    case CONSTANT_Utf8:
+                        utf8[i] = in.readUTF();
+                        break;
+                    case CONSTANT_Class:
+                        classNameIndexes.add(in.readUnsignedShort());
+                        break;
+                    case CONSTANT_String:
+                    case CONSTANT_MethodType:
+                        in.skipBytes(2);
+                        break;
+                    case CONSTANT_MethodHandle:
+                        in.skipBytes(3);
+                        break;
+                    case CONSTANT_Integer:
+                    case CONSTANT_Float:
+                    case CONSTANT_Fieldref:
+                    case CONSTANT_Methodref:
+                    case CONSTANT_InterfaceMethodref:
+                    case CONSTANT_NameAndType:
+                    case CONSTANT_InvokeDynamic:
+                        in.skipBytes(4);
+                        break;
+                    case CONSTANT_Long:
+                    case CONSTANT_Double:
+                        in.skipBytes(8);
+                        i++;
+                        break;
+                    default:
+                        // unknown constant pool entry: give up
+                        return names;
+                    }
+                }
+                for (int index: classNameIndexes) {
+                    String name = (index < count ? utf8[index] : null);
+                    if (name != null && !name.startsWith("["))
+                        names.add(name);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // ignore: return whatever names have been found
+        }
+        return names;
+    }
+
+    /**
+     * Get the hash of the contents of a file. Hashes are cached, and only
+     * recomputed if the size or modification time of the file changes.
+     */
+    private String getHash(File f) {
+        long lastModified = f.lastModified();
+        long length = f.length();
+        CachedHash c = hashCache.get(f);
+        if (c != null && c.lastModified == lastModified && c.length == length)
+            return c.hash;
+
+        try {
+            MessageDigest md = MessageDigest.getInstance(DIGEST);
+            InputStream in = new FileInputStream(f);
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1)
+                    md.update(buf, 0, n);
+            } finally {
+                in.close();
+            }
+            String hash = toHex(md.digest());
+            hashCache.put(f, new CachedHash(lastModified, length, hash));
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        } catch (IOException e) {
+            hashCache.remove(f);
+            return null;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b: bytes) {
+            sb.append(HEX.charAt((b >> 4) & 0xf));
+            sb.append(HEX.charAt(b & 0xf));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read the index. If the log contains many superseded entries, it is
+     * rewritten, keeping just the current entries.
+     */
+    private void read() {
+        if (!file.exists())
+            return;
+
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length < 4 || fields.length % 2 != 0)
+                        continue;
+                    try {
+                        Entry e = new Entry(Long.parseLong(fields[1]), fields[2], fields[3]);
+                        for (int i = 4; i < fields.length; i += 2)
+                            e.dependencies.put(new File(fields[i]), fields[i + 1]);
+                        entries.put(new File(fields[0]), e);
+                        logSize++;
+                    } catch (NumberFormatException ex) {
+                        // ignore bad entry
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // ignore: any entries that were not read will be recreated as needed
+        }
+
+        if (logSize > 2 * entries.size() + COMPACT_THRESHOLD)
+            compact();
+    }
+
+    private void compact() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Writer out = new BufferedWriter(new FileWriter(tmp));
+            try {
+                for (Map.Entry<File,Entry> e: entries.entrySet())
+                    write(out, e.getKey(), e.getValue());
+            } finally {
+                out.close();
+            }
+            if (file.delete() && tmp.renameTo(file))
+                logSize = entries.size();
+        } catch (IOException e) {
+            tmp.delete();
+        }
+    }
+
+    private static void write(Writer out, File sf, Entry e) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(sf.getPath());
+        sb.append('\t').append(e.classLastModified);
+        sb.append('\t').append(e.hash);
+        sb.append('\t').append(e.options);
+        for (Map.Entry<File,String> d: e.dependencies.entrySet()) {
+            sb.append('\t').append(d.getKey().getPath());
+            sb.append('\t').append(d.getValue());
+        }
+        sb.append('\n');
+        out.write(sb.toString());
+    }
+
+    private static class Entry {
+        Entry(long classLastModified, String hash, String options) {
+            this.classLastModified = classLastModified;
+            this.hash = hash;
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Entry))
+                return false;
+            Entry e = (Entry) other;
+            return (classLastModified == e.classLastModified)
+                && hash.equals(e.hash)
+                && options.equals(e.options)
+                && dependencies.equals(e.dependencies);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash.hashCode();
+        }
+
+        final long classLastModified;
+        final String hash;
+        final String options;
+        final Map<File,String> dependencies = new HashMap<File,String>();
+    }
+
+    private static class CachedHash {
+        CachedHash(long lastModified, long length, String hash) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        final long lastModified;
+        final long length;
+        final String hash;
+    }
+
+    private final File file;
+    private final Map<File,Entry> entries = new HashMap<File,Entry>();
+    private final Map<File,CachedHash> hashCache = new HashMap<File,CachedHash>();
+    private int logSize;
+
+    private static final String FILENAME = "build.index";
+    private static final String DIGEST = "SHA-1";
+    private static final String HEX = "0123456789abcdef";
+    private static final int COMPACT_THRESHOLD = 100;
+
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Float = 4;
+    private static final int CONSTANT_Long = 5;
+    private static final int CONSTANT_Double = 6;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_String = 8;
+    private static final int CONSTANT_Fieldref = 9;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_InterfaceMethodref = 11;
+    private static final int CONSTANT_NameAndType = 12;
+    private static final int CONSTANT_MethodHandle = 15;
+    private static final int CONSTANT_MethodType = 16;
+    private static final int CONSTANT_InvokeDynamic = 18;
+}
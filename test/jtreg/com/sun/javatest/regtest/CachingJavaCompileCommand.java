@@ -0,0 +1,241 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+
+package com.sun.javatest.regtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import com.sun.javatest.Command;
+import com.sun.javatest.Status;
+import com.sun.javatest.lib.JavaCompileCommand;
+
+/**
+ * Invoke the system Java compiler in the current VM, reusing a single
+ * compiler instance and a file manager for the platform classes across
+ * compilations.
+ *
+ * The platform classes (rt.jar and friends) do not change during a test run,
+ * so the file manager used to read them, and the results of listing their
+ * packages, are kept from one compilation to the next.  All other locations,
+ * such as the class path, source path and output directory, are handled by a
+ * new file manager for each compilation, so that classes written by one test
+ * are always seen by the next.
+ *
+ * The output and status are the same as for {@link JavaCompileCommand}.
+ * Any compilation that cannot safely be handled this way, such as one that
+ * uses options that change the platform classes, or options the compiler
+ * API does not support, is delegated to JavaCompileCommand.
+ */
+public class CachingJavaCompileCommand extends Command
+{
+    /**
+     * Compile the files given in the arguments.
+     * @param args the options, file names and class names for the compiler
+     * @param log  Not used.
+     * @param ref  Where to write the output from the compiler
+     * @return `passed' if the compilation is successful; `failed' if the
+     *          compiler is invoked and errors are found in the file(s)
+     *          being compiler; or `error' if some more serious problem arose
+     *          that prevented the compiler performing its task.
+     */
+    public Status run(String[] args, PrintWriter log, PrintWriter ref) {
+        JavaCompiler compiler = getCompiler();
+        if (compiler == null)
+            return new JavaCompileCommand().run(args, log, ref);
+
+        List<String> options = new ArrayList<String>();
+        List<String> classNames = new ArrayList<String>();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-")) {
+                if (!isReusable(arg))
+                    return new JavaCompileCommand().run(args, log, ref);
+                int n = compiler.isSupportedOption(arg);
+                if (n < 0)
+                    n = platformFileManager.isSupportedOption(arg);
+                if (n < 0 || i + n >= args.length)
+                    return new JavaCompileCommand().run(args, log, ref);
+                options.add(arg);
+                for (int j = 0; j < n; j++)
+                    options.add(args[++i]);
+            } else if (arg.endsWith(".java"))
+                files.add(new File(arg));
+            else if (arg.startsWith("@"))
+                return new JavaCompileCommand().run(args, log, ref);
+            else
+                classNames.add(arg);
+        }
+
+        if (files.isEmpty() && classNames.isEmpty())
+            return new JavaCompileCommand().run(args, log, ref);
+
+        synchronized (CachingJavaCompileCommand.class) {
+            StandardJavaFileManager fm = compiler.getStandardFileManager(null, null, null);
+            try {
+                JavaCompiler.CompilationTask task;
+                try {
+                    task = compiler.getTask(ref, new PlatformCachingFileManager(fm), null,
+                            options, (classNames.isEmpty() ? null : classNames),
+                            fm.getJavaFileObjectsFromFiles(files));
+                } catch (IllegalArgumentException e) {
+                    // an option was not accepted by the compiler API; the
+                    // command line compiler will report it in the usual way
+                    return new JavaCompileCommand().run(args, log, ref);
+                }
+
+                try {
+                    return (task.call().booleanValue() ? passed : failed);
+                } catch (RuntimeException e) {
+                    e.printStackTrace(log);
+                    return Status.error("Error invoking compiler");
+                }
+            } finally {
+                try {
+                    fm.close();
+                } catch (IOException ignore) {
+                }
+                log.flush();
+                ref.flush();
+            }
+        }
+    }
+
+    /**
+     * Options that change the platform classes, or how they are read,
+     * cannot be used with the shared file manager.  Nor can options that
+     * cause the file manager to write messages of its own, since those
+     * would not be written to the compiler's output.
+     */
+    private static boolean isReusable(String option) {
+        for (String prefix: PLATFORM_OPTIONS) {
+            if (option.startsWith(prefix))
+                return false;
+        }
+        if (option.equals("-verbose") || option.equals("-Xlint"))
+            return false;
+        if (option.startsWith("-Xlint:")) {
+            for (String key: option.substring(7).split(",")) {
+                if (key.equals("all") || key.equals("path"))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static synchronized JavaCompiler getCompiler() {
+        if (!initialized) {
+            compiler = ToolProvider.getSystemJavaCompiler();
+            if (compiler != null)
+                platformFileManager = compiler.getStandardFileManager(null, null, null);
+            initialized = true;
+        }
+        return compiler;
+    }
+
+    /**
+     * A file manager that handles the platform class path with the shared
+     * file manager, and everything else with the file manager for the
+     * current compilation.
+     */
+    private static class PlatformCachingFileManager
+            extends ForwardingJavaFileManager<JavaFileManager> {
+        PlatformCachingFileManager(JavaFileManager fm) {
+            super(fm);
+        }
+
+        @Override
+        public Iterable<JavaFileObject> list(Location location, String packageName,
+                Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+            if (location != StandardLocation.PLATFORM_CLASS_PATH)
+                return super.list(location, packageName, kinds, recurse);
+
+            String key = packageName + ":" + kinds + ":" + recurse;
+            List<JavaFileObject> files = platformListCache.get(key);
+            if (files == null) {
+                files = new ArrayList<JavaFileObject>();
+                for (JavaFileObject fo: platformFileManager.list(location, packageName, kinds, recurse))
+                    files.add(fo);
+                files = Collections.unmodifiableList(files);
+                platformListCache.put(key, files);
+            }
+            return files;
+        }
+
+        @Override
+        public String inferBinaryName(Location location, JavaFileObject file) {
+            if (location == StandardLocation.PLATFORM_CLASS_PATH)
+                return platformFileManager.inferBinaryName(location, file);
+            return super.inferBinaryName(location, file);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForInput(Location location, String className,
+                JavaFileObject.Kind kind) throws IOException {
+            if (location == StandardLocation.PLATFORM_CLASS_PATH)
+                return platformFileManager.getJavaFileForInput(location, className, kind);
+            return super.getJavaFileForInput(location, className, kind);
+        }
+
+        @Override
+        public FileObject getFileForInput(Location location, String packageName,
+                String relativeName) throws IOException {
+            if (location == StandardLocation.PLATFORM_CLASS_PATH)
+                return platformFileManager.getFileForInput(location, packageName, relativeName);
+            return super.getFileForInput(location, packageName, relativeName);
+        }
+    }
+
+    private static final String[] PLATFORM_OPTIONS = {
+        "-bootclasspath", "-Xbootclasspath", "-extdirs", "-endorseddirs",
+        "-Djava.ext.dirs", "-Djava.endorsed.dirs", "-XD", "-J"
+    };
+
+    private static boolean initialized;
+    private static JavaCompiler compiler;
+    private static StandardJavaFileManager platformFileManager;
+    private static final Map<String,List<JavaFileObject>> platformListCache =
+        new HashMap<String,List<JavaFileObject>>();
+
+    private static final Status passed = Status.passed("Compilation successful");
+    private static final Status failed = Status.failed("Compilation failed");
+}
@@ -36,6 +36,7 @@ import java.io.StringWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -44,6 +45,7 @@ import java.util.Hashtable;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 
+import com.sun.javatest.Command;
 import com.sun.javatest.Status;
 import com.sun.javatest.TestResult;
 import com.sun.javatest.lib.JavaCompileCommand;
@@ -259,7 +261,9 @@ public class CompileAction extends Action {
         if (script.isCheck()) {
             status = Status.passed(CHECK_PASS);
         } else {
-            if (script.isOtherJVM())
+            if (script.isAgentVM())
+                status = runAgentJVM();
+            else if (script.isOtherJVM())
                 status = runOtherJVM();
             else
                 status = runSameJVM();
@@ -382,9 +386,40 @@ public class CompileAction extends Action {
         return status;
     } // runOtherJVM()
 
-    private Status runSameJVM() throws TestRunException {
+    private Status runAgentJVM() throws TestRunException {
+        String[] cmdArgs = getSameJVMCompileArgs();
+
+        if (showCmd)
+            JTCmd("compile", cmdArgs, section);
+
+        Agent agent;
+        try {
+            agent = script.getAgent(script.getTestVMOptions());
+        } catch (Agent.Fault e) {
+            return Status.error(AGENTVM_CANT_GET_VM + ": " + e.getMessage());
+        }
+
         Status status;
+        Map<String,String> outputs = new HashMap<String,String>();
+        try {
+            status = agent.doCompileAction(cmdArgs, reuseCompiler, timeout, outputs);
+        } catch (Agent.Fault e) {
+            return Status.error(e.getMessage());
+        } finally {
+            script.releaseAgent(agent);
+        }
+
+        return evaluateSameJVMResults(status,
+                getOutput(outputs, "direct"), getOutput(outputs, "direct.log"),
+                getOutput(outputs, "System.out"), getOutput(outputs, "System.err"));
+    } // runAgentJVM()
+
+    private static String getOutput(Map<String,String> outputs, String name) {
+        String s = outputs.get(name);
+        return (s == null ? "" : s);
+    }
 
+    private String[] getSameJVMCompileArgs() throws TestRunException {
         // CONSTRUCT THE COMMAND LINE
         List<String> javacOpts = new ArrayList<String>();
         
@@ -406,7 +441,13 @@ public class CompileAction extends Action {
         }
         
         String[] jcOpts = javacOpts.toArray(new String[javacOpts.size()]);
-        String[] cmdArgs = StringArray.append(jcOpts, args);
+        return StringArray.append(jcOpts, args);
+    }
+
+    private Status runSameJVM() throws TestRunException {
+        Status status;
+
+        String[] cmdArgs = getSameJVMCompileArgs();
         
         if (showCmd)
             JTCmd("compile", cmdArgs, section);
@@ -435,7 +476,9 @@ public class CompileAction extends Action {
             if (!stat.isPassed())
                 return stat;
             
-            JavaCompileCommand jcc = new JavaCompileCommand();
+            Command jcc = (reuseCompiler
+                    ? new CachingJavaCompileCommand()
+                    : new JavaCompileCommand());
             if (timeout > 0)
                 script.setAlarm(timeout*1000);
             
@@ -453,11 +496,19 @@ public class CompileAction extends Action {
         outPS.close();
         errPS.close();
         
-        String outString = outSW.toString();
-        String errString = errSW.toString();
-        String stdoutString = outOS.toString();
-        String stderrString = errOS.toString();
-        
+        return evaluateSameJVMResults(status, outSW.toString(), errSW.toString(),
+                outOS.toString(), errOS.toString());
+    } // runSameJVM()
+
+    /**
+     * Record the output of a compilation run in a shared VM, and determine
+     * the status of the action, including any comparison against a
+     * reference file.
+     */
+    private Status evaluateSameJVMResults(Status status,
+            String outString, String errString,
+            String stdoutString, String stderrString)
+            throws TestRunException {
         if (outString.length() > 0) {
             PrintWriter pw = section.createOutput("direct");
             pw.write(outString);
@@ -526,7 +577,7 @@ public class CompileAction extends Action {
         }
 
         return status;
-    } // runSameJVM()
+    } // evaluateSameJVMResults()
     
     //----------internal methods------------------------------------------------
     
@@ -620,4 +671,9 @@ public class CompileAction extends Action {
     private boolean process = false;
     
     private TestResult.Section section;
+
+    // whether compilations in the same VM or an agent VM should reuse
+    // the compiler and its platform classes from one test to the next
+    private static final boolean reuseCompiler =
+        Boolean.valueOf(System.getProperty("javatest.regtest.reuseCompiler", "true")).booleanValue();
 }
@@ -66,6 +66,7 @@ import com.sun.javatest.ProductInfo;
 import com.sun.javatest.Status;
 import com.sun.javatest.TestEnvironment;
 import com.sun.javatest.TestFilter;
+import com.sun.javatest.TestFinder;
 import com.sun.javatest.TestResult;
 import com.sun.javatest.TestResultTable;
 import com.sun.javatest.TestSuite;
@@ -226,6 +227,20 @@ public class Main {
             }
         },
 
+        new Option(NONE, MAIN, "", "bb", "batchBuild") {
+            public void process(String opt, String arg) {
+                batchBuildFlag = true;
+                childArgs.add(opt);
+            }
+        },
+
+        new Option(STD, MAIN, "", "conc", "concurrency") {
+            public void process(String opt, String arg) {
+                concurrencyArg = arg;
+                childArgs.add(opt);
+            }
+        },
+
         new Option(STD, MAIN, "", "timeout", "timeoutFactor") {
             public void process(String opt, String arg) {
                 timeoutFactorArg = arg;
@@ -381,6 +396,14 @@ public class Main {
             }
         },
 
+        new Option(NONE, MODE, "svm-ovm", "avm", "agentvm") {
+            public void process(String opt, String arg) {
+                sameJVMFlag = false;
+                agentVMFlag = true;
+                childArgs.add(opt);
+            }
+        },
+
         new Option(NONE, MODE, "svm-ovm", "s", "svm", "samevm") {
             public void process(String opt, String arg) {
                 sameJVMFlag = true;
@@ -822,6 +845,8 @@ public class Main {
             try {
                 return batchHarness(params);
             } finally {
+                if (agentVMFlag)
+                    Agent.Pool.instance().close();
                 checkLockFiles(params.getWorkDirectory().getRoot(), "done");
             }
         }
@@ -1253,6 +1278,18 @@ public class Main {
                 workDir = WorkDirectory.convert(wd, testSuite);
             rp.setWorkDirectory(workDir);
 
+            if (!Boolean.getBoolean("javatest.regtest.noIndex")) {
+                RegressionTestFinder tf = (RegressionTestFinder) testSuite.getTestFinder();
+                tf.setIndex(new TestDescriptionIndex(workDir, tf.getRootDir(), tf.getIndexConfig()));
+            }
+
+            // read test files on all available processors when finding tests,
+            // unless told otherwise
+            if (System.getProperty("javatest.finder.parallelism") == null) {
+                int n = Runtime.getRuntime().availableProcessors();
+                workDir.getTestResultTable().setFinderParallelism(n);
+            }
+
             rp.setRetainArgs(retainArgs);
 
             // set up the tests mode, and if specified tests are used, pass in the canonTestFile list.
@@ -1314,11 +1351,24 @@ public class Main {
             }
 
             if (concurrencyArg != null) {
-                try {
-                    rp.setConcurrency(Integer.parseInt(concurrencyArg));
-                } catch (NumberFormatException e) {
-                    throw new BadArgs(i18n, "main.badConcurrency");
+                int concurrency;
+                if (concurrencyArg.equals("auto")) {
+                    concurrency = Math.min(Runtime.getRuntime().availableProcessors(),
+                            Parameters.ConcurrencyParameters.MAX_CONCURRENCY);
+                } else {
+                    try {
+                        concurrency = Integer.parseInt(concurrencyArg);
+                    } catch (NumberFormatException e) {
+                        throw new BadArgs(i18n, "main.badConcurrency");
+                    }
+                    if (concurrency < 1)
+                        throw new BadArgs(i18n, "main.badConcurrency");
                 }
+                // sameVM tests share the harness VM, its current directory
+                // and its System.out/err, so they can only run one at a time
+                if (concurrency > 1 && sameJVMFlag)
+                    throw new Fault(i18n, "main.cant.mix.samevm.concurrency");
+                rp.setConcurrency(concurrency);
             }
 
             if (timeoutFactorArg != null) {
@@ -1351,6 +1401,7 @@ public class Main {
 
             rp.setCheck(checkFlag);
             rp.setSameJVM(sameJVMFlag);
+            rp.setAgentVM(agentVMFlag);
             rp.setEnvVars(getEnvVars());
             rp.setJDK(jdk);
             if (ignoreKind != null)
@@ -1488,8 +1539,14 @@ public class Main {
                 }
                 ok = (testStats[Status.FAILED] == 0 && testStats[Status.ERROR] ==0);
             } else {
+                if (batchBuildFlag && !checkFlag)
+                    batchBuild(params);
                 Harness harness = createHarness();
                 harness.addObserver(new BatchObserver());
+                // when tests are run concurrently, start the longest ones first,
+                // to reduce the time at the end of the run when few tests are running
+                if (params.getConcurrency() > 1)
+                    harness.setLongestTestsFirst(true);
                 ok = harness.batch(params);
             }
 
@@ -1512,6 +1569,7 @@ public class Main {
                     }
                     if (reportKinds.contains("xml")) {
                         s.setEnableXmlReport(true);
+                        s.setEnableXmlFragments(true);
                     }
                     s.setFilter(new CompositeFilter(params.getFilters()));
                     r.writeReport(s, reportDirArg);
@@ -1537,11 +1595,34 @@ public class Main {
                 testStats[Status.FAILED] > 0 ? EXIT_TEST_FAILED :
                     EXIT_OK);
         } finally {
+            saveTestIndex(params);
             out.flush();
             err.flush();
         }
     }
 
+    /**
+     * Save the index of test descriptions, if one is being used, so that
+     * files that have not changed need not be read again in subsequent runs.
+     */
+    private void saveTestIndex(InterviewParameters params) {
+        TestFinder tf = params.getTestSuite().getTestFinder();
+        if (tf instanceof RegressionTestFinder) {
+            TestDescriptionIndex index = ((RegressionTestFinder) tf).getIndex();
+            if (index != null)
+                index.save();
+        }
+    }
+
+    /**
+     * Compile the classes named in the build actions of the selected tests,
+     * in as few invocations of javac as possible, before the tests are run.
+     */
+    private void batchBuild(InterviewParameters params) throws InterruptedException {
+        BatchBuilder b = new BatchBuilder((RegressionParameters) params, params.getConcurrency());
+        b.build(getResultsIterator(params));
+    }
+
     private Iterator getResultsIterator(InterviewParameters params) {
         TestResultTable trt = params.getWorkDirectory().getTestResultTable();
         trt.waitUntilReady();
@@ -1785,7 +1866,7 @@ public class Main {
     private List<String> retainArgs;
     private List<File> excludeListArgs = new ArrayList<File>();
     private String keywordsExprArg;
-    private String concurrencyArg; // not currently exposed in any way
+    private String concurrencyArg;
     private String timeoutFactorArg;
     private String priorStatusValuesArg;
     private File reportDirArg;
@@ -1797,11 +1878,13 @@ public class Main {
     // these args are jtreg extras
     private File baseDirArg;
     private boolean sameJVMFlag;
+    private boolean agentVMFlag;
     private List<String> sameJVMSafeDirs;
     private JDK jdk;
     private boolean guiFlag;
     private boolean reportOnlyFlag;
     private boolean noReportFlag;
+    private boolean batchBuildFlag;
     private static Verbose  verbose;
     private boolean httpdFlag;
     private String observerClassName;
@@ -40,7 +40,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import com.sun.javatest.Status;
@@ -156,11 +158,8 @@ public class MainAction extends Action
     public File[] getSourceFiles() {
         List<File> l = new ArrayList<File>();
         if (buildFN != null) {
-            String[][] buildOpts = {};
-            String[]   buildArgs = {buildFN.replace(File.separatorChar, '.')};
             try {
-                BuildAction ba = new BuildAction();
-                ba.init(buildOpts, buildArgs, SREASON_ASSUMED_BUILD, script);
+                BuildAction ba = getImplicitBuildAction();
                 l.addAll(Arrays.asList(ba.getSourceFiles()));
             } catch (ParseException ignore) {
             }
@@ -197,10 +196,8 @@ public class MainAction extends Action
         // TAG-SPEC:  "The named <class> will be compiled on demand, just as
         // though an "@run build <class>" action had been inserted before
         // this action."
-        String[][] buildOpts = {};
-        String[]   buildArgs = {buildFN.replace(File.separatorChar, '.')};
-        BuildAction ba = new BuildAction();
-        if (!(status = ba.build(buildOpts, buildArgs, SREASON_ASSUMED_BUILD, script)).isPassed())
+        BuildAction ba = getImplicitBuildAction();
+        if (!(status = ba.run()).isPassed())
             return status;
 
         section = startAction("main", javaArgs + buildFN + mainArgs, reason);
@@ -208,7 +205,11 @@ public class MainAction extends Action
         if (script.isCheck()) {
             status = Status.passed(CHECK_PASS);
         } else {
-            if (othervm || script.isOtherJVM())
+            if (othervm)
+                status = runOtherJVM();
+            else if (script.isAgentVM())
+                status = runAgentJVM();
+            else if (script.isOtherJVM())
                 status = runOtherJVM();
             else
                 status = runSameJVM();
@@ -218,6 +219,21 @@ public class MainAction extends Action
         return status;
     } // run()
 
+    /**
+     * Get the build action for the class to be run, which is performed
+     * on demand before the class is executed.
+     *
+     * @return     An initialized build action for the class to be run.
+     * @exception  ParseException If the name of the class is invalid.
+     */
+    BuildAction getImplicitBuildAction() throws ParseException {
+        String[][] buildOpts = {};
+        String[]   buildArgs = {buildFN.replace(File.separatorChar, '.')};
+        BuildAction ba = new BuildAction();
+        ba.init(buildOpts, buildArgs, SREASON_ASSUMED_BUILD, script);
+        return ba;
+    } // getImplicitBuildAction()
+
     //----------internal methods------------------------------------------------
 
     private Status runOtherJVM() throws TestRunException {
@@ -458,34 +474,7 @@ public class MainAction extends Action
             }
 
             // EVALUATE RESULTS
-            if (status.getReason().endsWith("java.lang.SecurityException: System.exit() forbidden by JavaTest")) {
-                status = Status.failed(UNEXPECT_SYS_EXIT);
-            } else {
-
-                boolean ok = status.isPassed();
-                int st   = status.getType();
-                String sr;
-                if (!tg.cleanupOK) {
-                    // failure to cleanup threads is treated seriously
-                    // because it might affect subsequent tests
-                    sr = EXEC_ERROR_CLEANUP;
-                    st = Status.ERROR;
-                } else if (ok && reverseStatus) {
-                    sr = EXEC_PASS_UNEXPECT;
-                    st = Status.FAILED;
-                } else if (ok && !reverseStatus) {
-                    sr = EXEC_PASS;
-                } else if (!ok && reverseStatus) {
-                    sr = EXEC_FAIL_EXPECT;
-                    st = Status.PASSED;
-                } else { /* !ok && !reverseStatus */
-                    sr = EXEC_FAIL;
-                }
-                if ((st == Status.FAILED) && ! (status.getReason() == null) &&
-                        !status.getReason().equals(EXEC_PASS))
-                    sr += ": " + status.getReason();
-                status = new Status(st, sr);
-            }
+            status = evaluateSameJVMStatus(status, tg.cleanupOK);
         } catch (ClassNotFoundException e) {
             e.printStackTrace(new PrintWriter(psErr, true));
             psErr.println();
@@ -538,6 +527,81 @@ public class MainAction extends Action
         return status;
     } // runSameJVM()
 
+    private Status runAgentJVM() throws TestRunException {
+        // TAG-SPEC:  "The source and class directories of a test are made
+        // available to main and applet actions via the system properties
+        // "test.src" and "test.classes", respectively"
+        Map<String,String> testProps = new LinkedHashMap<String,String>();
+        testProps.put("test.src", script.absTestSrcDir().getPath());
+        testProps.put("test.classes", script.absTestClsDir().getPath());
+        testProps.put("test.vm.opts", join(script.getTestVMOptions()));
+        testProps.put("test.tool.vm.opts", join(script.getTestToolVMOptions()));
+        testProps.put("test.compiler.opts", join(script.getTestCompilerOptions()));
+        testProps.put("test.java.opts", join(script.getTestJavaOptions()));
+
+        Agent agent;
+        try {
+            agent = script.getAgent(script.getTestVMJavaOptions());
+        } catch (Agent.Fault e) {
+            return Status.error(AGENTVM_CANT_GET_VM + ": " + e.getMessage());
+        }
+
+        Status status;
+        Map<String,String> outputs = new LinkedHashMap<String,String>();
+        try {
+            String[] tmpArgs = StringArray.splitWS(mainArgs);
+            status = agent.doMainAction(testProps, script.testClassPath(),
+                    buildFN, tmpArgs, timeout, outputs);
+            if (status.isError())
+                return status;
+            status = evaluateSameJVMStatus(status, true);
+        } catch (Agent.Fault e) {
+            status = Status.error(e.getMessage());
+        } finally {
+            script.releaseAgent(agent);
+            for (Map.Entry<String,String> e: outputs.entrySet()) {
+                PrintWriter pw = section.createOutput(e.getKey());
+                pw.write(e.getValue());
+                pw.close();
+            }
+        }
+
+        return status;
+    } // runAgentJVM()
+
+    /**
+     * Determine the status of the action, from the status of running the
+     * test's main method in a shared VM.
+     */
+    private Status evaluateSameJVMStatus(Status status, boolean cleanupOK) {
+        if (status.getReason().endsWith("java.lang.SecurityException: System.exit() forbidden by JavaTest"))
+            return Status.failed(UNEXPECT_SYS_EXIT);
+
+        boolean ok = status.isPassed();
+        int st   = status.getType();
+        String sr;
+        if (!cleanupOK) {
+            // failure to cleanup threads is treated seriously
+            // because it might affect subsequent tests
+            sr = EXEC_ERROR_CLEANUP;
+            st = Status.ERROR;
+        } else if (ok && reverseStatus) {
+            sr = EXEC_PASS_UNEXPECT;
+            st = Status.FAILED;
+        } else if (ok && !reverseStatus) {
+            sr = EXEC_PASS;
+        } else if (!ok && reverseStatus) {
+            sr = EXEC_FAIL_EXPECT;
+            st = Status.PASSED;
+        } else { /* !ok && !reverseStatus */
+            sr = EXEC_FAIL;
+        }
+        if ((st == Status.FAILED) && ! (status.getReason() == null) &&
+                !status.getReason().equals(EXEC_PASS))
+            sr += ": " + status.getReason();
+        return new Status(st, sr);
+    }
+
     private String parseMainManual(String value) throws ParseException {
         if (value != null)
             throw new ParseException(MAIN_MANUAL_NO_VAL + value);
@@ -644,7 +708,7 @@ public class MainAction extends Action
             cleanup();
         } // uncaughtException()
 
-        private void cleanup() {
+        void cleanup() {
             cleanMode = true;
 
             final int CLEANUP_ROUNDS = 4;
@@ -134,6 +134,7 @@ public class RegressionParameters
     private static final String CHECK = ".check";
     private static final String JDK = ".jdk";
     private static final String SAME_JVM = ".sameJVM";
+    private static final String AGENT_VM = ".agentVM";
     private static final String TEST_VM_OPTIONS = ".testVMOpts";
     private static final String TEST_COMPILER_OPTIONS = ".testCompilerOpts";
     private static final String TEST_JAVA_OPTIONS = ".testJavaOpts";
@@ -160,6 +161,10 @@ public class RegressionParameters
         if (v != null)
             setSameJVM(v.equals("true"));
 
+        v = (String) data.get(prefix + AGENT_VM);
+        if (v != null)
+            setAgentVM(v.equals("true"));
+
         v = (String) data.get(prefix + IGNORE);
         if (v != null)
             setIgnoreKind(IgnoreKind.valueOf(v));
@@ -204,6 +209,7 @@ public class RegressionParameters
 
         data.put(prefix + CHECK, String.valueOf(check));
         data.put(prefix + SAME_JVM, String.valueOf(sameJVM));
+        data.put(prefix + AGENT_VM, String.valueOf(agentVM));
         data.put(prefix + IGNORE, String.valueOf(ignoreKind));
 
         if (jdk != null)
@@ -274,6 +280,22 @@ public class RegressionParameters
 
     //---------------------------------------------------------------------
 
+    void setAgentVM(boolean agentVM) {
+        this.agentVM = agentVM;
+    }
+
+    /**
+     * Whether compile and main actions that do not need a VM of their own
+     * should be run in a reusable agent VM.
+     */
+    boolean isAgentVM() {
+        return agentVM;
+    }
+
+    boolean agentVM;
+
+    //---------------------------------------------------------------------
+
     void setIgnoreKind(IgnoreKind ignoreKind) {
         ignoreKind.getClass(); // null-check
         this.ignoreKind = ignoreKind;
@@ -31,6 +31,7 @@ import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -89,6 +90,8 @@ public class RegressionScript extends Script
 
             Fifo actionList = parseActions(actions, true);
 
+            if (params.getConcurrency() > 1)
+                scratchDirIndex = acquireScratchDirIndex();
             initScratchDirectory();
 
             testResult = getTestResult();
@@ -114,6 +117,10 @@ public class RegressionScript extends Script
         } finally {
             if (params.isRetainEnabled())
                 retainScratchFiles(status);
+            if (scratchDirIndex != -1) {
+                releaseScratchDirIndex(scratchDirIndex);
+                scratchDirIndex = -1;
+            }
         }
         return status;
     } // run()
@@ -142,6 +149,48 @@ public class RegressionScript extends Script
         }
     }
 
+    /**
+     * Get the source files that would be compiled by the build actions in a
+     * test description, including the implicit builds performed by main
+     * actions, grouped according to the destination directory for the
+     * compiled classes.  Files that are already up to date are not included.
+     **/
+    Map<File,List<File>> getBuildFiles(TestDescription td, RegressionEnvironment env) {
+        this.td = td;
+        String testFilePath = td.getRootRelativePath();
+        testDirPath = testFilePath.substring(0, testFilePath.lastIndexOf('/'));
+        regEnv = env;
+        params = env.params;
+        Map<File,List<File>> result = new LinkedHashMap<File,List<File>>();
+        try {
+            setLibList(td.getParameter("library"));
+            String actions = td.getParameter("run");
+            Fifo actionList = parseActions(actions, false);
+            while (! actionList.isEmpty()) {
+                Action action = (Action) actionList.remove();
+                BuildAction ba;
+                if (action instanceof BuildAction)
+                    ba = (BuildAction) action;
+                else if (action instanceof MainAction)
+                    ba = ((MainAction) action).getImplicitBuildAction();
+                else
+                    continue;
+                for (Map.Entry<File,List<File>> e: ba.getFilesToCompile().entrySet()) {
+                    List<File> files = result.get(e.getKey());
+                    if (files == null)
+                        result.put(e.getKey(), e.getValue());
+                    else
+                        files.addAll(e.getValue());
+                }
+            }
+        } catch (TestRunException e) {
+            // ignore: the test will report the error when it is run
+        } catch (ParseActionsException shouldNotHappen) {
+            throw new Error(shouldNotHappen);
+        }
+        return result;
+    }
+
     public boolean hasEnv() {
         return (regEnv != null);
     }
@@ -549,13 +598,41 @@ public class RegressionScript extends Script
     private File cacheAbsTestScratchDir;
     File absTestScratchDir() {
         if (cacheAbsTestScratchDir == null) {
-            cacheAbsTestScratchDir = params.isRetainEnabled() && isOtherJVM()
-                ? absTestResultDir()
-                : workDir.getFile("scratch");
+            // agent VMs are bound to their scratch directory, so the
+            // directory must be one that is shared between tests
+            if (params.isRetainEnabled() && isOtherJVM() && !isAgentVM())
+                cacheAbsTestScratchDir = absTestResultDir();
+            else if (scratchDirIndex == -1)
+                cacheAbsTestScratchDir = workDir.getFile("scratch");
+            else
+                cacheAbsTestScratchDir = new File(workDir.getFile("scratch"),
+                                                  String.valueOf(scratchDirIndex));
         }
         return cacheAbsTestScratchDir;
     } // absTestScratchDir()
 
+    /**
+     * Allocate a scratch directory index not in use by any other test
+     * currently running.  When tests are run concurrently, each test gets
+     * its own subdirectory of the shared scratch directory, so that the
+     * files created by one test cannot interfere with those of another.
+     * Indexes are reused, so the number of scratch directories is bounded
+     * by the concurrency.
+     */
+    private static synchronized int acquireScratchDirIndex() {
+        int i = 0;
+        while (scratchDirsInUse.contains(i))
+            i++;
+        scratchDirsInUse.add(i);
+        return i;
+    }
+
+    private static synchronized void releaseScratchDirIndex(int i) {
+        scratchDirsInUse.remove(i);
+    }
+
+    private static final Set<Integer> scratchDirsInUse = new HashSet<Integer>();
+
     private File cacheAbsTestResultDir;
     File absTestResultDir() {
         if (cacheAbsTestResultDir == null) {
@@ -763,6 +840,14 @@ public class RegressionScript extends Script
         return cp;
     } // locateJavaCls()
 
+    /**
+     * Get the index of the files compiled by build actions for the
+     * work directory.
+     */
+    BuildIndex getBuildIndex() {
+        return BuildIndex.instance(workDir);
+    }
+
     File locateJavaClsDir(String fileName) throws TestRunException {
         return (locateJavaCls(fileName)).getParentFile();
     } // locateJavaClsDir()
@@ -836,6 +921,26 @@ public class RegressionScript extends Script
         return params.getJDK().getPath();
     }
 
+    boolean isAgentVM() {
+        return params.isAgentVM();
+    }
+
+    /**
+     * Get an agent VM in which to run an action, started with the given
+     * VM options.  The agent must be returned with {@link #releaseAgent}
+     * once the action is complete.
+     */
+    Agent getAgent(List<String> vmOpts) throws Agent.Fault {
+        JDK jdk = params.getJDK();
+        String classpath = getJavaTestClassPath() + PATHSEP + jdk.getToolsJar();
+        return Agent.Pool.instance().getAgent(absTestScratchDir(), jdk, vmOpts,
+                getEnvVars(), classpath);
+    }
+
+    void releaseAgent(Agent agent) {
+        Agent.Pool.instance().save(agent);
+    }
+
     boolean isOtherJVM() {
         boolean samevm = !params.isOtherJVM();
         if (samevm)
@@ -945,4 +1050,5 @@ public class RegressionScript extends Script
     private RegressionEnvironment regEnv;
     private RegressionParameters params;
     private String testDirPath;
+    private int scratchDirIndex = -1;
 }
@@ -29,14 +29,17 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
+import com.sun.javatest.TestDescription;
 import com.sun.javatest.finder.TagTestFinder;
 import com.sun.javatest.finder.HTMLCommentStream;
 import com.sun.javatest.finder.ShScriptCommentStream;
@@ -78,6 +81,147 @@ public class RegressionTestFinder extends TagTestFinder
         validKeysTable = new ValidKeysTable(testSuiteRoot, rootValidKeys);
     }
 
+    // The only per-file state is in TagTestFinder, and the tables of
+    // valid tags and keys are either immutable or synchronized.
+    @Override
+    public boolean isConcurrentReadSupported() {
+        return true;
+    }
+
+    /**
+     * Set an index to be used to avoid reading files that have not changed
+     * since they were last read. Files that are read are recorded in the index.
+     * @param index the index, or null if no index should be used
+     */
+    void setIndex(TestDescriptionIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Get the index used to avoid reading files that have not changed
+     * since they were last read.
+     * @return the index, or null if no index is being used
+     */
+    TestDescriptionIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Get a string identifying the settings of this test finder that affect
+     * the test descriptions that are found, for use by an index of the
+     * test descriptions.
+     */
+    String getIndexConfig() {
+        StringBuilder sb = new StringBuilder();
+        if (rootValidKeys == null)
+            sb.append("-");
+        else {
+            List<String> keys = new ArrayList<String>(rootValidKeys);
+            Collections.sort(keys);
+            for (String k: keys)
+                sb.append(k).append(" ");
+        }
+        sb.append(";checkBugID=").append(checkBugID);
+        sb.append(";allowLocalKeys=").append(allowLocalKeys);
+        return sb.toString();
+    }
+
+    @Override
+    public void scan(File file) {
+        if (index == null) {
+            super.scan(file);
+            return;
+        }
+
+        long keysStamp = getKeysStamp(file);
+        TestDescriptionIndex.Entry e = index.get(file, keysStamp);
+        if (e != null) {
+            for (String path: e.files)
+                super.foundFile(index.getFile(path));
+            for (Map<String,String> params: e.tests)
+                super.foundTestDescription(new TestDescription(getRoot(), file,
+                        new HashMap<String,String>(params)));
+            return;
+        }
+
+        boolean isDir = file.isDirectory();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        Recording r = new Recording();
+        recording.set(r);
+        try {
+            super.scan(file);
+        } finally {
+            recording.set(null);
+        }
+
+        // files with errors are always read again, so that the errors are reported
+        if (r.errors)
+            return;
+        if (isDir)
+            index.putDirectory(file, lastModified, r.files);
+        else
+            index.putFile(file, lastModified, length, keysStamp, r.tests);
+    }
+
+    @Override
+    protected void foundFile(File newFile) {
+        Recording r = recording.get();
+        if (r != null)
+            r.files.add(newFile);
+        super.foundFile(newFile);
+    }
+
+    @Override
+    protected void foundTestDescription(TestDescription td) {
+        Recording r = recording.get();
+        if (r != null)
+            r.tests.add(td);
+        super.foundTestDescription(td);
+    }
+
+    @Override
+    protected void localizedError(String msg) {
+        Recording r = recording.get();
+        if (r != null)
+            r.errors = true;
+        super.localizedError(msg);
+    }
+
+    /**
+     * Get a value identifying the state of the TEST.properties files
+     * that may affect the set of valid keys for a file.
+     */
+    private long getKeysStamp(File file) {
+        if (!allowLocalKeys || file.isDirectory())
+            return 0;
+        return getDirKeysStamp(file.getParentFile());
+    }
+
+    private long getDirKeysStamp(File dir) {
+        if (dir == null || dir.equals(getRootDir()))
+            return 0;
+        synchronized (keysStamps) {
+            Long l = keysStamps.get(dir);
+            if (l != null)
+                return l.longValue();
+        }
+        long stamp = getDirKeysStamp(dir.getParentFile());
+        File f = new File(dir, "TEST.properties");
+        if (f.exists())
+            stamp = (stamp * 31 + f.lastModified()) * 31 + f.length();
+        synchronized (keysStamps) {
+            keysStamps.put(dir, Long.valueOf(stamp));
+        }
+        return stamp;
+    }
+
+    private static class Recording {
+        List<File> files = new ArrayList<File>();
+        List<TestDescription> tests = new ArrayList<TestDescription>();
+        boolean errors;
+    }
+
     @Override protected void scanFile(File file) {
         // filter out SCCS leftovers
         if (file.getName().startsWith(","))
@@ -566,4 +710,7 @@ public class RegressionTestFinder extends TagTestFinder
     private ValidTagNames validTagNames;
     private ValidKeysTable validKeysTable;
     private boolean checkBugID;
+    private TestDescriptionIndex index;
+    private final Map<File,Long> keysStamps = new HashMap<File,Long>();
+    private final ThreadLocal<Recording> recording = new ThreadLocal<Recording>();
 }
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.javatest.regtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.javatest.TestDescription;
+import com.sun.javatest.WorkDirectory;
+
+/**
+ * A persistent index, stored in the system area of a work directory, of the
+ * contents of the files in a test suite, as read by a test finder. For each
+ * directory, the index records the files it contains that need to be read;
+ * for each file, the index records the test descriptions it contains.
+ * An entry is used instead of reading the file again for as long as the
+ * file is unchanged: that is, for a directory, its modification time is
+ * unchanged, and for a file, its size is unchanged and either its
+ * modification time or the hash of its contents is unchanged.
+ *
+ * The index is read when it is first used, and written back by {@link #save}
+ * if any entries have been added or updated.
+ */
+class TestDescriptionIndex
+{
+    /**
+     * Create an index for the test suite associated with a work directory.
+     * @param wd the work directory
+     * @param rootDir the root directory of the test suite
+     * @param config a string identifying the configuration of the test finder,
+     *      such as the set of valid keys; if it differs from the string recorded
+     *      in the index, the existing entries are discarded
+     */
+    TestDescriptionIndex(WorkDirectory wd, File rootDir, String config) {
+        file = wd.getSystemFile(FILENAME);
+        rootPath = rootDir.getPath();
+        this.config = config;
+        read();
+    }
+
+    /**
+     * The recorded contents of a file.
+     */
+    static class Entry {
+        Entry(String[] files, Map<String,String>[] tests) {
+            this.files = files;
+            this.tests = tests;
+        }
+
+        /**
+         * The files found by reading a directory, relative to the root directory.
+         */
+        final String[] files;
+
+        /**
+         * The parameters of the test descriptions found by reading a file.
+         */
+        final Map<String,String>[] tests;
+
+        long lastModified;
+        long length;
+        String hash;
+        long keysStamp;
+        boolean used;
+    }
+
+    /**
+     * Get the recorded contents of a file, if the file is unchanged
+     * since the entry was recorded.
+     * @param f the file
+     * @param keysStamp a value identifying the state of any other files
+     *      that affect how the file is read, such as TEST.properties files
+     * @return the contents of the file, or null if there is no entry for
+     *      the file, or if the file has been changed
+     */
+    Entry get(File f, long keysStamp) {
+        String path = getRelativePath(f);
+        if (path == null)
+            return null;
+
+        Entry e;
+        synchronized (this) {
+            e = entries.get(path);
+        }
+        if (e == null)
+            return null;
+
+        boolean isDir = f.isDirectory();
+        if (isDir != (e.hash == null))
+            return null;
+
+        long lastModified = f.lastModified();
+        if (isDir) {
+            if (e.lastModified != lastModified)
+                return null;
+        } else {
+            if (e.length != f.length() || e.keysStamp != keysStamp)
+                return null;
+            if (e.lastModified != lastModified) {
+                // check whether the contents have really changed,
+                // as may happen after the file has been checked out again
+                String h = getHash(f);
+                if (h == null || !h.equals(e.hash))
+                    return null;
+                synchronized (this) {
+                    e.lastModified = lastModified;
+                    modified = true;
+                }
+            }
+        }
+
+        synchronized (this) {
+            e.used = true;
+        }
+        return e;
+    }
+
+    /**
+     * Record the contents of a directory.
+     * @param dir the directory
+     * @param lastModified the modification time of the directory, before it was read
+     * @param files the files found in the directory
+     */
+    void putDirectory(File dir, long lastModified, List<File> files) {
+        String path = getRelativePath(dir);
+        if (path == null)
+            return;
+
+        String[] names = new String[files.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = getRelativePath(files.get(i));
+            if (names[i] == null)
+                return;
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String,String>[] noTests = new Map[0];
+        Entry e = new Entry(names, noTests);
+        e.lastModified = lastModified;
+        put(path, e);
+    }
+
+    /**
+     * Record the contents of a file.
+     * @param f the file
+     * @param lastModified the modification time of the file, before it was read
+     * @param length the size of the file, before it was read
+     * @param keysStamp a value identifying the state of any other files
+     *      that affect how the file is read, such as TEST.properties files
+     * @param tests the test descriptions found in the file
+     */
+    void putFile(File f, long lastModified, long length, long keysStamp,
+            List<TestDescription> tests) {
+        String path = getRelativePath(f);
+        if (path == null)
+            return;
+
+        String hash = getHash(f);
+        // don't record the file if it changed while it was being read
+        if (hash == null || f.lastModified() != lastModified || f.length() != length)
+            return;
+
+        @SuppressWarnings("unchecked")
+        Map<String,String>[] params = new Map[tests.size()];
+        for (int i = 0; i < params.length; i++) {
+            TestDescription td = tests.get(i);
+            Map<String,String> p = new LinkedHashMap<String,String>();
+            for (Iterator iter = td.getParameterKeys(); iter.hasNext(); ) {
+                String key = (String) (iter.next());
+                p.put(key, td.getParameter(key));
+            }
+            params[i] = p;
+        }
+
+        Entry e = new Entry(new String[0], params);
+        e.lastModified = lastModified;
+        e.length = length;
+        e.hash = hash;
+        e.keysStamp = keysStamp;
+        put(path, e);
+    }
+
+    private synchronized void put(String path, Entry e) {
+        e.used = true;
+        entries.put(path, e);
+        modified = true;
+    }
+
+    /**
+     * Get a file, given its path relative to the root directory,
+     * as recorded in an entry.
+     * @param path the relative path
+     * @return the file
+     */
+    File getFile(String path) {
+        return new File(rootPath, path.replace('/', File.separatorChar));
+    }
+
+    /**
+     * Write the index back to the work directory, if it has been modified.
+     * Entries that have not been used since the index was read, and whose
+     * files no longer exist, are discarded.
+     */
+    synchronized void save() {
+        for (Iterator<Map.Entry<String,Entry>> iter = entries.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<String,Entry> me = iter.next();
+            if (!me.getValue().used && !getFile(me.getKey()).exists()) {
+                iter.remove();
+                modified = true;
+            }
+        }
+
+        if (!modified)
+            return;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                write(out);
+            } finally {
+                out.close();
+            }
+            // trying to get near-atomic updates to this file
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                tmp.renameTo(file);
+            }
+            modified = false;
+        } catch (IOException e) {
+            tmp.delete();
+        }
+    }
+
+    private String getRelativePath(File f) {
+        String p = f.getPath();
+        if (p.equals(rootPath))
+            return "";
+        else if (p.startsWith(rootPath) && p.charAt(rootPath.length()) == File.separatorChar)
+            return p.substring(rootPath.length() + 1).replace(File.separatorChar, '/');
+        else
+            return null;
+    }
+
+    private static String getHash(File f) {
+        try {
+            MessageDigest md = MessageDigest.getInstance(DIGEST);
+            InputStream in = new FileInputStream(f);
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1)
+                    md.update(buf, 0, n);
+            } finally {
+                in.close();
+            }
+            byte[] d = md.digest();
+            StringBuilder sb = new StringBuilder(d.length * 2);
+            for (byte b: d) {
+                sb.append(HEX.charAt((b >> 4) & 0xf));
+                sb.append(HEX.charAt(b & 0xf));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the index. If the index cannot be read, or was written for a
+     * different configuration, it is ignored, and will be rewritten as
+     * files are read.
+     */
+    private void read() {
+        if (!file.exists())
+            return;
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    return;
+                List<String> strings = new ArrayList<String>();
+                if (!config.equals(readString(in, strings)))
+                    return;
+                Map<String,Entry> map = new HashMap<String,Entry>();
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    String path = readString(in, strings);
+                    String[] files = new String[in.readInt()];
+                    for (int j = 0; j < files.length; j++)
+                        files[j] = readString(in, strings);
+                    @SuppressWarnings("unchecked")
+                    Map<String,String>[] tests = new Map[in.readInt()];
+                    for (int j = 0; j < tests.length; j++) {
+                        int np = in.readInt();
+                        Map<String,String> p = new LinkedHashMap<String,String>();
+                        for (int k = 0; k < np; k++) {
+                            String key = readString(in, strings);
+                            p.put(key, readString(in, strings));
+                        }
+                        tests[j] = p;
+                    }
+                    Entry e = new Entry(files, tests);
+                    e.lastModified = in.readLong();
+                    e.length = in.readLong();
+                    e.keysStamp = in.readLong();
+                    e.hash = (in.readBoolean() ? readString(in, strings) : null);
+                    map.put(path, e);
+                }
+                entries.putAll(map);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // ignore: the entries will be recreated as files are read
+        } catch (RuntimeException e) {
+            // ignore: as for IOException, the index is probably corrupt
+        }
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        Map<String,Integer> strings = new HashMap<String,Integer>();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, config, strings);
+        out.writeInt(entries.size());
+        for (Map.Entry<String,Entry> me: entries.entrySet()) {
+            Entry e = me.getValue();
+            writeString(out, me.getKey(), strings);
+            out.writeInt(e.files.length);
+            for (String f: e.files)
+                writeString(out, f, strings);
+            out.writeInt(e.tests.length);
+            for (Map<String,String> p: e.tests) {
+                out.writeInt(p.size());
+                for (Map.Entry<String,String> pe: p.entrySet()) {
+                    writeString(out, pe.getKey(), strings);
+                    writeString(out, pe.getValue(), strings);
+                }
+            }
+            out.writeLong(e.lastModified);
+            out.writeLong(e.length);
+            out.writeLong(e.keysStamp);
+            out.writeBoolean(e.hash != null);
+            if (e.hash != null)
+                writeString(out, e.hash, strings);
+        }
+    }
+
+    /**
+     * Write a string. Strings that have already been written are written
+     * as a reference to the earlier copy; otherwise, -1 is written,
+     * followed by the length and characters of the string.
+     */
+    private static void writeString(DataOutputStream out, String s, Map<String,Integer> strings)
+            throws IOException {
+        Integer ref = strings.get(s);
+        if (ref != null)
+            out.writeInt(ref.intValue());
+        else {
+            out.writeInt(-1);
+            out.writeInt(s.length());
+            out.writeChars(s);
+            strings.put(s, Integer.valueOf(strings.size()));
+        }
+    }
+
+    private static String readString(DataInputStream in, List<String> strings) throws IOException {
+        int ref = in.readInt();
+        if (ref >= 0)
+            return strings.get(ref);
+        char[] chars = new char[in.readInt()];
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = in.readChar();
+        String s = new String(chars).intern();
+        strings.add(s);
+        return s;
+    }
+
+    private final File file;
+    private final String rootPath;
+    private final String config;
+    private final Map<String,Entry> entries = new HashMap<String,Entry>();
+    private boolean modified;
+
+    private static final String FILENAME = "testDescriptions.index";
+    private static final String DIGEST = "SHA-1";
+    private static final String HEX = "0123456789abcdef";
+    private static final int MAGIC = 0x4A544449; // "JTDI"
+    // change this if the format changes, or if the way that files are read
+    // by the test finder changes
+    private static final int VERSION = 1;
+}
@@ -48,7 +48,23 @@ class HTMLReport implements ReportFormat {
     }
 
     public void write(Report.Settings s, File dir) throws IOException {
+        ResultDispatcher d = new ResultDispatcher(s);
+        prepare(s, dir, d);
+        d.run();
+        writeFiles();
+    }
+
+    /**
+     * Prepare to write the report, by registering the sections that need
+     * the test results with a dispatcher. The report is written by
+     * {@link #writeFiles} after the dispatcher has been run.
+     * @param s Settings to use to create the report.
+     * @param dir Directory in which the report output should be written.
+     * @param d The dispatcher that will provide the test results.
+     */
+    void prepare(Report.Settings s, File dir, ResultDispatcher d) {
         reportDir = dir;
+        settings = s;
 
         Vector mainSecs = new Vector(3);
         Vector auxSecs = new Vector(3);
@@ -80,18 +96,31 @@ class HTMLReport implements ReportFormat {
                 rs = new ResultSection(this, s, dir);
             auxSecs.addElement(rs);
         }
+        if (rs != null)
+            d.add(rs);
 
         // optional section
         if (s.isKeywordSummaryEnabled()) {
-            mainSecs.addElement(new StatisticsSection(this, s, dir));
-            auxSecs.addElement(new StatisticsSection(this, s, dir));
+            StatisticsSection ss = new StatisticsSection(this, s, dir);
+            mainSecs.addElement(ss);
+            auxSecs.addElement(ss);
+            d.add(ss);
         }
 
-        HTMLSection[] mainSections = new HTMLSection[mainSecs.size()];
+        mainSections = new HTMLSection[mainSecs.size()];
         mainSecs.copyInto(mainSections);
 
-        HTMLSection[] auxSections = new HTMLSection[auxSecs.size()];
+        auxSections = new HTMLSection[auxSecs.size()];
         auxSecs.copyInto(auxSections);
+    }
+
+    /**
+     * Write the report files, using the test results collected by the
+     * sections registered by {@link #prepare}.
+     * @throws IOException if an error occurs while writing the files
+     */
+    void writeFiles() throws IOException {
+        Report.Settings s = settings;
 
         // prepare main report file
         Writer writer = null;
@@ -185,6 +214,9 @@ class HTMLReport implements ReportFormat {
     // ----------------------------------------------------------------------
 
     File reportDir;
+    private Report.Settings settings;
+    private HTMLSection[] mainSections;
+    private HTMLSection[] auxSections;
     private BackupPolicy backupPolicy;
     private I18NResourceBundle i18n;
 
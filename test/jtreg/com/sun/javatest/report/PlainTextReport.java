@@ -33,10 +33,7 @@ import java.util.Iterator;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
-import com.sun.javatest.JavaTestError;
-import com.sun.javatest.TestFilter;
 import com.sun.javatest.TestResult;
-import com.sun.javatest.TestResultTable;
 import com.sun.javatest.util.BackupPolicy;
 import com.sun.javatest.util.I18NResourceBundle;
 import com.sun.javatest.util.TextWriter;
@@ -60,43 +57,53 @@ class PlainTextReport implements ReportFormat {
     }
 
     public void write(Report.Settings s, File dir) throws IOException {
-        TestResultTable resultTable = s.ip.getWorkDirectory().getTestResultTable();
-
-        File[] initFiles = s.getInitialFiles();
+        ResultDispatcher d = new ResultDispatcher(s);
+        prepare(s, dir, d);
+        d.run();
+    }
 
-        SortedSet tests = new TreeSet(new TestResultsByFileComparator());
-        int width = 0;
+    /**
+     * Prepare to write the report, by registering with a dispatcher
+     * that will provide the test results. The report is written when
+     * the dispatcher has provided all the results.
+     * @param s Settings to use to create the report.
+     * @param dir Directory in which the report output should be written.
+     * @param d The dispatcher that will provide the test results.
+     */
+    void prepare(Report.Settings s, final File dir, ResultDispatcher d) {
+        d.add(new ResultDispatcher.Consumer() {
+            public void add(TestResult tr) {
+                // build a list of TestResults, sorted by test name
+                width = Math.max(width, tr.getTestName().length());
+                tests.add(tr);
+            }
 
-        Iterator iter = null;
-        try {
-            if (initFiles == null)
-                iter = resultTable.getIterator(new TestFilter[] {s.filter});
-            else
-                iter = resultTable.getIterator(initFiles,
-                                        new TestFilter[] {s.filter});
-        }
-        catch (TestResultTable.Fault f) {
-            throw new JavaTestError(i18n.getString("report.testResult.err"));
-        }   // catch
+            public void end() throws IOException {
+                TextWriter out = new TextWriter(openWriter(dir, files[SMRY_TXT]));
+                try {
+                    for (Iterator iter = tests.iterator(); iter.hasNext(); ) {
+                        TestResult tr = (TestResult) (iter.next());
+                        String u = tr.getTestName();
+                        out.print(u);
+                        for (int sp = u.length(); sp < width; sp++)
+                            out.print(" ");
+                        out.print("  ");
+                        out.println(tr.getStatus().toString());
+                    }
+                }
+                finally {
+                    out.close();
+                }
+            }
 
-        for (; iter.hasNext(); ) {
-            TestResult tr = (TestResult) (iter.next());
-            // build a list of TestResults, sorted by test name
-            width = Math.max(width, tr.getTestName().length());
-            tests.add(tr);
-        }
+            public void abort() {
+                // nothing has been written yet
+                tests.clear();
+            }
 
-        TextWriter out = new TextWriter(openWriter(dir, files[SMRY_TXT]));
-        for (iter = tests.iterator(); iter.hasNext(); ) {
-            TestResult tr = (TestResult) (iter.next());
-            String u = tr.getTestName();
-            out.print(u);
-            for (int sp = u.length(); sp < width; sp++)
-                out.print(" ");
-            out.print("  ");
-            out.println(tr.getStatus().toString());
-        }
-        out.close();
+            private SortedSet tests = new TreeSet(new TestResultsByFileComparator());
+            private int width = 0;
+        });
     }
 
     private Writer openWriter(File reportDir, String filename) throws IOException {
@@ -131,29 +131,35 @@ public class Report implements ReportModel {
 
         backupReports(reportDir, s/*, customReports*/);
 
-        if (s.isHtmlEnabled())
-            writeReportHTML(s);
+        // The standard formats share a single pass over the test results,
+        // which feeds all of them at the same time.
+        ResultDispatcher d = new ResultDispatcher(s);
 
-        if (Thread.currentThread().isInterrupted()) return;
+        HTMLReport html = null;
+        if (s.isHtmlEnabled())
+            html = prepareReportHTML(s, d);
 
         // plain text report
         if (s.isPlainEnabled())
-            writeSummaryTXT(s);
-
-        if (Thread.currentThread().isInterrupted()) return;
+            prepareSummaryTXT(s, d);
 
         // XML report
         CustomReport.ReportEnviroment re = new CustomReport.ReportEnviroment(s);
         if (s.isXmlEnabled()) {
             notifyStartGenListeners(s, "xml");
-            writeReportXML(re);
+            prepareReportXML(s, re, d);
         }
 
+        d.run();
+
         if (Thread.currentThread().isInterrupted()) {
             re.cleanup();
             return;
         }
 
+        if (html != null)
+            html.writeFiles();
+
         // write settings to Preferences
         writePrefs(s);
 
@@ -212,8 +218,12 @@ public class Report implements ReportModel {
 
         backupReports(reportDir, settings);
 
-        writeReportHTML(settings);
-        writeSummaryTXT(settings);
+        // both reports share a single pass over the test results
+        ResultDispatcher d = new ResultDispatcher(settings);
+        HTMLReport html = prepareReportHTML(settings, d);
+        prepareSummaryTXT(settings, d);
+        d.run();
+        html.writeFiles();
 
         updateStaffFiles(reportDir, settings, null);
     }
@@ -242,15 +252,24 @@ public class Report implements ReportModel {
 
         backupReports(reportDir, settings);
 
-        if (type.equalsIgnoreCase("html"))
-            writeReportHTML(settings);
-        else if (type.equalsIgnoreCase("txt"))
-            writeSummaryTXT(settings);
+        if (type.equalsIgnoreCase("html")) {
+            ResultDispatcher d = new ResultDispatcher(settings);
+            HTMLReport html = prepareReportHTML(settings, d);
+            d.run();
+            html.writeFiles();
+        }
+        else if (type.equalsIgnoreCase("txt")) {
+            ResultDispatcher d = new ResultDispatcher(settings);
+            prepareSummaryTXT(settings, d);
+            d.run();
+        }
         else if (type.equalsIgnoreCase("xml")) {
             CustomReport.ReportEnviroment re =
                 new CustomReport.ReportEnviroment(settings);
             notifyStartGenListeners(settings, "xml");
-            writeReportXML(re);
+            ResultDispatcher d = new ResultDispatcher(settings);
+            prepareReportXML(settings, re, d);
+            d.run();
         }
         else {
             // ---- code from ExecTool
@@ -695,31 +714,38 @@ public class Report implements ReportModel {
 
     //---------- primary (HTML) report ---------------------------------------
 
-    private void writeReportHTML(Settings settings) throws IOException {
+    // The reports are prepared with a dispatcher, which must then be run to
+    // give them the test results. The HTML report is only complete once its
+    // files have also been written.
+
+    private HTMLReport prepareReportHTML(Settings settings, ResultDispatcher d) {
         HTMLReport rpt = new HTMLReport(i18n);
         File out = new File(reportDir, "html");
         out.mkdir();
         notifyStartGenListeners(settings, "html");
-        rpt.write(settings, out);
+        rpt.prepare(settings, out, d);
+        return rpt;
     }
 
     //---------- XML report ---------------------------------------
 
-    private void writeReportXML(CustomReport.ReportEnviroment settings) throws IOException {
+    private void prepareReportXML(Settings settings, CustomReport.ReportEnviroment re,
+                                  ResultDispatcher d) throws IOException {
         XMLReport rpt = new XMLReport();
+        rpt.setUseFragments(settings.isXmlFragmentsEnabled());
         File out = new File(reportDir, "xml");
         out.mkdir();
-        rpt.write(settings, out);
+        rpt.prepare(re, out, d);
     }
 
     //---------- plain text summary -----------------------------------------
 
-    private void writeSummaryTXT(Settings settings) throws IOException {
+    private void prepareSummaryTXT(Settings settings, ResultDispatcher d) {
         PlainTextReport rpt = new PlainTextReport(i18n);
         File out = new File(reportDir, "text");
         out.mkdir();
         notifyStartGenListeners(settings, "pt");
-        rpt.write(settings, out);
+        rpt.prepare(settings, out, d);
     }
 
     //-----------------------------------------------------------------------
@@ -846,6 +872,17 @@ public class Report implements ReportModel {
             genXml = state;
         }
 
+        /**
+         * Specify whether the XML written for each test in the XML report
+         * should be kept in the work directory, so that it need only be
+         * written again for the tests whose results have changed when the
+         * report is next written.
+         * @param state whether or not to keep the XML written for each test
+         */
+        public void setEnableXmlFragments(boolean state) {
+            xmlFragments = state;
+        }
+
         public void setEnablePlainReport(boolean state) {
             genPlain = state;
         }
@@ -924,6 +961,10 @@ public class Report implements ReportModel {
             return genXml;
         }
 
+        public boolean isXmlFragmentsEnabled() {
+            return xmlFragments;
+        }
+
         public boolean isPlainEnabled() {
             return genPlain;
         }
@@ -1017,6 +1058,7 @@ public class Report implements ReportModel {
         boolean genHtml = true;         // generate HTML?
         boolean genPlain = true;        // generate summary.txt?
         boolean genXml = false;         // generate summary.xml?
+        boolean xmlFragments = false;   // reuse XML for unchanged results?
 
         boolean genConfig = true;       // generate config section
         boolean genQl = true;
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.javatest.report;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.sun.javatest.TestDescription;
+import com.sun.javatest.TestResult;
+import com.sun.javatest.WorkDirectory;
+
+/**
+ * A store, kept in the system area of a work directory, of the XML written
+ * for each test in the XML report. Writing that XML, which includes all the
+ * output of the test, is most of the cost of writing the XML report; with
+ * this store, the XML is only generated again for the tests whose results
+ * have changed since the last report was written.
+ *
+ * A stored fragment is reused for as long as the modification time and size
+ * of the test's result file, the status of the test, and its test description
+ * are unchanged. Tests without a result file are not stored.
+ *
+ * While a report is written, the fragments for the tests in the report are
+ * written to a new store, which replaces the old one when the report is
+ * complete. Fragments for tests that are not in the report, because of the
+ * report's filter, are carried over to the new store if their result files
+ * still exist.
+ *
+ * The store is a single file, containing the fragments, encoded in UTF-8,
+ * followed by an index giving the key and position of each fragment, followed
+ * by the position of the index.
+ */
+class ReportFragments
+{
+    /**
+     * A key identifying the state of a test result, at the time it was
+     * about to be written.
+     */
+    static class Key {
+        Key(String path, long lastModified, long length, String status, int descHash) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.status = status;
+            this.descHash = descHash;
+        }
+
+        boolean matches(Key other) {
+            return (lastModified == other.lastModified
+                    && length == other.length
+                    && descHash == other.descHash
+                    && status.equals(other.status));
+        }
+
+        final String path;
+        final long lastModified;
+        final long length;
+        final String status;
+        final int descHash;
+    }
+
+    /**
+     * Open the store for a work directory, and start a new one.
+     * @param wd the work directory
+     * @throws IOException if the new store cannot be created
+     */
+    ReportFragments(WorkDirectory wd) throws IOException {
+        workDir = wd;
+        file = wd.getSystemFile(FILENAME);
+        tmp = new File(file.getPath() + ".tmp");
+        open();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        outPos = HEADER_SIZE;
+    }
+
+    /**
+     * Get the key for the current state of a test result.
+     * @param tr the test result
+     * @return the key, or null if the XML for the test should not be stored
+     * @throws TestResult.Fault if the test description cannot be obtained
+     */
+    Key getKey(TestResult tr) throws TestResult.Fault {
+        String path = tr.getWorkRelativePath();
+        File f = new File(workDir.getRoot(), path);
+        long lastModified = f.lastModified();
+        if (lastModified == 0)
+            return null;
+
+        String status = tr.getStatus().toString();
+        // writeUTF cannot handle very long strings, so do not store
+        // the rare entries with such paths or status reasons
+        if (path.length() > MAX_STRING || status.length() > MAX_STRING)
+            return null;
+
+        return new Key(path, lastModified, f.length(), status, getHash(tr.getDescription()));
+    }
+
+    /**
+     * Get the stored XML for a test result, if it is still valid for the
+     * given key. If it is, it is also copied to the new store.
+     * @param k the key for the test result
+     * @return the stored XML, or null if there is none
+     * @throws IOException if there is a problem reading or writing the store
+     */
+    String get(Key k) throws IOException {
+        Entry e = (Entry) (entries.get(k.path));
+        if (e == null || !e.key.matches(k))
+            return null;
+
+        byte[] data = read(e);
+        if (data == null)
+            return null;
+
+        write(k, data);
+        return new String(data, ENCODING);
+    }
+
+    /**
+     * Add the XML for a test result to the new store.
+     * @param k the key for the test result, obtained before its XML was written
+     * @param xml the XML for the test result
+     * @throws IOException if there is a problem writing the store
+     */
+    void put(Key k, String xml) throws IOException {
+        write(k, xml.getBytes(ENCODING));
+    }
+
+    /**
+     * Complete the new store, and replace the old one with it.
+     * @throws IOException if there is a problem writing the store
+     */
+    void commit() throws IOException {
+        try {
+            // carry over the fragments for tests that were not in this report
+            for (Iterator iter = entries.values().iterator(); iter.hasNext(); ) {
+                Entry e = (Entry) (iter.next());
+                if (!newEntries.containsKey(e.key.path)
+                        && new File(workDir.getRoot(), e.key.path).exists()) {
+                    byte[] data = read(e);
+                    if (data != null)
+                        write(e.key, data);
+                }
+            }
+
+            long indexPos = outPos;
+            out.writeInt(newEntries.size());
+            for (Iterator iter = newEntries.values().iterator(); iter.hasNext(); ) {
+                Entry e = (Entry) (iter.next());
+                out.writeUTF(e.key.path);
+                out.writeLong(e.key.lastModified);
+                out.writeLong(e.key.length);
+                out.writeUTF(e.key.status);
+                out.writeInt(e.key.descHash);
+                out.writeLong(e.pos);
+                out.writeInt(e.size);
+            }
+            out.writeLong(indexPos);
+            out.close();
+            out = null;
+        }
+        finally {
+            if (out != null)
+                discard();
+            else
+                close();
+        }
+
+        // trying to get near-atomic updates to this file
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            tmp.renameTo(file);
+        }
+    }
+
+    /**
+     * Abandon the new store, leaving the old one in place.
+     */
+    void discard() {
+        if (out != null) {
+            try {
+                out.close();
+            }
+            catch (IOException ignore) {
+                // the file is being deleted anyway
+            }
+            out = null;
+        }
+        close();
+        tmp.delete();
+    }
+
+    private void open() {
+        if (!file.exists())
+            return;
+
+        try {
+            in = new RandomAccessFile(file, "r");
+            long len = in.length();
+            if (len < HEADER_SIZE + 12 || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                close();
+                return;
+            }
+
+            in.seek(len - 8);
+            long indexPos = in.readLong();
+            if (indexPos < HEADER_SIZE || indexPos > len - 12) {
+                close();
+                return;
+            }
+
+            byte[] index = new byte[(int) (len - 8 - indexPos)];
+            in.seek(indexPos);
+            in.readFully(index);
+            DataInputStream din = new DataInputStream(new ByteArrayInputStream(index));
+            int n = din.readInt();
+            Map map = new HashMap(n * 2);
+            for (int i = 0; i < n; i++) {
+                String path = din.readUTF();
+                long lastModified = din.readLong();
+                long length = din.readLong();
+                String status = din.readUTF();
+                int descHash = din.readInt();
+                long pos = din.readLong();
+                int size = din.readInt();
+                if (pos < HEADER_SIZE || size < 0 || pos + size > indexPos) {
+                    close();
+                    return;
+                }
+                Key k = new Key(path, lastModified, length, status, descHash);
+                map.put(path, new Entry(k, pos, size));
+            }
+            entries = map;
+        }
+        catch (IOException e) {
+            // ignore: the fragments will be written again
+            close();
+        }
+    }
+
+    private void close() {
+        if (in != null) {
+            try {
+                in.close();
+            }
+            catch (IOException ignore) {
+            }
+            in = null;
+        }
+        entries = new HashMap();
+    }
+
+    private byte[] read(Entry e) throws IOException {
+        if (in == null)
+            return null;
+
+        byte[] data = new byte[e.size];
+        in.seek(e.pos);
+        in.readFully(data);
+        return data;
+    }
+
+    private void write(Key k, byte[] data) throws IOException {
+        if (newEntries.containsKey(k.path))
+            return;
+
+        out.write(data);
+        newEntries.put(k.path, new Entry(k, outPos, data.length));
+        outPos += data.length;
+    }
+
+    /**
+     * Get a hash of the contents of a test description, which are
+     * written in the XML for the test.
+     */
+    private static int getHash(TestDescription td) {
+        int h = td.getRootRelativeURL().hashCode();
+        for (Iterator iter = td.getParameterKeys(); iter.hasNext(); ) {
+            String key = (String) (iter.next());
+            String value = td.getParameter(key);
+            h = 31 * h + key.hashCode();
+            h = 31 * h + (value == null ? 0 : value.hashCode());
+        }
+        h = 31 * h + td.getRootDir().hashCode();
+        h = 31 * h + td.getFile().getPath().hashCode();
+        return h;
+    }
+
+    private static class Entry {
+        Entry(Key key, long pos, int size) {
+            this.key = key;
+            this.pos = pos;
+            this.size = size;
+        }
+
+        final Key key;
+        final long pos;
+        final int size;
+    }
+
+    private final WorkDirectory workDir;
+    private final File file;
+    private final File tmp;
+    private RandomAccessFile in;
+    private Map entries = new HashMap();
+    private DataOutputStream out;
+    private long outPos;
+    private final Map newEntries = new LinkedHashMap();
+
+    private static final String FILENAME = "reportFragments.dat";
+    private static final String ENCODING = "UTF-8";
+    private static final int MAGIC = 0x4A545246; // "JTRF"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_STRING = 8192;
+}
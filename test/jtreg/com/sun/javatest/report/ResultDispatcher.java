@@ -0,0 +1,264 @@
+/*
+ * Copyright 2008 Sun Microsystems, Inc.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Sun designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Sun in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Sun Microsystems, Inc., 4150 Network Circle, Santa Clara,
+ * CA 95054 USA or visit www.sun.com if you need additional information or
+ * have any questions.
+ */
+
+package com.sun.javatest.report;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.sun.javatest.JavaTestError;
+import com.sun.javatest.TestFilter;
+import com.sun.javatest.TestResult;
+import com.sun.javatest.TestResultTable;
+import com.sun.javatest.util.I18NResourceBundle;
+
+/**
+ * A single pass over the test results selected for a set of reports.
+ * Each result is given to every registered consumer. If there is more
+ * than one consumer, each one runs in its own thread, fed through a
+ * bounded queue, so that the report formats are generated concurrently,
+ * and the pass never gets more than a few results ahead of the slowest
+ * consumer.
+ */
+class ResultDispatcher {
+    /**
+     * An object that receives the test results from the pass.
+     * All the calls for a consumer are made from the same thread.
+     */
+    interface Consumer {
+        /**
+         * Receive the next test result.
+         * @param tr the test result
+         * @throws IOException if an error occurs while handling the result
+         */
+        void add(TestResult tr) throws IOException;
+
+        /**
+         * Called after the last test result has been given to the consumer.
+         * @throws IOException if an error occurs while completing the output
+         */
+        void end() throws IOException;
+
+        /**
+         * Called instead of {@link #end end} if the pass is stopped early,
+         * or if an error occurs while generating any of the reports.
+         * The consumer should release any resources it holds, and discard
+         * any incomplete output.
+         */
+        void abort();
+    }
+
+    /**
+     * Create a dispatcher for the test results selected by the given settings.
+     * @param s the settings identifying the work directory, the initial files
+     *  and the filter for the reports
+     */
+    ResultDispatcher(Report.Settings s) {
+        resultTable = s.ip.getWorkDirectory().getTestResultTable();
+        initFiles = s.getInitialFiles();
+        // Note: settings.filter should not really be null, modernized clients
+        //   of this class should set the filter before asking for a report.
+        filters = (s.filter == null ? new TestFilter[0] : new TestFilter[] {s.filter});
+    }
+
+    /**
+     * Add a consumer to receive the results from the pass.
+     * @param c the consumer
+     */
+    void add(Consumer c) {
+        consumers.addElement(c);
+    }
+
+    /**
+     * Give each selected test result to all the consumers, and then
+     * notify the consumers that the pass is complete. If the calling thread
+     * is interrupted, or if any consumer reports an error, the pass is
+     * stopped early and the consumers are aborted instead.
+     * @throws IOException if any of the consumers reported an error
+     */
+    void run() throws IOException {
+        if (consumers.size() == 0)
+            return;
+
+        Iterator iter;
+        try {
+            iter = (initFiles == null
+                    ? resultTable.getIterator(filters)
+                    : resultTable.getIterator(initFiles, filters));
+        }
+        catch (TestResultTable.Fault f) {
+            for (int i = 0; i < consumers.size(); i++)
+                ((Consumer) consumers.elementAt(i)).abort();
+            throw new JavaTestError(i18n.getString("report.testResult.err"));
+        }
+
+        if (consumers.size() == 1)
+            runDirect((Consumer) consumers.elementAt(0), iter);
+        else
+            runThreads(iter);
+    }
+
+    private void runDirect(Consumer c, Iterator iter) throws IOException {
+        boolean done = false;
+        try {
+            while (iter.hasNext()) {
+                if (Thread.currentThread().isInterrupted())
+                    return;
+                c.add((TestResult) (iter.next()));
+            }
+            c.end();
+            done = true;
+        }
+        finally {
+            if (!done)
+                c.abort();
+        }
+    }
+
+    private void runThreads(Iterator iter) throws IOException {
+        int n = consumers.size();
+        Worker[] workers = new Worker[n];
+        for (int i = 0; i < n; i++) {
+            workers[i] = new Worker((Consumer) consumers.elementAt(i));
+            workers[i].start();
+        }
+
+        boolean interrupted = false;
+        try {
+            while (iter.hasNext() && failure == null) {
+                if (Thread.currentThread().isInterrupted()) {
+                    interrupted = true;
+                    break;
+                }
+                Object tr = iter.next();
+                for (int i = 0; i < n; i++)
+                    workers[i].queue.put(tr);
+            }
+        }
+        catch (InterruptedException e) {
+            interrupted = true;
+        }
+        finally {
+            for (int i = 0; i < n; i++) {
+                Worker w = workers[i];
+                if (!interrupted && failure == null) {
+                    try {
+                        w.queue.put(END);
+                        continue;
+                    }
+                    catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                // the pass was stopped early, so the worker should
+                // stop without completing its output
+                w.cancelled = true;
+                w.queue.clear();
+                w.queue.offer(END);
+            }
+            for (int i = 0; i < n; i++) {
+                try {
+                    workers[i].join();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        Throwable t = failure;
+        if (t instanceof IOException)
+            throw (IOException) t;
+        else if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        else if (t instanceof Error)
+            throw (Error) t;
+    }
+
+    private synchronized void setFailure(Throwable t) {
+        if (failure == null)
+            failure = t;
+    }
+
+    private class Worker extends Thread {
+        Worker(Consumer c) {
+            super("ResultDispatcher:" + c.getClass().getName());
+            setDaemon(true);
+            consumer = c;
+        }
+
+        public void run() {
+            boolean done = false;
+            try {
+                for (Object o = queue.take(); o != END; o = queue.take()) {
+                    if (failure == null)
+                        consumer.add((TestResult) o);
+                }
+                if (!cancelled && failure == null) {
+                    consumer.end();
+                    done = true;
+                }
+            }
+            catch (InterruptedException e) {
+                // ignore: the pass is being cancelled
+            }
+            catch (IOException e) {
+                setFailure(e);
+            }
+            catch (RuntimeException e) {
+                setFailure(e);
+            }
+            catch (Error e) {
+                setFailure(e);
+            }
+            finally {
+                // discard anything still queued, so that the pass is not blocked
+                queue.clear();
+                if (!done)
+                    consumer.abort();
+            }
+        }
+
+        private final Consumer consumer;
+        private final BlockingQueue queue = new ArrayBlockingQueue(QUEUE_SIZE);
+        private volatile boolean cancelled;
+    }
+
+    private final TestResultTable resultTable;
+    private final File[] initFiles;
+    private final TestFilter[] filters;
+    private final Vector consumers = new Vector();
+    private volatile Throwable failure;
+
+    private static final Object END = new Object();
+    private static final int QUEUE_SIZE = 256;
+    private static I18NResourceBundle i18n = I18NResourceBundle.getBundleForClass(ResultDispatcher.class);
+}
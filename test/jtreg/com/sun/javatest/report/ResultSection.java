@@ -32,19 +32,16 @@ import java.util.Iterator;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
-import com.sun.javatest.JavaTestError;
 import com.sun.javatest.Status;
 import com.sun.javatest.TestDescription;
-import com.sun.javatest.TestFilter;
 import com.sun.javatest.TestResult;
-import com.sun.javatest.TestResultTable;
 import com.sun.javatest.util.HTMLWriter;
 
 /**
  * Summarize the status, pass/fail/error of the tests which we are reporting on.
  * Also generate output in failed.html, error.html, etc...
  */
-class ResultSection extends HTMLSection {
+class ResultSection extends HTMLSection implements ResultDispatcher.Consumer {
     ResultSection(HTMLReport parent, Report.Settings settings, File dir) {
         super(i18n.getString("result.title"), settings, dir, parent);
 
@@ -94,40 +91,22 @@ class ResultSection extends HTMLSection {
             }
         }
 
-        resultTable = settings.ip.getWorkDirectory().getTestResultTable();
-        initFiles = settings.getInitialFiles();
-
         lists = new SortedSet[Status.NUM_STATES];
         for (int i = 0; i < lists.length; i++ )
             lists[i] = new TreeSet(new TestResultsByStatusAndTitleComparator());
+    }
 
-        Iterator iter;
-        try {
-            TestFilter[] fs = null;
-
-            // Note: settings.filter should not really be null, modernized clients
-            //   of this class should set the filter before asking for a report.
-            if (settings.filter == null)
-                fs = new TestFilter[0];
-            else
-                fs = new TestFilter[] {settings.filter};
-
+    public void add(TestResult tr) {
+        Status s = tr.getStatus();
+        SortedSet list = lists[s == null ? Status.NOT_RUN : s.getType()];
+        list.add(tr);
+        totalFound++;
+    }
 
-            iter = ((initFiles == null)
-                    ? resultTable.getIterator(fs)
-                    : resultTable.getIterator(initFiles, fs));
-        }
-        catch (TestResultTable.Fault f) {
-            throw new JavaTestError(i18n.getString("result.testResult.err"));
-        }
+    public void end() {
+    }
 
-        for (; iter.hasNext(); ) {
-            TestResult tr = (TestResult) (iter.next());
-            Status s = tr.getStatus();
-            SortedSet list = lists[s == null ? Status.NOT_RUN : s.getType()];
-            list.add(tr);
-            totalFound++;
-        }
+    public void abort() {
     }
 
     void writeSummary(ReportWriter out) throws IOException {
@@ -240,9 +219,6 @@ class ResultSection extends HTMLSection {
     }
 
     private File workDirRoot;
-    private TestResultTable resultTable;
-    private File[] initFiles;
-    private TestFilter[] paramFilters;
 
     private SortedSet[] lists;
     private int totalFound;
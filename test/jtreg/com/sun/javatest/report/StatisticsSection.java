@@ -34,56 +34,44 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Vector;
 
-import com.sun.javatest.JavaTestError;
 import com.sun.javatest.Status;
 import com.sun.javatest.TestDescription;
-import com.sun.javatest.TestFilter;
 import com.sun.javatest.TestResult;
-import com.sun.javatest.TestResultTable;
 import com.sun.javatest.util.HTMLWriter;
 import com.sun.javatest.util.StringArray;
 
-class StatisticsSection extends HTMLSection {
+class StatisticsSection extends HTMLSection implements ResultDispatcher.Consumer {
     StatisticsSection(HTMLReport parent, Report.Settings set, File dir) {
         super(i18n.getString("stats.title"), set, dir, parent);
-        initFiles = settings.getInitialFiles();
+    }
 
-        resultTable = settings.ip.getWorkDirectory().getTestResultTable();
-        Iterator iter =  null;
+    public void add(TestResult tr) {
         try {
-            iter = (initFiles == null) ?
-                        resultTable.getIterator(new TestFilter[] {settings.filter}) :
-                        resultTable.getIterator(initFiles, new TestFilter[]
-                                                {settings.filter});
-        }
-        catch (TestResultTable.Fault f) {
-            throw new JavaTestError(i18n.getString("stats.testResult.err"));
-        }       // catch
+            Status s = tr.getStatus();
+            TestDescription td = tr.getDescription();
 
-        for (; iter.hasNext(); ) {
-            TestResult tr = (TestResult) (iter.next());
+            String[] keys = td.getKeywords();
+            Arrays.sort(keys);
+            String sortedKeys = StringArray.join(keys);
 
-            try {
-                Status s = tr.getStatus();
-                TestDescription td = tr.getDescription();
+            int[] v = (int[])(keywordTable.get(sortedKeys));
+            if (v == null) {
+                v = new int[Status.NUM_STATES];
+                keywordTable.put(sortedKeys, v);
+            }
+            v[s.getType()]++;
 
-                String[] keys = td.getKeywords();
-                Arrays.sort(keys);
-                String sortedKeys = StringArray.join(keys);
+            statusTotals[s.getType()]++;
+        }
+        catch (TestResult.Fault ex) {
+            // hmmm. Could count problem files here and report on them later
+        }
+    }
 
-                int[] v = (int[])(keywordTable.get(sortedKeys));
-                if (v == null) {
-                    v = new int[Status.NUM_STATES];
-                    keywordTable.put(sortedKeys, v);
-                }
-                v[s.getType()]++;
+    public void end() {
+    }
 
-                statusTotals[s.getType()]++;
-            }
-            catch (TestResult.Fault ex) {
-                // hmmm. Could count problem files here and report on them later
-            }
-        }
+    public void abort() {
     }
 
     void writeContents(ReportWriter out) throws IOException {
@@ -214,8 +202,6 @@ class StatisticsSection extends HTMLSection {
 
     //-----------------------------------------------------------------------
 
-    private TestResultTable resultTable;
-    private File[] initFiles;
     private Map keywordTable = new HashMap();
     private int[] statusTotals = new int[Status.NUM_STATES];
 
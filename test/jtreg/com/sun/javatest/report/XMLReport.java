@@ -54,6 +54,7 @@ import com.sun.javatest.util.I18NResourceBundle;
 import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -90,6 +91,108 @@ class XMLReport  {
     public void write(Writer w, CustomReport.ReportEnviroment sett) throws IOException, SAXException {
 
         XMLReportMaker maker = new XMLReportMaker(w);
+        writeHead(maker, sett);
+        writeResults(maker, sett);
+        writeTail(maker);
+    }
+
+    /**
+     * Prepare to write the report, by writing the parts of the report that
+     * do not depend on the test results, and registering with a dispatcher
+     * that will provide the test results. The results are written as they
+     * are received, and the report is completed when the dispatcher has
+     * provided all the results.
+     * @param sett The settings for the report.
+     * @param dir Directory in which the report should be written.
+     * @param d The dispatcher that will provide the test results.
+     * @throws IOException if an error occurs while writing the report
+     */
+    void prepare(final CustomReport.ReportEnviroment sett, File dir, ResultDispatcher d) throws IOException {
+        final File repFile = new File(dir, REPORT_NAME);
+        final Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(repFile), XMLReportMaker.XML_CHARSET));
+        final XMLReportMaker maker = new XMLReportMaker(w);
+        boolean ok = false;
+        try {
+            writeHead(maker, sett);
+            maker.sTestResults();
+            if (useFragments) {
+                try {
+                    fragments = new ReportFragments(sett.getIp().getWorkDirectory());
+                } catch (IOException e) {
+                    // write the report without reusing any fragments
+                }
+            }
+            ok = true;
+        } catch (SAXException ex) {
+            throw new JavaTestError(i18n.getString("report.writing.err"), ex);
+        } finally {
+            if (!ok)
+                discard(w, repFile);
+        }
+
+        d.add(new ResultDispatcher.Consumer() {
+            public void add(TestResult tr) throws IOException {
+                try {
+                    if (fragments == null)
+                        writeResult(maker, tr);
+                    else
+                        writeFragment(maker, tr);
+                } catch (SAXException ex) {
+                    throw new JavaTestError(i18n.getString("report.writing.err"), ex);
+                }
+            }
+
+            public void end() throws IOException {
+                try {
+                    maker.eTestResults();
+                    writeTail(maker);
+                } catch (SAXException ex) {
+                    throw new JavaTestError(i18n.getString("report.writing.err"), ex);
+                }
+                w.close();
+                sett.xmlReportFile = repFile;
+                if (fragments != null) {
+                    try {
+                        fragments.commit();
+                    } catch (IOException e) {
+                        // ignore: the fragments will be written again next time
+                    }
+                    fragments = null;
+                }
+            }
+
+            public void abort() {
+                discard(w, repFile);
+                discardFragments();
+            }
+        });
+    }
+
+    /**
+     * Specify whether the XML written for each test should be kept in
+     * the work directory, and reused for any tests whose results are
+     * unchanged when the report is next written.
+     * @param b whether or not to reuse the XML written for each test
+     * @see ReportFragments
+     */
+    void setUseFragments(boolean b) {
+        useFragments = b;
+    }
+
+    /**
+     * Close the writer for an incomplete report, and delete the report file,
+     * so that a truncated report is not left behind.
+     */
+    private static void discard(Writer w, File repFile) {
+        try {
+            w.close();
+        } catch (IOException ignore) {
+            // the file is being deleted anyway
+        }
+        repFile.delete();
+    }
+
+    private void writeHead(final XMLReportMaker maker, final CustomReport.ReportEnviroment sett) throws SAXException, IOException {
         maker.sDocument();
         maker.sReport();
         maker.sWorkdirectories();
@@ -106,10 +209,11 @@ class XMLReport  {
 
         maker.eWorkdirectory();
         maker.eWorkdirectories();
-        writeResults(maker, sett);
+    }
+
+    private void writeTail(final XMLReportMaker maker) throws SAXException, IOException {
         maker.eReport();
         maker.eDocument();
-
     }
 
     private void writeResults(final XMLReportMaker maker, final CustomReport.ReportEnviroment sett) throws SAXException, JavaTestError, IOException {
@@ -151,6 +255,54 @@ class XMLReport  {
         }
     }
 
+    /**
+     * Write the XML for a test result, using the XML stored for the test
+     * if its result has not changed, and storing it otherwise.
+     */
+    private void writeFragment(final XMLReportMaker maker, final TestResult testResult) throws SAXException, IOException {
+        ReportFragments.Key k;
+        try {
+            k = fragments.getKey(testResult);
+        } catch (TestResult.Fault e) {
+            k = null;
+        }
+
+        String xml = null;
+        if (k != null) {
+            try {
+                xml = fragments.get(k);
+            } catch (IOException e) {
+                discardFragments();
+                k = null;
+            }
+        }
+
+        if (xml == null) {
+            StringWriter sw = new StringWriter();
+            XMLReportMaker m = maker.newFragmentMaker(sw);
+            m.sFragment();
+            writeResult(m, testResult);
+            m.eFragment();
+            xml = XMLReportMaker.getFragment(sw.toString());
+            if (k != null) {
+                try {
+                    fragments.put(k, xml);
+                } catch (IOException e) {
+                    discardFragments();
+                }
+            }
+        }
+
+        maker.makeFragment(xml);
+    }
+
+    private void discardFragments() {
+        if (fragments != null) {
+            fragments.discard();
+            fragments = null;
+        }
+    }
+
     private void writeSections(final XMLReportMaker maker, final TestResult testResult) throws SAXException, IOException, TestResult.Fault {
 
         maker.sSections();
@@ -459,6 +611,9 @@ class XMLReport  {
 
     }
 
+    private boolean useFragments;
+    private ReportFragments fragments;
+
     private static I18NResourceBundle i18n = I18NResourceBundle.getBundleForClass(XMLReport.class);
 
     // The name of the root file for a set of report files.
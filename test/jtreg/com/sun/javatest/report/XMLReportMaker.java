@@ -33,6 +33,7 @@ import java.io.Writer;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.Properties;
+import javax.xml.transform.Result;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.sax.SAXTransformerFactory;
@@ -47,13 +48,20 @@ import org.xml.sax.ext.LexicalHandler;
 public class XMLReportMaker {
 
     private TransformerHandler ser;
+    private final SAXTransformerFactory stf;
 
     XMLReportMaker(Writer w) throws IOException {
+        this(w, (SAXTransformerFactory )TransformerFactory.newInstance(), false);
+    }
+
+    private XMLReportMaker(Writer w, SAXTransformerFactory stf, boolean fragment) throws IOException {
 
         Properties outputProps = new Properties();
         outputProps.put("indent", "yes");
         outputProps.put("encoding", XML_CHARSET);
-        SAXTransformerFactory stf = (SAXTransformerFactory )TransformerFactory.newInstance();
+        if (fragment)
+            outputProps.put("omit-xml-declaration", "yes");
+        this.stf = stf;
         stf.setAttribute("indent-number", 4);
         try {
             ser = stf.newTransformerHandler();
@@ -64,6 +72,15 @@ public class XMLReportMaker {
         ser.setResult(new StreamResult(w));
     }
 
+    /**
+     * Create a maker to write a single test result, with {@link #sFragment}
+     * and {@link #eFragment}, in the same format as this maker.
+     * @param w the writer for the test result
+     */
+    XMLReportMaker newFragmentMaker(Writer w) throws IOException {
+        return new XMLReportMaker(w, stf, true);
+    }
+
     void sDocument() throws SAXException {
         ser.startDocument();
     }
@@ -164,6 +181,43 @@ public class XMLReportMaker {
         eE(Scheme.TR);
     }
 
+    /**
+     * Start a document to hold a single test result. The test result is
+     * enclosed in the same elements as in a report, so that it is indented
+     * in the same way; use {@link #getFragment} to remove them.
+     */
+    void sFragment() throws SAXException {
+        ser.startDocument();
+        sE(Scheme.REPORT);
+        sE(Scheme.TRS);
+    }
+
+    void eFragment() throws SAXException {
+        eE(Scheme.TRS);
+        eE(Scheme.REPORT);
+        ser.endDocument();
+    }
+
+    /**
+     * Get the test result element from a document written with
+     * {@link #sFragment} and {@link #eFragment}.
+     */
+    static String getFragment(String doc) {
+        String end = "</" + Scheme.TR + ">";
+        return doc.substring(doc.indexOf("<" + Scheme.TR + " "),
+                             doc.lastIndexOf(end) + end.length());
+    }
+
+    /**
+     * Write a test result element previously obtained with
+     * {@link #getFragment}, as is.
+     */
+    void makeFragment(String xml) throws SAXException {
+        ser.processingInstruction(Result.PI_DISABLE_OUTPUT_ESCAPING, "");
+        ser.characters(xml.toCharArray(), 0, xml.length());
+        ser.processingInstruction(Result.PI_ENABLE_OUTPUT_ESCAPING, "");
+    }
+
     void sDescriptionData() throws SAXException {
         sE(Scheme.DESCR_DATA);
     }
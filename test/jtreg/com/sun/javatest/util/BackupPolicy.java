@@ -156,7 +156,12 @@ public abstract class BackupPolicy
         if (isBackupRequired(target)) {
             backup(target);
         }
-        else if (target.exists()) {
+        else {
+            // try replacing the target directly first, which works on Solaris,
+            // so that there is no time at which the target does not exist
+            if (source.renameTo(target))
+                return;
+
             // remove the file we are about to overwrite
             // not really needed on Solaris, seems to be needed on Win32
             target.delete();
@@ -0,0 +1,192 @@
+/* TestAgentLoadBalance -- Share tests between several agents on localhost.
+   Copyright (C) 2026 Red Hat, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.sun.javatest.Status;
+import com.sun.javatest.Test;
+import com.sun.javatest.agent.ActiveAgentPool;
+import com.sun.javatest.agent.ActiveConnectionFactory;
+import com.sun.javatest.agent.Agent;
+import com.sun.javatest.agent.AgentManager;
+import com.sun.javatest.agent.Connection;
+
+/**
+ * Connect several active jtreg agents to the harness over localhost,
+ * run tests on them, first one at a time and then from several threads
+ * at once, and check that the tests are shared evenly between the
+ * agents, even though they are all on the same host.
+ *
+ * Requires jtreg.jar on the class path.
+ */
+public class TestAgentLoadBalance {
+
+  private static final int AGENTS = 3;
+
+  private static final int TESTS_PER_AGENT = 10;
+
+  private static final int THREADS = 2;
+
+  // The most by which the number of tests run by any two agents may differ.
+  private static final int MAX_SPREAD = 2;
+
+  // How long to wait for the agents to connect, in milliseconds.
+  private static final int CONNECT_TIMEOUT = 30000;
+
+  private static final Map<String,Integer> counts = new HashMap<String,Integer>();
+
+  private static boolean ok = true;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 0) {
+      System.err.println("TestAgentLoadBalance");
+      System.exit(-1);
+    }
+
+    final AgentManager mgr = AgentManager.access();
+    ActiveAgentPool pool = mgr.getActiveAgentPool();
+    final int[] joined = new int[1];
+    pool.addObserver(new ActiveAgentPool.Observer() {
+      public void addedToPool(Connection c) {
+        synchronized (joined) {
+          joined[0]++;
+          joined.notifyAll();
+        }
+      }
+
+      public void removedFromPool(Connection c) {
+      }
+    });
+    pool.listen(0, CONNECT_TIMEOUT);
+    int port = pool.getPort();
+
+    Agent[] agents = new Agent[AGENTS];
+    for (int i = 0; i < AGENTS; i++) {
+      agents[i] = new Agent(new ActiveConnectionFactory("localhost", port), 1);
+      Thread t = new Thread(agents[i], "TestAgentLoadBalance:Agent" + i);
+      t.setDaemon(true);
+      t.start();
+    }
+
+    // wait until all the agents are in the pool, so that the first
+    // tests are not all given to the first agent to connect
+    long end = System.currentTimeMillis() + CONNECT_TIMEOUT;
+    synchronized (joined) {
+      while (joined[0] < AGENTS && System.currentTimeMillis() < end)
+        joined.wait(1000);
+    }
+
+    int tests = AGENTS * TESTS_PER_AGENT;
+    for (int i = 0; i < tests; i++)
+      runTest(mgr, "serial" + i);
+    check("One at a time", tests);
+
+    Thread[] threads = new Thread[THREADS];
+    for (int i = 0; i < THREADS; i++) {
+      final String prefix = "concurrent" + i + ".";
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < TESTS_PER_AGENT; j++)
+            runTest(mgr, prefix + j);
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < THREADS; i++)
+      threads[i].join();
+    check("From " + THREADS + " threads", tests + THREADS * TESTS_PER_AGENT);
+
+    for (int i = 0; i < AGENTS; i++)
+      agents[i].close();
+    pool.setListening(false);
+    System.exit(ok ? 0 : 1);
+  }
+
+  private static void runTest(AgentManager mgr, String tag) {
+    try {
+      AgentManager.Task t = mgr.connectToActiveAgent();
+      String name = t.getConnection().getName();
+      Status s = t.executeTest(tag, Pass.class.getName(), new String[0], false,
+                               new PrintWriter(new StringWriter()),
+                               new PrintWriter(new StringWriter()));
+      synchronized (counts) {
+        if (!s.isPassed()) {
+          System.err.println("Test " + tag + " did not pass: " + s);
+          ok = false;
+        }
+        Integer n = counts.get(name);
+        counts.put(name, Integer.valueOf(n == null ? 1 : n.intValue() + 1));
+      }
+    }
+    catch (Exception e) {
+      synchronized (counts) {
+        System.err.println("Test " + tag + " could not be run: " + e);
+        ok = false;
+      }
+    }
+  }
+
+  private static void check(String phase, int expected) {
+    synchronized (counts) {
+      int min = Integer.MAX_VALUE;
+      int max = 0;
+      int total = 0;
+      for (Iterator<Integer> iter = counts.values().iterator(); iter.hasNext(); ) {
+        int n = iter.next().intValue();
+        min = Math.min(min, n);
+        max = Math.max(max, n);
+        total += n;
+      }
+      System.out.println(phase + ": " + counts);
+
+      if (counts.size() != AGENTS) {
+        System.err.println("Expected tests to be run on " + AGENTS + " agents, used "
+                           + counts.size());
+        ok = false;
+      }
+      if (total != expected) {
+        System.err.println("Expected " + expected + " tests to be run, ran " + total);
+        ok = false;
+      }
+      if (max - min > MAX_SPREAD) {
+        System.err.println("Tests not shared evenly between agents: between "
+                           + min + " and " + max + " tests each");
+        ok = false;
+      }
+    }
+  }
+
+  /**
+   * The test run by the agents.
+   */
+  public static class Pass implements Test {
+    public Status run(String[] args, PrintWriter log, PrintWriter ref) {
+      try {
+        Thread.sleep(10);
+      }
+      catch (InterruptedException e) {
+        return Status.error("interrupted");
+      }
+      return Status.passed("OK");
+    }
+  }
+}
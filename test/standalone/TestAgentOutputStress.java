@@ -0,0 +1,189 @@
+/* TestAgentOutputStress -- Stream test output through a localhost agent.
+   Copyright (C) 2026 Red Hat, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import com.sun.javatest.Status;
+import com.sun.javatest.Test;
+import com.sun.javatest.agent.ActiveAgentPool;
+import com.sun.javatest.agent.ActiveConnectionFactory;
+import com.sun.javatest.agent.Agent;
+import com.sun.javatest.agent.AgentManager;
+
+/**
+ * Push many megabytes of test output through an active jtreg agent
+ * connected to the harness over localhost, and check that it all arrives
+ * intact, and that the harness does not start a thread per read while
+ * doing so.
+ *
+ * The test is run twice on the same connection: the first request on a
+ * connection uses the older protocol, and later ones use compressed,
+ * UTF-8 encoded output.
+ *
+ * Requires jtreg.jar on the class path.
+ */
+public class TestAgentOutputStress {
+
+  private static final int DEFAULT_MEGABYTES = 64;
+
+  // Each line is LINE_LENGTH characters, including a non-ASCII character,
+  // a surrogate pair and the newline.
+  private static final int LINE_LENGTH = 128;
+
+  // How often the test flushes its output, in lines.
+  private static final int FLUSH_INTERVAL = 64;
+
+  // Agent connections are serviced by a single selector thread, so the
+  // number of threads started for a run should not depend on the amount
+  // of output; this is a generous bound.
+  private static final int MAX_THREADS = 50;
+
+  private static final int RUNS = 2;
+
+  public static void main(String[] args) throws Exception {
+    int mb = DEFAULT_MEGABYTES;
+    if (args.length > 1) {
+      System.err.println("TestAgentOutputStress [megabytes]");
+      System.exit(-1);
+    }
+    if (args.length == 1)
+      mb = Integer.parseInt(args[0]);
+    long lines = mb * 1024L * 1024L / LINE_LENGTH;
+
+    AgentManager mgr = AgentManager.access();
+    ActiveAgentPool pool = mgr.getActiveAgentPool();
+    pool.listen(0, 30000);
+    int port = pool.getPort();
+
+    Agent agent = new Agent(new ActiveConnectionFactory("localhost", port), 1);
+    Thread agentThread = new Thread(agent, "TestAgentOutputStress:Agent");
+    agentThread.setDaemon(true);
+    agentThread.start();
+
+    ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+    boolean ok = true;
+
+    for (int run = 0; run < RUNS; run++) {
+      long started = tmx.getTotalStartedThreadCount();
+      long start = System.nanoTime();
+
+      AgentManager.Task t = mgr.connectToActiveAgent();
+      CheckWriter ref = new CheckWriter();
+      Status s = t.executeTest("stress" + run, Chatter.class.getName(),
+                               new String[] { String.valueOf(lines) }, false,
+                               new PrintWriter(new StringWriter()),
+                               new PrintWriter(ref));
+
+      long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+      long threads = tmx.getTotalStartedThreadCount() - started;
+      System.out.println("Run " + run + ": " + s + "; received "
+                         + ref.count + " chars in " + ms + "ms ("
+                         + (ref.count * 1000 / ms / (1024 * 1024)) + " MB/s); "
+                         + threads + " threads started");
+
+      if (!s.isPassed()) {
+        System.err.println("Test did not pass: " + s);
+        ok = false;
+      }
+      if (ref.count != lines * LINE_LENGTH) {
+        System.err.println("Expected " + (lines * LINE_LENGTH) + " chars, received "
+                           + ref.count);
+        ok = false;
+      }
+      if (ref.firstError != -1) {
+        System.err.println("Output differs from what was written, starting at char "
+                           + ref.firstError);
+        ok = false;
+      }
+      if (threads > MAX_THREADS) {
+        System.err.println("Too many threads started: " + threads);
+        ok = false;
+      }
+    }
+
+    agent.close();
+    pool.setListening(false);
+    System.exit(ok ? 0 : 1);
+  }
+
+  /**
+   * The character expected at a given position of the output.
+   */
+  static char expected(long pos) {
+    long line = pos / LINE_LENGTH;
+    int col = (int) (pos % LINE_LENGTH);
+    switch (LINE_LENGTH - col) {
+    case 1:
+      return '\n';
+    case 2:
+      return '\ude00';
+    case 3:
+      return '\ud83d';
+    case 4:
+      return '\u00e9';
+    default:
+      return (char) ('a' + (line + col) % 26);
+    }
+  }
+
+  /**
+   * The test run by the agent: writes the given number of lines to its
+   * reference output.
+   */
+  public static class Chatter implements Test {
+    public Status run(String[] args, PrintWriter log, PrintWriter ref) {
+      long lines = Long.parseLong(args[0]);
+      char[] buf = new char[LINE_LENGTH];
+      for (long line = 0; line < lines; line++) {
+        for (int col = 0; col < LINE_LENGTH; col++)
+          buf[col] = expected(line * LINE_LENGTH + col);
+        ref.write(buf);
+        if (line % FLUSH_INTERVAL == 0)
+          ref.flush();
+      }
+      ref.flush();
+      return Status.passed("OK");
+    }
+  }
+
+  /**
+   * Checks the output received by the harness, without keeping it.
+   */
+  static class CheckWriter extends Writer {
+    public void write(char[] c, int off, int len) {
+      for (int i = 0; i < len; i++) {
+        if (firstError == -1 && c[off + i] != expected(count))
+          firstError = count;
+        count++;
+      }
+    }
+
+    public void flush() {
+    }
+
+    public void close() {
+    }
+
+    long count;
+    long firstError = -1;
+  }
+}
@@ -0,0 +1,235 @@
+/* TestResultTableStress -- Publish test results from several threads at once.
+   Copyright (C) 2026 Red Hat, Inc.
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.javatest.Status;
+import com.sun.javatest.TestDescription;
+import com.sun.javatest.TestResult;
+import com.sun.javatest.TestResultTable;
+import com.sun.javatest.WorkDirectory;
+import com.sun.javatest.regtest.RegressionTestSuite;
+
+/**
+ * Publish many test results into a TestResultTable from several threads
+ * at once, while another thread iterates over the table, and check that:
+ * <ul>
+ * <li>every iteration returns each test exactly once, although some may
+ *     be in their old state and some in their new state;
+ * <li>observers are told of each test that is replaced, as a removal
+ *     followed by an insertion, although notifications from different
+ *     threads may be interleaved;
+ * <li>once the updates are complete, the status counters of the root
+ *     node agree with the tests in the table.
+ * </ul>
+ *
+ * Requires jtreg.jar on the class path.
+ */
+public class TestResultTableStress {
+
+  private static final int DIRS = 8;
+
+  private static final int TESTS_PER_DIR = 30;
+
+  private static final int THREADS = 8;
+
+  private static final int DEFAULT_UPDATES = 20000;
+
+  public static void main(String[] args) throws Exception {
+    int updates = DEFAULT_UPDATES;
+    if (args.length > 1) {
+      System.err.println("TestResultTableStress [updates-per-thread]");
+      System.exit(-1);
+    }
+    if (args.length == 1)
+      updates = Integer.parseInt(args[0]);
+
+    File base = File.createTempFile("trtstress", "");
+    base.delete();
+    File suiteDir = new File(base, "suite");
+    File workDir = new File(base, "work");
+    boolean ok = true;
+
+    try {
+      createSuite(suiteDir);
+      WorkDirectory wd = WorkDirectory.create(workDir,
+                                              new RegressionTestSuite(suiteDir));
+      final TestResultTable trt = wd.getTestResultTable();
+      trt.waitUntilReady();
+
+      final List<TestResult> tests = new ArrayList<TestResult>();
+      for (Iterator iter = trt.getIterator(); iter.hasNext(); )
+        tests.add((TestResult) iter.next());
+      if (tests.size() != DIRS * TESTS_PER_DIR) {
+        System.err.println("Expected " + (DIRS * TESTS_PER_DIR) + " tests, found "
+                           + tests.size());
+        System.exit(1);
+      }
+
+      final AtomicInteger inserted = new AtomicInteger();
+      final AtomicInteger removed = new AtomicInteger();
+      trt.addObserver(new TestResultTable.TreeObserver() {
+        public void nodeInserted(TestResultTable.TreeNode[] path, Object what, int index) {
+          if (what instanceof TestResult)
+            inserted.incrementAndGet();
+        }
+
+        public void nodeChanged(TestResultTable.TreeNode[] path, Object what, int index,
+                                Object old) {
+        }
+
+        public void nodeRemoved(TestResultTable.TreeNode[] path, Object what, int index) {
+          if (what instanceof TestResult)
+            removed.incrementAndGet();
+        }
+      });
+
+      final int n = updates;
+      final AtomicInteger errors = new AtomicInteger();
+      Thread[] threads = new Thread[THREADS];
+      long start = System.nanoTime();
+      for (int i = 0; i < THREADS; i++) {
+        final Random r = new Random(i);
+        threads[i] = new Thread() {
+          public void run() {
+            try {
+              for (int j = 0; j < n; j++) {
+                TestDescription td = tests.get(r.nextInt(tests.size())).getDescription();
+                Status s = (r.nextBoolean() ? Status.passed("OK")
+                            : Status.failed("failed " + r.nextInt(3)));
+                trt.update(new TestResult(td, s));
+              }
+            }
+            catch (Exception e) {
+              e.printStackTrace();
+              errors.incrementAndGet();
+            }
+          }
+        };
+        threads[i].start();
+      }
+
+      int iterations = 0;
+      while (isAlive(threads)) {
+        int count = 0;
+        for (Iterator iter = trt.getIterator(); iter.hasNext(); iter.next())
+          count++;
+        if (count != tests.size()) {
+          System.err.println("Iteration " + iterations + " returned " + count
+                             + " tests, expected " + tests.size());
+          ok = false;
+        }
+        iterations++;
+      }
+      for (int i = 0; i < THREADS; i++)
+        threads[i].join();
+      long ms = (System.nanoTime() - start) / 1000000;
+
+      int[] counts = new int[Status.NUM_STATES];
+      for (Iterator iter = trt.getIterator(); iter.hasNext(); )
+        counts[((TestResult) iter.next()).getStatus().getType()]++;
+      int[] stats = trt.getRoot().getChildStatus();
+
+      System.out.println(THREADS + " threads published " + (THREADS * n)
+                         + " results in " + ms + "ms, while the table was iterated "
+                         + iterations + " times");
+      System.out.println("Counted: " + Arrays.toString(counts)
+                         + "; root counters: " + Arrays.toString(stats));
+
+      if (errors.get() != 0) {
+        System.err.println(errors.get() + " threads failed");
+        ok = false;
+      }
+      // results that are equivalent to the ones in the table are not used
+      System.out.println("Observers told of " + inserted.get() + " insertions and "
+                         + removed.get() + " removals");
+      if (inserted.get() == 0 || inserted.get() > THREADS * n
+          || inserted.get() != removed.get()) {
+        System.err.println("Observers not told of the replaced tests");
+        ok = false;
+      }
+      if (!Arrays.equals(counts, stats)) {
+        System.err.println("Root counters do not match the tests in the table");
+        ok = false;
+      }
+      if (trt.getRoot().getSize() != tests.size()) {
+        System.err.println("Root size is " + trt.getRoot().getSize() + ", expected "
+                           + tests.size());
+        ok = false;
+      }
+
+      trt.dispose();
+    }
+    finally {
+      delete(base);
+    }
+
+    System.exit(ok ? 0 : 1);
+  }
+
+  private static boolean isAlive(Thread[] threads) {
+    for (int i = 0; i < threads.length; i++) {
+      if (threads[i].isAlive())
+        return true;
+    }
+    return false;
+  }
+
+  private static void createSuite(File dir) throws IOException {
+    dir.mkdirs();
+    write(new File(dir, "TEST.ROOT"), "");
+    for (int i = 0; i < DIRS; i++) {
+      File d = new File(dir, "dir" + i);
+      d.mkdirs();
+      for (int j = 0; j < TESTS_PER_DIR; j++) {
+        String name = "Test" + j;
+        write(new File(d, name + ".java"),
+              "/* @test */\npublic class " + name + " {\n"
+              + "  public static void main(String[] args) { }\n}\n");
+      }
+    }
+  }
+
+  private static void write(File f, String text) throws IOException {
+    Writer out = new FileWriter(f);
+    try {
+      out.write(text);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (int i = 0; i < children.length; i++)
+        delete(children[i]);
+    }
+    f.delete();
+  }
+}